@@ -28,7 +28,7 @@ import java.util.*;
  * @see InvalidBalanceException
  * @see StudentTests
  */
-public class AVLGTree<T extends Comparable<T>> {
+public class AVLGTree<T extends Comparable<T>> implements Iterable<T> {
 
     /* ********************************************************* *
      * Write any private data elements or private methods here...*
@@ -36,19 +36,23 @@ public class AVLGTree<T extends Comparable<T>> {
 
     private Node root;
     private int maxImbalance;
+    private int modCount; // Structural modifications so far, so that iterators can fail fast.
 
     private class Node {
         private T data;
         private Node leftChild, rightChild, parent;
         private int height;
+        private int size;
         private int depth;
 
         private Node() {
             height = 0;
+            size = 1;
         }
 
         private Node(T data){
             height = 0;
+            size = 1;
             this.data = data;
         }
 
@@ -71,6 +75,62 @@ public class AVLGTree<T extends Comparable<T>> {
         this.maxImbalance = maxImbalance;
     }
 
+    /**
+     * Builds a perfectly balanced tree out of keys sorted in strictly increasing order, in O(n) time and without a
+     * single rotation. This is much faster than inserting the keys one by one, which takes O(n log n) time.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param sorted The keys of the tree, in strictly increasing order.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     * @throws IllegalArgumentException if the keys are not in strictly increasing order.
+     */
+    public AVLGTree(int maxImbalance, T[] sorted) throws InvalidBalanceException {
+        this(maxImbalance);
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i - 1].compareTo(sorted[i]) >= 0)
+                throw new IllegalArgumentException("The keys at positions " + (i - 1) + " and " + i +
+                        " are not in strictly increasing order!");
+        this.root = build(sorted, 0, sorted.length);
+    }
+
+    /**
+     * Builds a perfectly balanced tree out of the keys returned by an iterator, in strictly increasing order. The keys
+     * are first gathered in an array, after which the tree is built in O(n) time, as in
+     * {@link #AVLGTree(int, Comparable[])}.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param sorted An iterator over the keys of the tree, in strictly increasing order.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     * @throws IllegalArgumentException if the keys are not in strictly increasing order.
+     */
+    @SuppressWarnings("unchecked")
+    public AVLGTree(int maxImbalance, Iterator<? extends T> sorted) throws InvalidBalanceException {
+        this(maxImbalance, (T[]) toArray(sorted));
+    }
+
+    /* Wraps the root of a tree that split() has already balanced for the given imbalance parameter. */
+    private AVLGTree(int maxImbalance, Node root) {
+        this.maxImbalance = maxImbalance;
+        this.root = root;
+    }
+
+    private static Comparable<?>[] toArray(Iterator<? extends Comparable<?>> it) {
+        ArrayList<Comparable<?>> keys = new ArrayList<>();
+        while (it.hasNext())
+            keys.add(it.next());
+        return keys.toArray(new Comparable<?>[0]);
+    }
+
+    /* Builds a perfectly balanced tree out of sorted[from..to), taking the middle key as the root. The recursion is as
+     * deep as the resulting tree, so O(log n). */
+    private Node build(T[] sorted, int from, int to) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        Node n = new Node(sorted[mid]);
+        link(n, build(sorted, from, mid), build(sorted, mid + 1, to));
+        updateHeight(n);
+        return n;
+    }
+
     /**
      * Insert key in the tree. You will <b>not</b> be tested on
      * duplicates! This means that in a deletion test, any key that has been
@@ -80,37 +140,82 @@ public class AVLGTree<T extends Comparable<T>> {
      */
     public void insert(T key) {
         Node newNode = new Node(key);
+        modCount++;
 
         if (isEmpty()) {
             this.root = newNode;
             return;
         }
 
-        addNode(root, newNode);
-        resetParentsHeight(newNode);
-        Node issueDetected = findImbalance(newNode);
-        if (issueDetected == null) return;
+        addNode(newNode);
+        retrace(newNode.parent);
+    }
 
-        int diff = getHeightDifference(issueDetected);
+    /**
+     * Walks from n up to the root, refreshing the height of every node on the way and rotating about any node whose
+     * imbalance exceeds maxImbalance. As soon as a subtree turns out to have kept the height it had before the update,
+     * no rotation can be needed above it, so the rest of the walk only refreshes subtree sizes. After an insertion,
+     * this happens at the latest right after the first rotation; a deletion may need a rotation at every level.
+     * Either way, only the path from n to the root is visited, so updates take O(log n) time.
+     * @param n The lowest node whose subtree was changed by the update, or {@code null} if there is none.
+     */
+    private void retrace(Node n) {
+        while (n != null) {
+            int oldHeight = n.height;
+            Node parent = n.parent;
+            updateHeight(n);
+            int diff = getHeightDifference(n);
+            if (diff > maxImbalance || diff < -maxImbalance)
+                n = rotate(n, diff);
+            if (n.height == oldHeight)
+                break;
+            n = parent;
+        }
+        for (n = (n == null) ? null : n.parent; n != null; n = n.parent)
+            n.size = size(n.leftChild) + size(n.rightChild) + 1;
+    }
+
+    /**
+     * Restores the balance of the subtree rooted at n, whose imbalance is diff. We rotate towards the shorter side; if
+     * the inner grandchild on the taller side is strictly taller than the outer one, a single rotation would just move
+     * the imbalance over to the other side, so we need a double one. When both grandchildren are as tall, which can
+     * happen after a deletion, the single rotation is enough, so there is no reason to go for the double one.
+     * @param n The root of an imbalanced subtree.
+     * @param diff The height difference of n, as reported by {@link #getHeightDifference(Node)}.
+     * @return The new root of the subtree.
+     */
+    private Node rotate(Node n, int diff) {
         if (diff < 0) {
-            if (getHeightDifference(issueDetected.rightChild) < 0)
-                L_Rotate(issueDetected);
-            else
-                RL_Rotate(issueDetected);
-        } else {
-            if (getHeightDifference(issueDetected.leftChild) < 0)
-                LR_Rotate(issueDetected);
-            else
-                R_Rotate(issueDetected);
+            if (getHeightDifference(n.rightChild) <= 0)
+                return L_Rotate(n);
+            return RL_Rotate(n);
         }
-        resetAllHeights();
+        if (getHeightDifference(n.leftChild) >= 0)
+            return R_Rotate(n);
+        return LR_Rotate(n);
+    }
+
+    private int height(Node n) {
+        return n == null ? -1 : n.height;
+    }
+
+    private int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /* Refreshes both the height and the subtree size of n from those of its children. */
+    private void updateHeight(Node n) {
+        n.height = Math.max(height(n.leftChild), height(n.rightChild)) + 1;
+        n.size = size(n.leftChild) + size(n.rightChild) + 1;
     }
 
     /**
-     * Four rotation methods.
+     * Four rotation methods. Each one refreshes the heights and sizes of the nodes it moves, bottom-up, and returns
+     * the new root of the rotated subtree.
      */
 
-    private void L_Rotate(Node n) {
+    private Node L_Rotate(Node n) {
+        Node top = n.rightChild;
         Node tmp = n.rightChild.leftChild;
         n.rightChild.leftChild = n;
         n.rightChild.parent = n.parent;
@@ -126,9 +231,13 @@ public class AVLGTree<T extends Comparable<T>> {
         n.rightChild = tmp;
         if (tmp != null)
             tmp.parent = n;
+        updateHeight(n);
+        updateHeight(top);
+        return top;
     }
 
-    private void R_Rotate(Node n) {
+    private Node R_Rotate(Node n) {
+        Node top = n.leftChild;
         Node tmp = n.leftChild.rightChild;
         n.leftChild.rightChild = n;
         n.leftChild.parent = n.parent;
@@ -144,9 +253,12 @@ public class AVLGTree<T extends Comparable<T>> {
         n.leftChild = tmp;
         if (tmp != null)
             tmp.parent = n;
+        updateHeight(n);
+        updateHeight(top);
+        return top;
     }
 
-    private void RL_Rotate(Node n) {
+    private Node RL_Rotate(Node n) {
         Node n1 = n, n2 = n1.rightChild, n3 = n2.leftChild;
         n1.rightChild = n3.leftChild;
         if (n3.leftChild != null)
@@ -168,9 +280,13 @@ public class AVLGTree<T extends Comparable<T>> {
         }
         n1.parent = n3;
         n2.parent = n3;
+        updateHeight(n1);
+        updateHeight(n2);
+        updateHeight(n3);
+        return n3;
     }
 
-    private void LR_Rotate(Node n) {
+    private Node LR_Rotate(Node n) {
         Node n1 = n, n2 = n1.leftChild, n3 = n2.rightChild;
         n1.leftChild = n3.rightChild;
         if (n3.rightChild != null)
@@ -193,208 +309,215 @@ public class AVLGTree<T extends Comparable<T>> {
 
         n1.parent = n3;
         n2.parent = n3;
-
+        updateHeight(n1);
+        updateHeight(n2);
+        updateHeight(n3);
+        return n3;
     }
 
     /**
-     * @param n
-     * @return Height difference.
+     * @param n A node of the tree.
+     * @return Height difference: the height of the left subtree of n minus that of its right subtree.
      */
     private int getHeightDifference(Node n) {
-        int diff;
-        if(n.leftChild == null && n.rightChild == null)
-            diff = 0;
-        else if (n.leftChild == null)
-            diff = -1 - n.rightChild.height;
-        else if (n.rightChild == null)
-            diff = n.leftChild.height + 1;
-        else
-            diff = n.leftChild.height = n.rightChild.height;
-        return diff;
+        return height(n.leftChild) - height(n.rightChild);
     }
 
 
-    private void addNode(Node n, Node newNode) {
-        if (n.rightChild == null && newNode.data.compareTo(n.data) > 0) {
-            n.rightChild = newNode;
-            newNode.parent = n;
-        } else if (n.leftChild == null && newNode.data.compareTo(n.data) < 0) {
-            n.leftChild = newNode;
-            newNode.parent = n;
-        } else {
-            if (newNode.data.compareTo(n.data) > 0)
-                addNode(n.rightChild, newNode);
-            else
-                addNode(n.leftChild, newNode);
+    /**
+     * Hangs newNode as a leaf under the node where a search for its key falls off the tree. The descent is a loop
+     * with a single comparison per level, so neither its time nor its stack depends on how tall the tree has grown.
+     * Keys equal to a node's are sent to its left, like the recursive version used to.
+     * @param newNode The node to add. The tree must not be empty.
+     */
+    private void addNode(Node newNode) {
+        Node n = this.root;
+        while (true) {
+            if (newNode.data.compareTo(n.data) > 0) {
+                if (n.rightChild == null) {
+                    n.rightChild = newNode;
+                    break;
+                }
+                n = n.rightChild;
+            } else {
+                if (n.leftChild == null) {
+                    n.leftChild = newNode;
+                    break;
+                }
+                n = n.leftChild;
+            }
         }
+        newNode.parent = n;
+    }
+
+    /* Makes l and r the children of n. */
+    private void link(Node n, Node l, Node r) {
+        n.leftChild = l;
+        n.rightChild = r;
+        if (l != null)
+            l.parent = n;
+        if (r != null)
+            r.parent = n;
     }
 
     /**
-     * Reset the height of all the predecessors of node n.
-     * @param n
+     * Joins the detached subtrees l and r into a single AVL-G tree, with k in between: every key of l must be smaller
+     * than k's, and every key of r greater. If the two are within maxImbalance of each other in height, k simply
+     * becomes their parent. Otherwise, we walk down the inner spine of the taller subtree until we reach a node c that
+     * is short enough, put k in c's place with c and the shorter subtree as its children, and retrace from there as
+     * if k had just been inserted. This takes O(|height(l) - height(r)| + 1) time.
+     * @param l A detached subtree, possibly empty.
+     * @param k A detached node, whose children will be overwritten.
+     * @param r A detached subtree, possibly empty.
+     * @return The root of the joined tree.
      */
-    private void resetParentsHeight(Node n) {
-        int h = n.height;
-        int addon = 0;
-        Node curr = n;
-        while (curr.parent != null) {
-            curr = curr.parent;
-            addon++;
-            int currHeight = curr.height;
-            int newHeight = h + addon;
-            if (newHeight > currHeight)
-                curr.height = newHeight;
-            else
-                curr.height = currHeight;
+    private Node join(Node l, Node k, Node r) {
+        k.parent = null;
+        Node c, p = null;
+        if (height(l) > height(r) + maxImbalance) {
+            c = l;
+            while (height(c) > height(r) + maxImbalance) {
+                p = c;
+                c = c.rightChild;
+            }
+            link(k, c, r);
+            p.rightChild = k;
+        } else if (height(r) > height(l) + maxImbalance) {
+            c = r;
+            while (height(c) > height(l) + maxImbalance) {
+                p = c;
+                c = c.leftChild;
+            }
+            link(k, l, c);
+            p.leftChild = k;
+        } else {
+            link(k, l, r);
+            updateHeight(k);
+            return k;
         }
+        k.parent = p;
+        updateHeight(k);
+        retrace(p);
+        while (k.parent != null)
+            k = k.parent;
+        return k;
     }
 
     /**
-     * Reset the height of all the nodes in the tree.
+     * <p>Moves all the keys of other into this tree, leaving other empty. Every key of other must be greater than every
+     * key of this tree. Instead of n insertions, this takes O(log n) time: the smallest key of other is deleted from
+     * it and used to join the two trees together, which only rebalances the spine of the taller one.</p>
+     * @param other The tree to join into this one. Its imbalance parameter cannot be greater than this tree's, since
+     *              its subtrees are reused as they are.
+     * @throws IllegalArgumentException if some key of other is not greater than every key of this tree, or if other
+     * allows a larger imbalance than this tree.
      */
-    private void resetAllHeights() {
-        set0(this.root);
-        ArrayList<Node> arr = new ArrayList<>();
-        addNodeToList(this.root, arr);
-        for (Node n : arr) {
-            n.height = 0;
-            resetParentsHeight(n);
+    public void join(AVLGTree<T> other) {
+        if (other == this)
+            throw new IllegalArgumentException("A tree cannot be joined with itself!");
+        if (other.maxImbalance > this.maxImbalance)
+            throw new IllegalArgumentException("Cannot join an AVL-" + other.maxImbalance + " tree into an AVL-" +
+                    this.maxImbalance + " tree!");
+        if (other.isEmpty())
+            return;
+        modCount++;
+        if (this.isEmpty()) {
+            this.root = other.root;
+            other.clear();
+            return;
         }
-    }
-
-    private void set0(Node n) {
-        if (n == null) return;
-        n.height = 0;
-        set0(n.leftChild);
-        set0(n.rightChild);
-    }
-
-
-    private void addNodeToList(Node n, ArrayList<Node> arr) {
-        if (n == null) return;
-        if (n.leftChild == null && n.rightChild == null) arr.add(n);
-        addNodeToList(n.leftChild, arr);
-        addNodeToList(n.rightChild, arr);
+        T pivot = other.select(0);
+        Node max = this.root;
+        while (max.rightChild != null)
+            max = max.rightChild;
+        if (max.data.compareTo(pivot) >= 0)
+            throw new IllegalArgumentException("The smallest key of the tree to join, " + pivot +
+                    ", is not greater than the largest key of this tree, " + max.data + "!");
+        try {
+            other.delete(pivot);
+        } catch (EmptyTreeException e) {
+            throw new IllegalStateException(e); // Cannot happen: other was not empty.
+        }
+        Node r = other.root;
+        if (r != null)
+            r.parent = null;
+        other.clear();
+        this.root = join(this.root, new Node(pivot), r);
     }
 
     /**
-     * Use bottom-up method to look for imbalance, starting from the input node.
-     * @param bottom The starting node of the check.
-     * @return The position where imbalance is detected, or null if the imbalance is tolerable.
+     * <p>Cuts the tree at key: the keys smaller than key stay in this tree, and the rest are moved into a new tree with
+     * the same imbalance parameter, which is returned. This takes O(log n) time, since the tree is taken apart along
+     * the search path for key, and the pieces on either side are joined back together from the bottom up.</p>
+     * @param key The key to split the tree at. It does not need to be in the tree.
+     * @return A tree holding all keys greater than or equal to key.
      */
-    private Node findImbalance(Node bottom) {
-        Node curr = bottom;
-
-        while(curr != null) {
-
-            if (curr.leftChild == null && curr.rightChild == null){
-
-            }
-            else if (curr.leftChild == null) {
-                if (curr.rightChild.height >= maxImbalance)
-                    return curr;
+    public AVLGTree<T> split(T key) {
+        modCount++;
+        Node[] halves = split(this.root, key);
+        this.root = halves[0];
+        return new AVLGTree<>(maxImbalance, halves[1]);
+    }
 
-            }
-            else if (curr.rightChild == null) {
-                if (curr.leftChild.height >= maxImbalance)
-                    return curr;
-            }
-            else {
-                if (curr.leftChild.height - curr.rightChild.height > maxImbalance
-                        || curr.leftChild.height - curr.rightChild.height < -maxImbalance) {
-                    return curr;
-                }
-            }
-            curr = curr.parent;
+    /* Splits the detached subtree rooted at n into the keys below key and the rest, returned as the roots of two
+     * detached subtrees. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node[] split(Node n, T key) {
+        if (n == null)
+            return (Node[]) new AVLGTree.Node[2];
+        Node l = n.leftChild, r = n.rightChild;
+        if (l != null)
+            l.parent = null;
+        if (r != null)
+            r.parent = null;
+        Node[] halves;
+        if (key.compareTo(n.data) <= 0) {
+            halves = split(l, key);
+            halves[1] = join(halves[1], n, r);
+        } else {
+            halves = split(r, key);
+            halves[0] = join(l, n, halves[0]);
         }
-        return null;
+        return halves;
     }
 
-
     /**
      * Delete the key from the data structure and return it to the caller.
      * @param key The key to delete from the structure.
      * @return The key that was removed, or {@code null} if the key was not found.
      * @throws EmptyTreeException if the tree is empty.
      */
-        public T delete(T key) throws EmptyTreeException {
-            if (this.root == null)
-                throw new EmptyTreeException("The tree is empty!");
-            if (searchKey(key, this.root) == null)
-                return null;
-
-        Node marker;
-        Node delete = searchNode(key, this.root);
-
-        if (delete.leftChild == null && delete.rightChild == null) {
-            marker = delete.parent;
-            if (delete.parent == null)
-                this.root = null;
-            else if (delete.parent.leftChild == delete)
-                delete.parent.leftChild = null;
-            else
-                delete.parent.rightChild = null;
-        } else if (delete.leftChild == null) {
-            if (delete.parent == null) {
-                this.root = delete.rightChild;
-                delete.rightChild.parent = null;
-                marker = this.root;
-            } else {
-                if (delete.parent.leftChild == delete)
-                    delete.parent.leftChild = delete.rightChild;
-                else
-                    delete.parent.rightChild = delete.rightChild;
-
-                delete.rightChild.parent = delete.parent;
-                marker = delete.rightChild;
-            }
-        } else if (delete.rightChild == null) {
-            if (delete.parent == null) {
-                this.root = delete.leftChild;
-                delete.leftChild.parent = null;
-                marker = this.root;
-            } else {
-                if (delete.parent.leftChild == delete)
-                    delete.parent.leftChild = delete.leftChild;
-                else
-                    delete.parent.rightChild = delete.leftChild;
-
-                delete.leftChild.parent = delete.parent;
-                marker = delete.leftChild;
-            }
-        } else {
-            Node curr = delete.rightChild;
-            while(curr.leftChild != null) {
-                curr = curr.leftChild;
-            }
-            marker = curr.parent;
-            delete.data = curr.data;
-            if (curr.parent.leftChild == curr)
-                curr.parent.leftChild = null;
-            else
-                curr.parent.rightChild = null;
+    public T delete(T key) throws EmptyTreeException {
+        if (this.root == null)
+            throw new EmptyTreeException("The tree is empty!");
+        Node delete = searchNode(key);
+        if (delete == null)
+            return null;
+        T found = delete.data;
+        modCount++;
+        if (delete.leftChild != null && delete.rightChild != null) {
+            // Two children: the in-order successor takes the place of the deleted key, and is removed instead.
+            Node successor = delete.rightChild;
+            while (successor.leftChild != null)
+                successor = successor.leftChild;
+            delete.data = successor.data;
+            delete = successor;
         }
 
-        resetAllHeights();
-
-
-        Node issueDetected = findImbalance(marker);
-        if (issueDetected == null) return key;
+        // delete now has at most one child, which takes its place.
+        Node child = (delete.leftChild != null) ? delete.leftChild : delete.rightChild;
+        Node marker = delete.parent;
+        if (child != null)
+            child.parent = marker;
+        if (marker == null)
+            this.root = child;
+        else if (marker.leftChild == delete)
+            marker.leftChild = child;
+        else
+            marker.rightChild = child;
 
-        int diff = getHeightDifference(issueDetected);
-        if (diff < 0) {
-            if (getHeightDifference(issueDetected.rightChild) <= 0)
-                L_Rotate(issueDetected);
-            else
-                RL_Rotate(issueDetected);
-        } else {
-            if (getHeightDifference(issueDetected.leftChild) >= 0)
-                R_Rotate(issueDetected);
-            else
-                LR_Rotate(issueDetected);
-        }
-        resetAllHeights();
-        return key;
+        retrace(marker);
+        return found;
     }
 
     /**
@@ -407,27 +530,25 @@ public class AVLGTree<T extends Comparable<T>> {
     public T search(T key) throws EmptyTreeException {
         if (this.root == null)
             throw new EmptyTreeException("The tree is empty!");
-        return searchKey(key, this.root);
-    }
-
-    private T searchKey(T key, Node n) {
-        if (n == null)
-            return null;
-        if (n.data.compareTo(key) == 0)
-            return n.data;
-        if (key.compareTo(n.data) < 0)
-            return searchKey(key, n.leftChild);
-        else
-            return searchKey(key, n.rightChild);
+        Node n = searchNode(key);
+        return n == null ? null : n.data;
     }
 
-    private Node searchNode(T key, Node n) {
-        if (n == null) return null;
-        if (n.data.compareTo(key) == 0) return n;
-        if (n.data.compareTo(key) < 0)
-            return searchNode(key, n.rightChild);
-        else
-            return searchNode(key, n.leftChild);
+    /**
+     * Iterative lookup shared by {@link #search(Comparable)} and {@link #delete(Comparable)}, so that a deletion
+     * only walks down the tree once. Each level costs a single call to compareTo.
+     * @param key The key to search for.
+     * @return The node holding key, or {@code null} if there is none.
+     */
+    private Node searchNode(T key) {
+        Node n = this.root;
+        while (n != null) {
+            int cmp = key.compareTo(n.data);
+            if (cmp == 0)
+                return n;
+            n = (cmp < 0) ? n.leftChild : n.rightChild;
+        }
+        return null;
     }
 
 
@@ -506,7 +627,7 @@ public class AVLGTree<T extends Comparable<T>> {
     private boolean checkDiff(Node n) {
         if (n == null) return true;
         int diff = getHeightDifference(n);
-        return diff >= -maxImbalance && diff <= maxImbalance && checkBST(n.leftChild) && checkDiff(n.rightChild);
+        return diff >= -maxImbalance && diff <= maxImbalance && checkDiff(n.leftChild) && checkDiff(n.rightChild);
     }
 
     /**
@@ -515,23 +636,155 @@ public class AVLGTree<T extends Comparable<T>> {
      */
     public void clear(){
         this.root = null;
+        modCount++;
     }
 
 
     /**
-     * <p>Return the number of elements in the tree.</p>
+     * <p>Return the number of elements in the tree. Every node keeps the size of its subtree, so this takes
+     * constant time.</p>
      * @return  The number of elements in the tree.
      */
     public int getCount(){
-        if (this.isEmpty()) return 0;
-        return count(this.root);
+        return size(this.root);
+    }
+
+    /**
+     * <p>Return the rank of key in the tree: the number of keys stored in the tree that are strictly smaller than key.
+     * key itself does not need to be in the tree. Runs in O(log n) time.</p>
+     * @param key The key to rank.
+     * @return The number of keys in the tree smaller than key, between 0 and {@link #getCount()}.
+     */
+    public int rank(T key) {
+        int rank = 0;
+        Node n = this.root;
+        while (n != null) {
+            if (key.compareTo(n.data) > 0) {
+                rank += size(n.leftChild) + 1;
+                n = n.rightChild;
+            } else {
+                n = n.leftChild;
+            }
+        }
+        return rank;
     }
 
-    private int count(Node n) {
-        if (n == null) return 0;
-        return 1 + count(n.leftChild) + count(n.rightChild);
+    /**
+     * <p>Return the key of rank i in the tree, that is, the (i+1)-th smallest key, so that {@code select(0)} is the
+     * minimum and {@code select(getCount() - 1)} the maximum. Runs in O(log n) time.</p>
+     * @param i The rank of the key to return.
+     * @return The key of rank i.
+     * @throws IndexOutOfBoundsException if i is negative or not smaller than {@link #getCount()}.
+     */
+    public T select(int i) {
+        if (i < 0 || i >= getCount())
+            throw new IndexOutOfBoundsException("Rank " + i + " is out of bounds for a tree of " + getCount() + " keys!");
+        Node n = this.root;
+        while (true) {
+            int leftSize = size(n.leftChild);
+            if (i < leftSize) {
+                n = n.leftChild;
+            } else if (i == leftSize) {
+                return n.data;
+            } else {
+                i -= leftSize + 1;
+                n = n.rightChild;
+            }
+        }
+    }
+
+    /**
+     * <p>Return the number of keys k in the tree with lo &le; k &lt; hi. Runs in O(log n) time, however many keys
+     * fall in the range.</p>
+     * @param lo The inclusive lower end of the range.
+     * @param hi The exclusive upper end of the range.
+     * @return The number of keys in [lo, hi), or 0 if hi is not greater than lo.
+     */
+    public int countInRange(T lo, T hi) {
+        if (hi.compareTo(lo) <= 0)
+            return 0;
+        return rank(hi) - rank(lo);
+    }
+
+
+    /**
+     * <p>Return an iterator over the keys of the tree in increasing order. The iterator is lazy: it only keeps the
+     * path from the root to its next key on a stack, so it needs O(log n) memory, and walking over the first m keys
+     * takes O(m + log n) time.</p>
+     * <p>The iterator is fail-fast: if the tree is modified after the iterator was created, its next call to
+     * {@link Iterator#next()} throws a {@link ConcurrentModificationException}. It does not support removal.</p>
+     * @return An iterator over the keys of the tree, in increasing order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new TreeIterator(null, null, false);
     }
 
+    /**
+     * <p>Return a lazy, fail-fast iterator over the keys of the tree in decreasing order. See {@link #iterator()}.</p>
+     * @return An iterator over the keys of the tree, in decreasing order.
+     */
+    public Iterator<T> descendingIterator() {
+        return new TreeIterator(null, null, true);
+    }
+
+    /**
+     * <p>Return a lazy, fail-fast iterator over the keys k of the tree with lo &le; k &lt; hi, in increasing order.
+     * Finding the first key takes O(log n) time, and every key after it O(1) amortized time, so paging through a
+     * range never visits the keys outside of it. See {@link #iterator()}.</p>
+     * @param lo The inclusive lower end of the range.
+     * @param hi The exclusive upper end of the range.
+     * @return An iterator over the keys of the tree in [lo, hi), in increasing order.
+     */
+    public Iterator<T> rangeIterator(T lo, T hi) {
+        return new TreeIterator(lo, hi, false);
+    }
+
+    /* The stack holds the nodes whose keys are still to come and whose subtree on the side we come from has been
+     * exhausted, the next key at the top. Ascending iterators stop at the first key that is not below hi, if any. */
+    private class TreeIterator implements Iterator<T> {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private final T hi;
+        private final boolean descending;
+        private final int expectedModCount = modCount;
+
+        private TreeIterator(T lo, T hi, boolean descending) {
+            this.hi = hi;
+            this.descending = descending;
+            Node n = root;
+            while (n != null) {
+                if (descending) {
+                    stack.push(n);
+                    n = n.rightChild;
+                } else if (lo == null || n.data.compareTo(lo) >= 0) {
+                    stack.push(n);
+                    n = n.leftChild;
+                } else {
+                    n = n.rightChild;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty() && (hi == null || stack.peek().data.compareTo(hi) < 0);
+        }
+
+        @Override
+        public T next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException("The tree was modified during iteration!");
+            if (!hasNext())
+                throw new NoSuchElementException("No keys left to iterate over!");
+            Node n = stack.pop();
+            Node next = descending ? n.leftChild : n.rightChild;
+            while (next != null) {
+                stack.push(next);
+                next = descending ? next.rightChild : next.leftChild;
+            }
+            return n.data;
+        }
+    }
 
 
     public void printTree(Node n) {
@@ -0,0 +1,284 @@
+package projects.avlg;
+
+import projects.avlg.exceptions.EmptyTreeException;
+import projects.avlg.exceptions.InvalidBalanceException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>{@link ConcurrentAVLGTree} is a concurrent counterpart of {@link AVLGTree}: an AVL-G tree that may be searched by
+ * any number of threads while other threads update it. Readers never lock and never wait for writers; writers are
+ * serialized among themselves. It neither extends {@link AVLGTree} nor shares an interface with it, so one cannot be
+ * substituted for the other.</p>
+ *
+ * <p>This is achieved through <b>copy-on-write</b> path copying: nodes are immutable, so an update never modifies a
+ * node that is reachable from the current root. Instead, it copies the path from the root to the updated node,
+ * rotating the copies where needed, and shares every other subtree with the previous version of the tree. The new
+ * root is then published with a single volatile write, which is the point where the update takes effect. A reader
+ * loads that volatile reference once and works on an immutable version of the tree from then on, so every operation
+ * is linearizable. An update costs O(log n) node copies.</p>
+ *
+ * <p>Since a version of the tree never changes, its iterators see the keys as of the moment they were created and
+ * never throw a {@link java.util.ConcurrentModificationException}.</p>
+ *
+ * @see AVLGTree
+ * @see EmptyTreeException
+ * @see InvalidBalanceException
+ */
+public class ConcurrentAVLGTree<T extends Comparable<T>> implements Iterable<T> {
+
+    /* An immutable node. Its height and subtree size are computed once, from those of its children. */
+    private static final class Node<T> {
+        private final T data;
+        private final Node<T> leftChild, rightChild;
+        private final int height, size;
+
+        private Node(T data, Node<T> leftChild, Node<T> rightChild) {
+            this.data = data;
+            this.leftChild = leftChild;
+            this.rightChild = rightChild;
+            this.height = Math.max(height(leftChild), height(rightChild)) + 1;
+            this.size = size(leftChild) + size(rightChild) + 1;
+        }
+    }
+
+    private final int maxImbalance;
+    private final Object writeLock = new Object();
+    private volatile Node<T> root;
+
+    /**
+     * The class constructor provides the tree with the maximum imbalance allowed.
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public ConcurrentAVLGTree(int maxImbalance) throws InvalidBalanceException {
+        if (maxImbalance < 1)
+            throw new InvalidBalanceException("The maxImbalance should be greater than or equal to 1!");
+        this.maxImbalance = maxImbalance;
+    }
+
+    /**
+     * Insert key in the tree. As in {@link AVLGTree}, duplicates are not supported.
+     * @param key The key to insert in the tree.
+     */
+    public void insert(T key) {
+        synchronized (writeLock) {
+            root = insert(root, key);
+        }
+    }
+
+    /**
+     * Delete the key from the data structure and return it to the caller.
+     * @param key The key to delete from the structure.
+     * @return The key that was removed, or {@code null} if the key was not found.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T delete(T key) throws EmptyTreeException {
+        synchronized (writeLock) {
+            Node<T> r = root;
+            if (r == null)
+                throw new EmptyTreeException("The tree is empty!");
+            T found = search(r, key);
+            if (found != null)
+                root = delete(r, key);
+            return found;
+        }
+    }
+
+    /**
+     * <p>Search for key in the tree. Return a reference to it if it's in there,
+     * or {@code null} otherwise. Never blocks.</p>
+     * @param key The key to search for.
+     * @return key if key is in the tree, or {@code null} otherwise.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T search(T key) throws EmptyTreeException {
+        Node<T> r = root;
+        if (r == null)
+            throw new EmptyTreeException("The tree is empty!");
+        return search(r, key);
+    }
+
+    /**
+     * Retrieves the maximum imbalance parameter.
+     * @return The maximum imbalance parameter provided as a constructor parameter.
+     */
+    public int getMaxImbalance() {
+        return maxImbalance;
+    }
+
+    /**
+     * <p>Return the height of the tree, in constant time. We define an empty tree to have a height of -1.</p>
+     * @return The height of the tree. If the tree is empty, returns -1.
+     */
+    public int getHeight() {
+        return height(root);
+    }
+
+    /**
+     * <p>Return the number of elements in the tree, in constant time.</p>
+     * @return The number of elements in the tree.
+     */
+    public int getCount() {
+        return size(root);
+    }
+
+    /**
+     * Query the tree for emptiness. A tree is empty iff it has zero keys stored.
+     * @return {@code true} if the tree is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Return the key at the tree's root node.
+     * @return The key at the tree's root node.
+     * @throws EmptyTreeException if the tree is empty.
+     */
+    public T getRoot() throws EmptyTreeException {
+        Node<T> r = root;
+        if (r == null)
+            throw new EmptyTreeException("The tree is empty!");
+        return r.data;
+    }
+
+    /**
+     * <p>Establishes whether the current version of the tree satisfies the BST condition and the AVL-G condition.
+     * Useful for testing.</p>
+     * @return {@code true} if the tree is a non-empty AVL-G tree, {@code false} otherwise.
+     */
+    public boolean isAVLGBalanced() {
+        Node<T> r = root;
+        return r != null && isAVLGBalanced(r, null, null);
+    }
+
+    private boolean isAVLGBalanced(Node<T> n, T lo, T hi) {
+        if (n == null)
+            return true;
+        if ((lo != null && n.data.compareTo(lo) <= 0) || (hi != null && n.data.compareTo(hi) >= 0))
+            return false;
+        int diff = height(n.leftChild) - height(n.rightChild);
+        return diff >= -maxImbalance && diff <= maxImbalance &&
+                isAVLGBalanced(n.leftChild, lo, n.data) && isAVLGBalanced(n.rightChild, n.data, hi);
+    }
+
+    /**
+     * <p>Empties the tree of all its elements. Readers that are already running keep seeing the old version.</p>
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            root = null;
+        }
+    }
+
+    /**
+     * <p>Return an iterator over the keys of the tree in increasing order, as of the moment of this call. The iterator
+     * is lazy, and only keeps the path from the root to its next key, so it needs O(log n) memory. Updates made
+     * while it runs are not visible to it. It does not support removal.</p>
+     * @return An iterator over the keys of the current version of the tree, in increasing order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+        for (Node<T> n = root; n != null; n = n.leftChild)
+            stack.push(n);
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (stack.isEmpty())
+                    throw new NoSuchElementException("No keys left to iterate over!");
+                Node<T> n = stack.pop();
+                for (Node<T> next = n.rightChild; next != null; next = next.leftChild)
+                    stack.push(next);
+                return n.data;
+            }
+        };
+    }
+
+    /* ******************************************************** *
+     * ******************* PATH-COPYING UPDATES *************** *
+     * ******************************************************** */
+
+    private static int height(Node<?> n) {
+        return n == null ? -1 : n.height;
+    }
+
+    private static int size(Node<?> n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private T search(Node<T> n, T key) {
+        while (n != null) {
+            int cmp = key.compareTo(n.data);
+            if (cmp == 0)
+                return n.data;
+            n = (cmp < 0) ? n.leftChild : n.rightChild;
+        }
+        return null;
+    }
+
+    /* Returns a copy of the subtree rooted at n with key inserted. Keys equal to a node's are sent to its left, as in
+     * AVLGTree. */
+    private Node<T> insert(Node<T> n, T key) {
+        if (n == null)
+            return new Node<>(key, null, null);
+        if (key.compareTo(n.data) > 0)
+            return balance(n.data, n.leftChild, insert(n.rightChild, key));
+        return balance(n.data, insert(n.leftChild, key), n.rightChild);
+    }
+
+    /* Returns a copy of the subtree rooted at n without key, which must be in it. A node with two children is replaced
+     * by a copy holding its in-order successor. */
+    private Node<T> delete(Node<T> n, T key) {
+        int cmp = key.compareTo(n.data);
+        if (cmp < 0)
+            return balance(n.data, delete(n.leftChild, key), n.rightChild);
+        if (cmp > 0)
+            return balance(n.data, n.leftChild, delete(n.rightChild, key));
+        if (n.leftChild == null)
+            return n.rightChild;
+        if (n.rightChild == null)
+            return n.leftChild;
+        Node<T> successor = n.rightChild;
+        while (successor.leftChild != null)
+            successor = successor.leftChild;
+        return balance(successor.data, n.leftChild, deleteMin(n.rightChild));
+    }
+
+    private Node<T> deleteMin(Node<T> n) {
+        if (n.leftChild == null)
+            return n.rightChild;
+        return balance(n.data, deleteMin(n.leftChild), n.rightChild);
+    }
+
+    /**
+     * Builds a node holding data over l and r, whose heights differ by at most maxImbalance + 1 after a single
+     * insertion or deletion below them. If they differ by more than maxImbalance, the new node is rotated on the way,
+     * following the same rule as {@link AVLGTree}: a single rotation, unless the inner grandchild on the taller side
+     * is strictly taller than the outer one, in which case a double rotation is needed.
+     */
+    private Node<T> balance(T data, Node<T> l, Node<T> r) {
+        int diff = height(l) - height(r);
+        if (diff > maxImbalance) {
+            if (height(l.leftChild) >= height(l.rightChild))
+                return new Node<>(l.data, l.leftChild, new Node<>(data, l.rightChild, r));
+            Node<T> lr = l.rightChild;
+            return new Node<>(lr.data, new Node<>(l.data, l.leftChild, lr.leftChild), new Node<>(data, lr.rightChild, r));
+        }
+        if (diff < -maxImbalance) {
+            if (height(r.rightChild) >= height(r.leftChild))
+                return new Node<>(r.data, new Node<>(data, l, r.leftChild), r.rightChild);
+            Node<T> rl = r.leftChild;
+            return new Node<>(rl.data, new Node<>(data, l, rl.leftChild), new Node<>(r.data, rl.rightChild, r.rightChild));
+        }
+        return new Node<>(data, l, r);
+    }
+}
@@ -6,7 +6,15 @@ import projects.avlg.exceptions.InvalidBalanceException;
 import projects.pqueue.heaps.EmptyHeapException;
 
 import javax.annotation.processing.SupportedAnnotationTypes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static org.junit.Assert.*;
 
@@ -169,6 +177,234 @@ public class StudentTests {
                 " did not satisfy the AVL-3 property!", tree.isAVLGBalanced());
     }
 
+    /* Random insertions and deletions, for several imbalance parameters, checked against a java.util.TreeSet. Deletions
+     * of keys with two children and of the root are bound to happen, and every one of them may need rotations on
+     * several levels of the tree.
+     */
+    @Test
+    public void testRandomInsertionsAndDeletions() throws InvalidBalanceException, EmptyTreeException {
+        for(int g = 1; g <= 4; g++){
+            tree = new AVLGTree<>(g);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for(int i = 0; i < 5 * NUMS; i++){
+                int key = r.nextInt(NUMS);
+                if(r.nextInt(3) > 0 && !expected.contains(key)){
+                    tree.insert(key);
+                    expected.add(key);
+                } else if(!expected.isEmpty()){
+                    assertEquals("Deleting " + key + " from an AVL-" + g + " tree returned an unexpected value.",
+                            expected.remove(key) ? Integer.valueOf(key) : null, tree.delete(key));
+                }
+                if(!expected.isEmpty())
+                    assertTrue("After " + i + " random updates, our AVL-" + g + " tree was not AVL-" + g + " balanced.",
+                            tree.isAVLGBalanced());
+            }
+            assertEquals("Our AVL-" + g + " tree did not hold as many keys as expected.", expected.size(), tree.getCount());
+            for(int key = 0; key < NUMS; key++)
+                if(!expected.isEmpty())
+                    assertEquals("Searching for " + key + " in an AVL-" + g + " tree returned an unexpected value.",
+                            expected.contains(key) ? Integer.valueOf(key) : null, tree.search(key));
+        }
+    }
+
+    /* Subtree sizes have to survive every rotation, so we check rank, select and countInRange against a TreeSet after
+     * a mix of random insertions and deletions.
+     */
+    @Test
+    public void testOrderStatistics() throws InvalidBalanceException, EmptyTreeException {
+        for(int g = 1; g <= 3; g++){
+            tree = new AVLGTree<>(g);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for(int i = 0; i < 3 * NUMS; i++){
+                int key = r.nextInt(2 * NUMS);
+                if(expected.add(key))
+                    tree.insert(key);
+                else if(r.nextBoolean() && expected.remove(key))
+                    assertEquals(Integer.valueOf(key), tree.delete(key));
+            }
+            assertEquals("Our AVL-" + g + " tree did not hold as many keys as expected.", expected.size(), tree.getCount());
+            int rank = 0;
+            for(Integer key : expected){
+                assertEquals("Unexpected rank for key " + key + " in an AVL-" + g + " tree.", rank, tree.rank(key));
+                assertEquals("Unexpected key of rank " + rank + " in an AVL-" + g + " tree.", key, tree.select(rank));
+                rank++;
+            }
+            for(int i = 0; i < NUMS; i++){
+                int lo = r.nextInt(2 * NUMS), hi = lo + r.nextInt(NUMS);
+                assertEquals("Unexpected count of keys in [" + lo + ", " + hi + ") in an AVL-" + g + " tree.",
+                        expected.subSet(lo, hi).size(), tree.countInRange(lo, hi));
+            }
+            try {
+                tree.select(tree.getCount());
+                fail("Selecting past the last rank of an AVL-" + g + " tree should have thrown.");
+            } catch(IndexOutOfBoundsException ignored){
+                // Expected.
+            }
+        }
+    }
+
+    /* The iterators should walk the keys in order, in both directions and within a range, and should fail fast once
+     * the tree is modified under them.
+     */
+    @Test
+    public void testIterators() throws InvalidBalanceException {
+        tree = new AVLGTree<>(2);
+        TreeSet<Integer> expected = new TreeSet<>();
+        for(int i = 0; i < NUMS; i++){
+            int key = r.nextInt(4 * NUMS);
+            if(expected.add(key))
+                tree.insert(key);
+        }
+        Iterator<Integer> ascending = tree.iterator(), descending = tree.descendingIterator();
+        for(Integer key : expected)
+            assertEquals("The in-order iterator returned an unexpected key.", key, ascending.next());
+        assertFalse("The in-order iterator had more keys than the tree.", ascending.hasNext());
+        for(Integer key : expected.descendingSet())
+            assertEquals("The descending iterator returned an unexpected key.", key, descending.next());
+        assertFalse("The descending iterator had more keys than the tree.", descending.hasNext());
+
+        for(int i = 0; i < 100; i++){
+            int lo = r.nextInt(4 * NUMS), hi = lo + r.nextInt(NUMS);
+            Iterator<Integer> range = tree.rangeIterator(lo, hi);
+            for(Integer key : expected.subSet(lo, hi))
+                assertEquals("The range iterator over [" + lo + ", " + hi + ") returned an unexpected key.", key, range.next());
+            assertFalse("The range iterator over [" + lo + ", " + hi + ") went past its range.", range.hasNext());
+        }
+
+        Iterator<Integer> stale = tree.iterator();
+        stale.next();
+        tree.insert(-1);
+        try {
+            stale.next();
+            fail("An iterator over a tree that was modified after its creation should have thrown.");
+        } catch(ConcurrentModificationException ignored){
+            // Expected.
+        }
+    }
+
+    /* A tree built in bulk from sorted keys should be perfectly balanced. Splitting it at any key and joining the two
+     * halves back together should give back the same keys, in two AVL-G trees and then in one.
+     */
+    @Test
+    public void testBulkBuildSplitAndJoin() throws InvalidBalanceException {
+        Integer[] keys = new Integer[NUMS];
+        for(int i = 0; i < NUMS; i++)
+            keys[i] = 2 * i;
+        for(int g = 1; g <= 3; g++){
+            tree = new AVLGTree<>(g, keys);
+            assertEquals("A bulk-built tree of " + NUMS + " keys was not perfectly balanced.", 9, tree.getHeight());
+            assertEquals("A bulk-built tree did not hold as many keys as expected.", NUMS, tree.getCount());
+            for(int i = 0; i < 20; i++){
+                int cut = r.nextInt(2 * NUMS + 2) - 1;
+                AVLGTree<Integer> upper = tree.split(cut);
+                int below = Math.max(0, Math.min(NUMS, (cut + 1) / 2));
+                assertEquals("After a split at " + cut + ", the lower tree held an unexpected number of keys.",
+                        below, tree.getCount());
+                assertEquals("After a split at " + cut + ", the upper tree held an unexpected number of keys.",
+                        NUMS - below, upper.getCount());
+                assertTrue("After a split at " + cut + ", the lower tree was not AVL-" + g + " balanced.",
+                        tree.isEmpty() || tree.isAVLGBalanced());
+                assertTrue("After a split at " + cut + ", the upper tree was not AVL-" + g + " balanced.",
+                        upper.isEmpty() || upper.isAVLGBalanced());
+                tree.join(upper);
+                assertTrue("Joining a split tree back did not leave the other tree empty.", upper.isEmpty());
+                assertTrue("After joining a split tree back, it was not AVL-" + g + " balanced.", tree.isAVLGBalanced());
+                int j = 0;
+                for(Integer key : tree)
+                    assertEquals("After joining a split tree back, its keys were not the original ones.", keys[j++], key);
+                assertEquals(NUMS, j);
+            }
+        }
+        try {
+            new AVLGTree<>(1, new Integer[]{1, 3, 2});
+            fail("Building a tree out of unsorted keys should have thrown.");
+        } catch(IllegalArgumentException ignored){
+            // Expected.
+        }
+    }
+
+    /* Two writers toggle the keys they own in and out of a ConcurrentAVLGTree, while readers search it. Every writer
+     * counts the updates it has started and completed on each key: since the key starts out absent and updates
+     * alternate between insertions and deletions, the key is in the tree after an odd number of them. A search
+     * that runs after c updates have completed and before s have started has to see the state after one of the updates
+     * c, ..., s, or else it would not be linearizable. Readers also walk snapshots, which have to be sorted and to
+     * hold every permanent key, whatever the writers are doing.
+     */
+    @Test
+    public void testConcurrentAVLGTreeLinearizability() throws InvalidBalanceException, InterruptedException {
+        ConcurrentAVLGTree<Integer> concurrent = new ConcurrentAVLGTree<>(2);
+        int writers = 2, keys = 256, permanent = 64, rounds = 200;
+        for(int i = 0; i < permanent; i++)
+            concurrent.insert(-1 - i);
+        AtomicIntegerArray started = new AtomicIntegerArray(keys), completed = new AtomicIntegerArray(keys);
+        AtomicInteger running = new AtomicInteger(writers);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writers; w++){
+            int owner = w;
+            long seed = r.nextLong();
+            threads.add(new Thread(() -> {
+                Random wr = new Random(seed);
+                try {
+                    for(int i = 0; i < rounds * keys / writers; i++){
+                        int key = writers * wr.nextInt(keys / writers) + owner;
+                        boolean insert = started.getAndIncrement(key) % 2 == 0;
+                        if(insert)
+                            concurrent.insert(key);
+                        else if(!Integer.valueOf(key).equals(concurrent.delete(key)))
+                            throw new AssertionError("Deleting key " + key + " did not return it.");
+                        completed.incrementAndGet(key);
+                    }
+                } catch(Throwable t){
+                    failures.add(t);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for(int i = 0; i < 4; i++){
+            long seed = r.nextLong();
+            threads.add(new Thread(() -> {
+                Random rr = new Random(seed);
+                try {
+                    while(running.get() > 0){
+                        int key = rr.nextInt(keys);
+                        int before = completed.get(key);
+                        boolean found = concurrent.search(key) != null;
+                        int after = started.get(key);
+                        // Is there an update j in [before, after] after which the key is (found) or is not (!found) there?
+                        if(before == after && (before % 2 == 1) != found)
+                            throw new AssertionError("Searching for key " + key + " after " + before + " updates returned " + found + ".");
+                        int count = 0;
+                        Integer previous = null;
+                        for(Integer k : concurrent){
+                            if(previous != null && previous >= k)
+                                throw new AssertionError("A snapshot of the tree was not sorted: " + previous + " came before " + k + ".");
+                            if(k < 0)
+                                count++;
+                            previous = k;
+                        }
+                        if(count != permanent)
+                            throw new AssertionError("A snapshot of the tree held " + count + " permanent keys instead of " + permanent + ".");
+                    }
+                } catch(Throwable t){
+                    failures.add(t);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for(Thread t : threads)
+            t.join();
+        if(!failures.isEmpty())
+            throw new AssertionError(failures.get(0));
+        assertTrue("After the churn, the tree was not AVL-2 balanced.", concurrent.isAVLGBalanced());
+        int expected = permanent;
+        for(int key = 0; key < keys; key++)
+            if(completed.get(key) % 2 == 1)
+                expected++;
+        assertEquals("After the churn, the tree did not hold as many keys as expected.", expected, concurrent.getCount());
+    }
+
     @Test
     public void test01() throws InvalidBalanceException, EmptyTreeException {
         tree = new AVLGTree<>(1);
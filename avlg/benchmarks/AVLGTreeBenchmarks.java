@@ -0,0 +1,146 @@
+package projects.avlg.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import projects.avlg.AVLGTree;
+import projects.avlg.exceptions.EmptyTreeException;
+import projects.avlg.exceptions.InvalidBalanceException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>{@link AVLGTreeBenchmarks} measures how the cost of loading and emptying an {@link AVLGTree} one key at a time
+ * grows with the number of keys, for several imbalance parameters. Every insertion and deletion only visits the path
+ * from the updated node to the root, so loading n keys takes time in O(n log n) for any G: plotting the time of a run
+ * against n should give an almost straight line.</p>
+ *
+ * <p>The benchmarks need {@code jmh-core} on the classpath and the {@code jmh-generator-annprocess} annotation
+ * processor at compile time.</p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AVLGTreeBenchmarks {
+
+    /**
+     * The keys of a run, in random order and in increasing order, and a tree already holding all of them.
+     */
+    @State(Scope.Benchmark)
+    public static class Keys {
+
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int n;
+
+        @Param({"1", "3", "8"})
+        public int maxImbalance;
+
+        Integer[] shuffled, sorted;
+        AVLGTree<Integer> loaded;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            sorted = new Integer[n];
+            for (int i = 0; i < n; i++)
+                sorted[i] = i;
+            shuffled = sorted.clone();
+            Random random = new Random(47);
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                Integer tmp = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = tmp;
+            }
+        }
+
+        /* Deleting empties the tree, so every measured deletion run needs a fresh one. */
+        @Setup(Level.Iteration)
+        public void load() throws InvalidBalanceException {
+            loaded = new AVLGTree<>(maxImbalance);
+            for (Integer key : shuffled)
+                loaded.insert(key);
+        }
+    }
+
+    /**
+     * Inserts all n keys, in random order, into an empty tree.
+     * @param k The keys.
+     * @return The loaded tree, so that the JIT cannot drop the insertions.
+     * @throws InvalidBalanceException never, since the imbalance parameters are all positive.
+     */
+    @Benchmark
+    public AVLGTree<Integer> insertRandom(Keys k) throws InvalidBalanceException {
+        AVLGTree<Integer> tree = new AVLGTree<>(k.maxImbalance);
+        for (Integer key : k.shuffled)
+            tree.insert(key);
+        return tree;
+    }
+
+    /**
+     * Inserts all n keys, in increasing order, into an empty tree: the order that rotates the most.
+     * @param k The keys.
+     * @return The loaded tree, so that the JIT cannot drop the insertions.
+     * @throws InvalidBalanceException never, since the imbalance parameters are all positive.
+     */
+    @Benchmark
+    public AVLGTree<Integer> insertSorted(Keys k) throws InvalidBalanceException {
+        AVLGTree<Integer> tree = new AVLGTree<>(k.maxImbalance);
+        for (Integer key : k.sorted)
+            tree.insert(key);
+        return tree;
+    }
+
+    /**
+     * Builds a tree out of all n keys, in increasing order, in a single pass: the O(n) alternative to
+     * {@link #insertSorted(Keys)}.
+     * @param k The keys.
+     * @return The built tree, so that the JIT cannot drop the construction.
+     * @throws InvalidBalanceException never, since the imbalance parameters are all positive.
+     */
+    @Benchmark
+    public AVLGTree<Integer> buildSorted(Keys k) throws InvalidBalanceException {
+        return new AVLGTree<>(k.maxImbalance, k.sorted);
+    }
+
+    /**
+     * Deletes all n keys from a loaded tree, in increasing order.
+     * @param k The keys.
+     * @return The emptied tree, so that the JIT cannot drop the deletions.
+     * @throws EmptyTreeException never, since every key is deleted exactly once.
+     */
+    @Benchmark
+    public AVLGTree<Integer> deleteAll(Keys k) throws EmptyTreeException {
+        AVLGTree<Integer> tree = k.loaded;
+        for (Integer key : k.sorted)
+            tree.delete(key);
+        return tree;
+    }
+
+    /**
+     * Runs every benchmark over every size and imbalance parameter.
+     * @param args Ignored.
+     * @throws RunnerException if JMH fails to run the benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AVLGTreeBenchmarks.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
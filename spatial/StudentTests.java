@@ -7,12 +7,28 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.KNNComparator;
+import projects.spatial.knnutils.QueryMetrics;
+import projects.spatial.knnutils.QueryStats;
+import projects.spatial.trees.ConcurrentKDTree;
+import projects.spatial.trees.FlatKDTree;
 import projects.spatial.trees.KDTree;
+import projects.spatial.trees.LinearQuadTree;
+import projects.spatial.trees.MappedKDTree;
+import projects.spatial.trees.MappedPRQuadTree;
 import projects.spatial.trees.PRQuadTree;
+import projects.spatial.trees.SpatialDictionary;
+import projects.spatial.trees.SpatialQuerySolver;
 import projects.visualization.CompactVizTree;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static projects.spatial.kdpoint.KDPoint.*;
@@ -158,6 +174,39 @@ public class StudentTests {
     }
 
 
+    @Test
+    public void testBPQRandomEnqueuesKeepSmallestInInsertionOrder(){
+        int capacity = 25;
+        BoundedPriorityQueue<Integer> myQueue = new BoundedPriorityQueue<>(capacity);
+        List<int[]> expected = new ArrayList<>(); // (priority, insertion order) pairs
+        for(int i = 0; i < 50 * MAX_ITER; i++){
+            int priority = r.nextInt(100);
+            myQueue.enqueue(i, priority);
+            expected.add(new int[]{priority, i});
+        }
+        expected.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+        assertEquals("A BPQ should never grow past its capacity.", capacity, myQueue.size());
+        assertEquals("last() should return the element with the largest kept priority, inserted latest among ties.",
+                Integer.valueOf(expected.get(capacity - 1)[1]), myQueue.last());
+        for(int i = 0; i < capacity; i++)
+            assertEquals("Dequeue #" + i + " did not respect priorities and insertion order.",
+                    Integer.valueOf(expected.get(i)[1]), myQueue.dequeue());
+        assertTrue("After dequeuing every element, the BPQ should be empty.", myQueue.isEmpty());
+    }
+
+    @Test
+    public void testBPQOrdersBigDecimalsBeyondDoublePrecision(){
+        // All three priorities round to the same double, so only their exact values can order them.
+        BoundedPriorityQueue<Integer> myQueue = new BoundedPriorityQueue<>(2);
+        myQueue.enqueue(3, new BigDecimal("0.10000000000000000003"));
+        myQueue.enqueue(1, new BigDecimal("0.10000000000000000001"));
+        myQueue.enqueue(2, new BigDecimal("0.10000000000000000002"));
+        assertEquals("The BPQ should have ejected the element with the largest exact priority.", Integer.valueOf(2), myQueue.last());
+        assertEquals("The BPQ should dequeue the element with the smallest exact priority first.", Integer.valueOf(1), myQueue.dequeue());
+        assertEquals("The BPQ should dequeue the element with the second smallest exact priority next.", Integer.valueOf(2), myQueue.dequeue());
+    }
+
+
     /* ******************************************************************************************************** */
     /* ******************************************************************************************************** */
     /* ***************************************** KD-TREE TESTS ************************************************* */
@@ -197,6 +246,264 @@ public class StudentTests {
     }
 
 
+    @Test
+    public void testKDTreeKNNMatchesBruteForce(){
+        kdTree = new KDTree(3);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 20 * MAX_ITER; i++){
+            KDPoint p = getRandomIntegerCoordPoint(3);
+            points.add(p);
+            kdTree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomIntegerCoordPoint(3);
+            List<KDPoint> sorted = new ArrayList<>(points);
+            sorted.removeIf(anchor::equals);
+            sorted.sort(new KNNComparator<>(anchor));
+            BoundedPriorityQueue<KDPoint> knn = kdTree.kNearestNeighbors(5, anchor);
+            assertEquals("A 5-NN query returned the wrong number of neighbors.", 5, knn.size());
+            for(int j = 0; j < 5; j++)
+                assertEquals("Neighbor #" + j + " of query #" + i + " is not at the expected distance.",
+                        sorted.get(j).distanceSquared(anchor), knn.dequeue().distanceSquared(anchor));
+        }
+    }
+
+    @Test
+    public void testKDTreeNNPrunes(){
+        kdTree = new KDTree(2);
+        int n = 50 * MAX_ITER;
+        for(int i = 0; i < n; i++)
+            kdTree.insert(getRandomPoint(2));
+        QueryStats stats = new QueryStats();
+        for(int i = 0; i < MAX_ITER; i++)
+            assertNotNull("A nearest neighbor query over a non-empty tree returned null.", kdTree.nearestNeighbor(getRandomPoint(2), stats));
+        assertTrue("On average, a nearest neighbor query visited " + stats.nodesVisited / MAX_ITER + " out of " + n +
+                " nodes; branch-and-bound should only need a small fraction.", stats.nodesVisited / MAX_ITER < n / 20);
+    }
+
+    @Test
+    public void testNNReportsTwinOfAnchor(){
+        // The twin rounds to the same doubles as the anchor, but is a different point, so it is the nearest neighbor.
+        KDPoint anchor = new KDPoint(new BigDecimal("0.1"), new BigDecimal("0.1"));
+        KDPoint twin = new KDPoint(new BigDecimal("0.10000000000000000001"), new BigDecimal("0.1"));
+        kdTree = new KDTree(2);
+        kdTree.insert(anchor);
+        kdTree.insert(twin);
+        kdTree.insert(new KDPoint(5, 5));
+        assertEquals("The twin of the anchor should be within range.", Collections.singletonList(twin),
+                new ArrayList<>(kdTree.range(anchor, BigDecimal.ONE)));
+        assertEquals("The twin of the anchor should be its nearest neighbor.", twin, kdTree.nearestNeighbor(anchor));
+        assertEquals("The twin of the anchor should be its approximate nearest neighbor.", twin,
+                kdTree.nearestNeighbor(anchor, 0.5, 10, null));
+        assertEquals("The twin of the anchor should be its first nearest neighbor.", twin,
+                kdTree.kNearestNeighbors(2, anchor).first());
+
+        FlatKDTree snapshot = kdTree.snapshot();
+        assertEquals("The twin of the anchor should be within range in a snapshot.", Collections.singletonList(twin),
+                new ArrayList<>(snapshot.range(anchor, BigDecimal.ONE)));
+        assertEquals("The twin of the anchor should be its nearest neighbor in a snapshot.", twin,
+                snapshot.nearestNeighbor(anchor));
+        assertEquals("The twin of the anchor should be its first nearest neighbor in a snapshot.", twin,
+                snapshot.kNearestNeighbors(2, anchor).first());
+
+        prQuadTree = new PRQuadTree(4, 2);
+        prQuadTree.insert(anchor);
+        prQuadTree.insert(twin);
+        prQuadTree.insert(new KDPoint(5, 5));
+        assertEquals("The twin of the anchor should be within range in a PR-QuadTree.", Collections.singletonList(twin),
+                new ArrayList<>(prQuadTree.range(anchor, BigDecimal.ONE)));
+        assertEquals("The twin of the anchor should be its nearest neighbor in a PR-QuadTree.", twin,
+                prQuadTree.nearestNeighbor(anchor));
+        assertEquals("The twin of the anchor should be its first nearest neighbor in a PR-QuadTree.", twin,
+                prQuadTree.kNearestNeighbors(2, anchor).first());
+    }
+
+    @Test
+    public void testPRQuadTreeKeepsTwinsInOneBucket(){
+        // Twins can never be separated by splitting, so a bucket of 1 has to overflow instead of splitting forever.
+        KDPoint anchor = new KDPoint(new BigDecimal("0.1"), new BigDecimal("0.1"));
+        KDPoint twin = new KDPoint(new BigDecimal("0.10000000000000000001"), new BigDecimal("0.1"));
+        prQuadTree = new PRQuadTree(4, 1);
+        prQuadTree.insert(anchor);
+        prQuadTree.insert(twin);
+        prQuadTree.insert(new KDPoint(5, 5));
+        assertTrue("The PR-QuadTree should contain the anchor.", prQuadTree.search(anchor));
+        assertTrue("The PR-QuadTree should contain the twin of the anchor.", prQuadTree.search(twin));
+        assertEquals("The PR-QuadTree should count both twins.", 3, prQuadTree.count());
+        assertEquals("The twin of the anchor should be its nearest neighbor.", twin, prQuadTree.nearestNeighbor(anchor));
+        assertEquals("The twin of the anchor should be within range.", Collections.singletonList(twin),
+                new ArrayList<>(prQuadTree.range(anchor, BigDecimal.ONE)));
+
+        prQuadTree.delete(twin);
+        assertFalse("The twin of the anchor should have been deleted.", prQuadTree.search(twin));
+        assertTrue("Deleting the twin should not delete the anchor.", prQuadTree.search(anchor));
+        assertEquals("The PR-QuadTree should count the remaining points.", 2, prQuadTree.count());
+    }
+
+    @Test
+    public void testKDTreeBulkLoadIsBalanced(){
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 100 * MAX_ITER; i++)
+            points.add(getRandomPoint(3));
+        int expectedHeight = 31 - Integer.numberOfLeadingZeros(points.size()); // floor(log2(n))
+        for(KDTree tree : new KDTree[]{new KDTree(3, points), KDTree.bulkLoad(3, points, ForkJoinPool.commonPool())}) {
+            assertEquals("A bulk-loaded tree over " + points.size() + " points should have a height of floor(log2(n)).",
+                    expectedHeight, tree.height());
+            assertEquals("A bulk-loaded tree should count all of its points.", points.size(), tree.count());
+            for(KDPoint p : points)
+                assertTrue("A bulk-loaded tree should contain " + p + ".", tree.search(p));
+        }
+
+        // Duplicate coordinates should not break the convention of the tree, so insertions and deletions still work.
+        points.clear();
+        for(int i = 0; i < 10 * MAX_ITER; i++)
+            points.add(new KDPoint(r.nextInt(10), r.nextInt(10)));
+        kdTree = new KDTree(2, points);
+        for(KDPoint p : points){
+            assertTrue("A bulk-loaded tree should contain " + p + ".", kdTree.search(p));
+            kdTree.delete(p);
+        }
+        assertTrue("After deleting all of its points, a bulk-loaded tree should be empty.", kdTree.isEmpty());
+    }
+
+    @Test
+    public void testKDTreeRebalancingBoundsHeight(){
+        kdTree = new KDTree(2);
+        kdTree.setRebalancing(2);
+        int n = 10 * MAX_ITER;
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < n; i++){ // Sorted insertions: without rebalancing, the tree would be a linked list.
+            points.add(new KDPoint(i, i));
+            kdTree.insert(points.get(i));
+            assertTrue("A rebalancing tree of " + kdTree.count() + " points reached a height of " + kdTree.height() + ".",
+                    kdTree.count() < 2 || kdTree.getHeightRatio() <= 2);
+        }
+        assertTrue("Sorted insertions should have caused some rebuilds.", kdTree.getRebuildCount() > 0);
+        Collections.shuffle(points, r);
+        for(int i = 0; i < n; i++){
+            if(i < n - 1)
+                assertTrue("A rebalancing tree should not lose " + points.get(i) + ".", kdTree.search(points.get(i)));
+            kdTree.delete(points.get(i));
+            assertEquals("Deletions should be counted properly under rebalancing.", n - i - 1, kdTree.count());
+        }
+        assertTrue("After deleting all of its points, a rebalancing tree should be empty.", kdTree.isEmpty());
+    }
+
+    @Test
+    public void testFlatKDTreeMatchesKDTree(){
+        kdTree = new KDTree(3);
+        for(int i = 0; i < 20 * MAX_ITER; i++)
+            kdTree.insert(getRandomIntegerCoordPoint(3));
+        FlatKDTree flat = kdTree.snapshot();
+        assertEquals("A snapshot should hold as many points as the tree it was taken from.", kdTree.count(), flat.count());
+        assertEquals("A snapshot should be perfectly balanced.", 31 - Integer.numberOfLeadingZeros(kdTree.count()), flat.height());
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomIntegerCoordPoint(3);
+            BoundedPriorityQueue<KDPoint> expected = kdTree.kNearestNeighbors(5, anchor), actual = flat.kNearestNeighbors(5, anchor);
+            assertEquals("A snapshot should find as many neighbors as its tree.", expected.size(), actual.size());
+            while(!expected.isEmpty())
+                assertEquals("A snapshot should find neighbors at the same distances as its tree.",
+                        expected.dequeue().distanceSquared(anchor), actual.dequeue().distanceSquared(anchor));
+            BigDecimal range = new BigDecimal(r.nextInt(100));
+            assertEquals("A snapshot should find as many points in range as its tree.",
+                    kdTree.range(anchor, range).size(), flat.range(anchor, range).size());
+        }
+    }
+
+
+    @Test
+    public void testBatchKNNMatchesSingleQueries(){
+        kdTree = new KDTree(2);
+        prQuadTree = new PRQuadTree(5, 3);
+        for(int i = 0; i < 20 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            kdTree.insert(p);
+            prQuadTree.insert(p);
+        }
+        List<KDPoint> anchors = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++)
+            anchors.add(getRandomPoint(2));
+        for(SpatialQuerySolver tree : new SpatialQuerySolver[]{kdTree, prQuadTree, kdTree.snapshot()}){
+            List<List<KDPoint>> batch = tree.kNearestNeighbors(7, anchors);
+            assertEquals("A batch query should return one result per anchor.", anchors.size(), batch.size());
+            for(int i = 0; i < anchors.size(); i++){
+                List<KDPoint> single = new ArrayList<>();
+                for(KDPoint p : tree.kNearestNeighbors(7, anchors.get(i)))
+                    single.add(p);
+                assertEquals("A batch query for " + anchors.get(i) + " should match the single query.", single, batch.get(i));
+            }
+        }
+    }
+
+
+    @Test
+    public void testConcurrentKDTreeStress() throws InterruptedException {
+        // Permanent points on an integer grid, transient ones half-way between them. The nearest neighbor of a point
+        // slightly off a grid point is always that grid point, whatever the writer is doing.
+        ConcurrentKDTree tree = new ConcurrentKDTree(2);
+        int side = 40;
+        List<KDPoint> transients = new ArrayList<>();
+        for(int x = 0; x < side; x++)
+            for(int y = 0; y < side; y++){
+                tree.insert(new KDPoint(x, y));
+                transients.add(new KDPoint(x + 0.5, y + 0.5));
+            }
+        int permanent = side * side;
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+        Thread writer = new Thread(() -> {
+            Random wr = new Random(47);
+            try {
+                for(int round = 0; round < 10; round++){
+                    Collections.shuffle(transients, wr);
+                    for(KDPoint p : transients)
+                        tree.insert(p);
+                    Collections.shuffle(transients, wr);
+                    for(KDPoint p : transients)
+                        tree.delete(p);
+                }
+            } catch(Throwable t){
+                failures.add(t);
+            } finally {
+                done.set(true);
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for(int i = 0; i < 4; i++){
+            long seed = r.nextLong();
+            readers.add(new Thread(() -> {
+                Random rr = new Random(seed);
+                try {
+                    while(!done.get()){
+                        int x = rr.nextInt(side), y = rr.nextInt(side);
+                        KDPoint nn = tree.nearestNeighbor(new KDPoint(x + 0.1, y - 0.1));
+                        if(!new KDPoint(x, y).equals(nn))
+                            throw new AssertionError("Expected (" + x + ", " + y + ") as the nearest neighbor, got " + nn + ".");
+                        int count = tree.count(), height = tree.height();
+                        if(count < permanent || count > 2 * permanent)
+                            throw new AssertionError("Observed an impossible count of " + count + ".");
+                        if(height < 31 - Integer.numberOfLeadingZeros(permanent))
+                            throw new AssertionError("Observed an impossible height of " + height + ".");
+                    }
+                } catch(Throwable t){
+                    failures.add(t);
+                }
+            }));
+        }
+        writer.start();
+        readers.forEach(Thread::start);
+        writer.join();
+        for(Thread t : readers)
+            t.join();
+        if(!failures.isEmpty())
+            throw new AssertionError(failures.get(0));
+        assertEquals("After the churn, only the permanent points should be left.", permanent, tree.count());
+        for(KDPoint p : transients)
+            assertFalse("Point " + p + " should have been deleted.", tree.search(p));
+    }
+
+
     /* ******************************************************************************************************** */
     /* ******************************************************************************************************** */
     /* ***************************************** PR-QUADTREE TESTS ******************************************** */
@@ -318,8 +625,320 @@ public class StudentTests {
                 ptsWithinRange.get(0),points[0]);
     }
 
+    @Test
+    public void testPRTreeInHigherDimensions() {
+        for(int dims = 3; dims <= 4; dims++){
+            prQuadTree = new PRQuadTree(5, 2, dims); // Space from -16 to 16 in every dimension.
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < 5 * MAX_ITER; i++){
+                KDPoint p = getRandomPoint(dims); // Coordinates between -10 and 10.
+                points.add(p);
+                prQuadTree.insert(p);
+            }
+            assertEquals("A " + dims + "-D PR-Tree should count all of its points.", points.size(), prQuadTree.count());
+            for(int i = 0; i < MAX_ITER / 4; i++){
+                KDPoint anchor = getRandomPoint(dims);
+                List<KDPoint> sorted = new ArrayList<>(points);
+                sorted.sort(new KNNComparator<>(anchor));
+                BoundedPriorityQueue<KDPoint> knn = prQuadTree.kNearestNeighbors(5, anchor);
+                for(int j = 0; j < 5; j++)
+                    assertEquals("The k-NN of a " + dims + "-D PR-Tree should match brute force.", sorted.get(j), knn.dequeue());
+                BigDecimal range = new BigDecimal(4);
+                int expected = 0;
+                for(KDPoint p : points)
+                    if(p.distanceSquared(anchor).compareTo(range.multiply(range)) <= 0)
+                        expected++;
+                assertEquals("The range queries of a " + dims + "-D PR-Tree should match brute force.",
+                        expected, prQuadTree.range(anchor, range).size());
+            }
+            for(KDPoint p : points)
+                prQuadTree.delete(p);
+            assertTrue("After deleting all of its points, a " + dims + "-D PR-Tree should be empty.", prQuadTree.isEmpty());
+        }
+    }
+
+    @Test
+    public void testRangePRQuadTreeOnBoundaries() {
+        // Integer points and radii put many points exactly on the boundary of a query, and many queries exactly on
+        // the boundary of a quadrant: none of them should be pruned away.
+        prQuadTree = new PRQuadTree(5, 1);
+        List<KDPoint> points = new ArrayList<>();
+        for(int x = -16; x < 16; x += 2)
+            for(int y = -16; y < 16; y += 2){
+                points.add(new KDPoint(x, y));
+                prQuadTree.insert(points.get(points.size() - 1));
+            }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = new KDPoint(r.nextInt(32) - 16, r.nextInt(32) - 16);
+            BigDecimal range = new BigDecimal(r.nextInt(10));
+            int expected = 0;
+            for(KDPoint p : points)
+                if(!p.equals(anchor) && p.distanceSquared(anchor).compareTo(range.multiply(range)) <= 0)
+                    expected++;
+            assertEquals("Range query around " + anchor + " with a range of " + range + " missed some points.",
+                    expected, prQuadTree.range(anchor, range).size());
+        }
+    }
+
+    @Test
+    public void testLinearQuadTreeMatchesPRQuadTree() {
+        prQuadTree = new PRQuadTree(5, 2);
+        LinearQuadTree linear = new LinearQuadTree(5, 2);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            points.add(p);
+            prQuadTree.insert(p);
+            if(i % 2 == 0)
+                linear.insert(p);
+        }
+        linear.insertAll(points); // Half of them are already there.
+        assertEquals("A linear quadtree should count every distinct point once.", prQuadTree.count(), linear.count());
+        assertEquals("A linear quadtree should have the height of the equivalent PR-QuadTree.", prQuadTree.height(), linear.height());
+        for(int i = 0; i < MAX_ITER / 4; i++){
+            KDPoint anchor = i % 2 == 0 ? points.get(i) : getRandomPoint(2);
+            BoundedPriorityQueue<KDPoint> expected = prQuadTree.kNearestNeighbors(5, anchor), actual = linear.kNearestNeighbors(5, anchor);
+            while(!expected.isEmpty())
+                assertEquals("The k-NN of a linear quadtree should match those of a PR-QuadTree.", expected.dequeue(), actual.dequeue());
+            BigDecimal range = new BigDecimal(r.nextInt(6));
+            assertEquals("The range queries of a linear quadtree should match those of a PR-QuadTree.",
+                    new HashSet<>(prQuadTree.range(anchor, range)), new HashSet<>(linear.range(anchor, range)));
+        }
+        for(int i = 0; i < points.size(); i += 2){
+            prQuadTree.delete(points.get(i));
+            linear.delete(points.get(i));
+            assertFalse("A deleted point should not be found in a linear quadtree.", linear.search(points.get(i)));
+        }
+        assertEquals("A linear quadtree should count its points after deletions.", prQuadTree.count(), linear.count());
+        assertEquals("A linear quadtree should shrink like a PR-QuadTree after deletions.", prQuadTree.height(), linear.height());
+        assertTrue("A linear quadtree should find the points that were not deleted.", linear.search(points.get(1)));
+    }
+
 
         @Test
+    public void testBoxQueriesMatchBruteForce() {
+        kdTree = new KDTree(2);
+        prQuadTree = new PRQuadTree(5, 2);
+        List<KDPoint> points = new ArrayList<>();
+        for(int x = -16; x < 16; x++)
+            for(int y = -16; y < 16; y += 3)
+                points.add(new KDPoint(x, y));
+        for(int i = 0; i < MAX_ITER; i++)
+            points.add(getRandomPoint(2));
+        points.add(new KDPoint(new BigDecimal("1.00000000000000000001"), BigDecimal.ZERO)); // Just beyond x = 1.
+        for(KDPoint p : points){
+            kdTree.insert(p);
+            prQuadTree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER / 4; i++){
+            int x = r.nextInt(32) - 16, y = r.nextInt(32) - 16;
+            KDPoint lower = new KDPoint(x, y), upper = new KDPoint(x + r.nextInt(17), y + r.nextInt(17));
+            if(i == 0){
+                lower = new KDPoint(-1, -1);
+                upper = new KDPoint(1, 1);
+            }
+            Set<KDPoint> expected = new HashSet<>();
+            for(KDPoint p : points)
+                if(p.coords[0].compareTo(lower.coords[0]) >= 0 && p.coords[0].compareTo(upper.coords[0]) <= 0
+                        && p.coords[1].compareTo(lower.coords[1]) >= 0 && p.coords[1].compareTo(upper.coords[1]) <= 0)
+                    expected.add(p);
+            assertEquals("The box query of a KD-Tree should match brute force.", expected, new HashSet<>(kdTree.box(lower, upper)));
+            assertEquals("The box query of a PR-QuadTree should match brute force.", expected, new HashSet<>(prQuadTree.box(lower, upper)));
+            assertEquals("The box count of a KD-Tree should match brute force.", expected.size(), kdTree.boxCount(lower, upper));
+            assertEquals("The box count of a PR-QuadTree should match brute force.", expected.size(), prQuadTree.boxCount(lower, upper));
+        }
+        assertEquals("An empty box should hold no points.", 0, kdTree.boxCount(new KDPoint(1, 1), new KDPoint(0, 2)));
+        assertEquals("An empty box should hold no points.", 0, prQuadTree.box(new KDPoint(1, 1), new KDPoint(0, 2)).size());
+    }
+
+    @Test
+    public void testApproximateKNNKeepsItsBound() {
+        kdTree = new KDTree(5);
+        for(int i = 0; i < 20 * MAX_ITER; i++)
+            kdTree.insert(getRandomPoint(5));
+        for(double epsilon : new double[]{0, 0.5, 2}){
+            for(int maxVisits : new int[]{Integer.MAX_VALUE, 50}){
+                for(int i = 0; i < MAX_ITER / 10; i++){
+                    KDPoint anchor = getRandomPoint(5);
+                    QueryStats stats = new QueryStats();
+                    BoundedPriorityQueue<KDPoint> exact = kdTree.kNearestNeighbors(5, anchor),
+                            approximate = kdTree.kNearestNeighbors(5, anchor, epsilon, maxVisits, stats);
+                    assertTrue("An approximate query should not visit more nodes than allowed.", stats.nodesVisited <= maxVisits);
+                    if(maxVisits == Integer.MAX_VALUE)
+                        assertTrue("Without a budget, the achieved bound should be at most 1 + epsilon.",
+                                stats.approximationBound <= 1 + epsilon + 1e-9);
+                    if(stats.approximationBound == Double.POSITIVE_INFINITY)
+                        continue;
+                    double exactKth = Math.sqrt(exact.last().distanceSquared(anchor).doubleValue());
+                    double approximateKth = Math.sqrt(approximate.last().distanceSquared(anchor).doubleValue());
+                    assertTrue("The k-th approximate neighbor should be within the reported bound of the true one.",
+                            approximateKth <= exactKth * stats.approximationBound * (1 + 1e-9));
+                    if(epsilon == 0 && maxVisits == Integer.MAX_VALUE)
+                        assertEquals("With no slack and no budget, the query should be exact.", exact.last(), approximate.last());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQueryStatsAndMetrics() {
+        kdTree = new KDTree(3);
+        prQuadTree = new PRQuadTree(10, 4, 3);
+        for(int i = 0; i < 10 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(3);
+            kdTree.insert(p);
+            prQuadTree.insert(p);
+        }
+        QueryMetrics metrics = new QueryMetrics("test");
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(3);
+            QueryStats kdStats = new QueryStats(), prStats = new QueryStats();
+            assertEquals("Instrumented queries should return the same neighbors.",
+                    kdTree.kNearestNeighbors(5, anchor, kdStats).last().distanceSquared(anchor),
+                    prQuadTree.kNearestNeighbors(5, anchor, prStats).last().distanceSquared(anchor));
+            assertTrue("A KD-Tree k-NN query computes at most one distance per visited node.",
+                    kdStats.distanceComputations <= kdStats.nodesVisited);
+            assertTrue("A query cannot go deeper than the tree.", kdStats.maxDepth <= kdTree.height());
+            assertTrue("A query cannot go deeper than the tree.", prStats.maxDepth <= prQuadTree.height());
+            assertTrue("A k-NN query over a large tree should prune some subtrees.", kdStats.subtreesPruned > 0 && prStats.subtreesPruned > 0);
+            assertTrue("A query should be timed.", kdStats.elapsedNanos > 0 && prStats.elapsedNanos > 0);
+            metrics.record(QueryMetrics.Query.K_NEAREST_NEIGHBORS, kdStats);
+            QueryStats rangeStats = new QueryStats();
+            assertEquals("Instrumented range queries should return the same points.",
+                    prQuadTree.range(anchor, new BigDecimal(3)).size(), prQuadTree.range(anchor, new BigDecimal(3), rangeStats).size());
+            metrics.record(QueryMetrics.Query.RANGE, rangeStats);
+        }
+        QueryMetrics.Histogram visits = metrics.histogram(QueryMetrics.Query.K_NEAREST_NEIGHBORS, QueryMetrics.Metric.NODES_VISITED);
+        assertEquals("Every recorded query should be counted.", MAX_ITER, visits.count());
+        assertTrue("The median should not exceed the 99th percentile.", visits.quantile(0.5) <= visits.quantile(0.99));
+        assertEquals("Nothing was recorded for nearest neighbor queries.", 0,
+                metrics.histogram(QueryMetrics.Query.NEAREST_NEIGHBOR, QueryMetrics.Metric.ELAPSED_NANOS).count());
+        String scraped = metrics.toString();
+        assertTrue("Scraped histograms should include their counts.",
+                scraped.contains("test_nodes_visited_count{query=\"knn\"} " + MAX_ITER));
+        assertTrue("Scraped histograms should end with a +Inf bucket.",
+                scraped.contains("test_max_depth_bucket{query=\"range\",le=\"+Inf\"} " + MAX_ITER));
+    }
+
+    @Test
+    public void testRangeCountsMatchRange() {
+        List<KDPoint> points = new ArrayList<>();
+        for(int x = -16; x < 16; x++)
+            for(int y = -16; y < 16; y++)
+                points.add(new KDPoint(x, y));
+        Collections.shuffle(points, r);
+        KDTree rebalanced = new KDTree(2);
+        rebalanced.setRebalancing(1.5);
+        ConcurrentKDTree concurrent = new ConcurrentKDTree(2);
+        kdTree = new KDTree(2);
+        prQuadTree = new PRQuadTree(5, 2);
+        SpatialQuerySolver[] trees = {kdTree, rebalanced, concurrent, prQuadTree};
+        for(KDPoint p : points)
+            for(SpatialQuerySolver tree : trees)
+                ((SpatialDictionary) tree).insert(p);
+        for(int i = 0; i < 3; i++) // Duplicates, which KD-Trees keep.
+            for(SpatialQuerySolver tree : trees)
+                ((SpatialDictionary) tree).insert(new KDPoint(0, 0));
+        for(int round = 0; round < 2; round++){
+            for(SpatialQuerySolver tree : trees){
+                for(int i = 0; i < MAX_ITER / 4; i++){
+                    KDPoint anchor = new KDPoint(r.nextInt(34) - 17, r.nextInt(34) - 17);
+                    BigDecimal range = new BigDecimal(r.nextInt(16));
+                    assertEquals("A range count should count the points of the range query.",
+                            tree.range(anchor, range).size(), tree.rangeCount(anchor, range));
+                }
+                assertEquals("A range count around (0, 0) should not count any of its copies.",
+                        tree.range(new KDPoint(0, 0), new BigDecimal(3)).size(), tree.rangeCount(new KDPoint(0, 0), new BigDecimal(3)));
+            }
+            for(int i = 0; i < points.size() / 2; i++) // Subtree sizes must survive deletions too.
+                for(SpatialQuerySolver tree : trees)
+                    ((SpatialDictionary) tree).delete(points.get(i));
+        }
+    }
+
+    @Test
+    public void testRangeStreamsMatchRange() {
+        kdTree = new KDTree(2);
+        prQuadTree = new PRQuadTree(5, 2);
+        for(int x = -16; x < 16; x++)
+            for(int y = -16; y < 16; y++){
+                kdTree.insert(new KDPoint(x, y));
+                prQuadTree.insert(new KDPoint(x, y));
+            }
+        for(SpatialQuerySolver tree : new SpatialQuerySolver[]{kdTree, prQuadTree}){
+            for(int i = 0; i < MAX_ITER / 4; i++){
+                KDPoint anchor = new KDPoint(r.nextInt(32) - 16, r.nextInt(32) - 16);
+                BigDecimal range = new BigDecimal(r.nextInt(12));
+                Set<KDPoint> expected = new HashSet<>(tree.range(anchor, range));
+                List<KDPoint> sequential = tree.rangeStream(anchor, range).collect(Collectors.toList());
+                assertEquals("A range stream should hold every point of the range query once.", expected.size(), sequential.size());
+                assertEquals("A range stream should hold the points of the range query.", expected, new HashSet<>(sequential));
+                List<KDPoint> parallel = tree.rangeStream(anchor, range).parallel().collect(Collectors.toList());
+                assertEquals("A parallel range stream should hold every point of the range query once.", expected.size(), parallel.size());
+                assertEquals("A parallel range stream should hold the points of the range query.", expected, new HashSet<>(parallel));
+                Collection<KDPoint> limited = tree.range(anchor, range, 5);
+                assertEquals("A limited range query should stop at its limit.", Math.min(5, expected.size()), limited.size());
+                assertTrue("A limited range query should only return points of the range query.", expected.containsAll(limited));
+                Iterator<KDPoint> it = tree.rangeIterator(anchor, range);
+                int n = 0;
+                for(; it.hasNext(); n++)
+                    assertTrue("A range iterator should only return points of the range query.", expected.contains(it.next()));
+                assertEquals("A range iterator should go over the whole range query.", expected.size(), n);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedTreesMatchSavedTrees() throws IOException {
+        Path dir = Files.createTempDirectory("spatial");
+        try {
+            kdTree = new KDTree(3);
+            prQuadTree = new PRQuadTree(5, 3, 3);
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < 5 * MAX_ITER; i++){
+                KDPoint p = getRandomPoint(3);
+                points.add(p);
+                kdTree.insert(p);
+                prQuadTree.insert(p);
+            }
+            kdTree.save(dir.resolve("kd.bin"));
+            prQuadTree.save(dir.resolve("pr.bin"));
+            MappedKDTree mappedKD = MappedKDTree.open(dir.resolve("kd.bin"));
+            MappedPRQuadTree mappedPR = MappedPRQuadTree.open(dir.resolve("pr.bin"));
+            assertEquals("A mapped KD-Tree should hold all the points of the saved one.", kdTree.count(), mappedKD.count());
+            assertEquals("A mapped PR-Tree should hold all the points of the saved one.", prQuadTree.count(), mappedPR.count());
+            assertEquals("A mapped PR-Tree should keep the shape of the saved one.", prQuadTree.height(), mappedPR.height());
+            for(int i = 0; i < MAX_ITER / 4; i++){
+                KDPoint anchor = i % 2 == 0 ? points.get(i) : getRandomPoint(3);
+                BoundedPriorityQueue<KDPoint> expected = kdTree.kNearestNeighbors(5, anchor),
+                        fromKD = mappedKD.kNearestNeighbors(5, anchor), fromPR = mappedPR.kNearestNeighbors(5, anchor);
+                while(!expected.isEmpty()){
+                    KDPoint next = expected.dequeue();
+                    assertEquals("The k-NN of a mapped KD-Tree should match those of the saved one.", next, fromKD.dequeue());
+                    assertEquals("The k-NN of a mapped PR-Tree should match those of the saved one.", next, fromPR.dequeue());
+                }
+                BigDecimal range = new BigDecimal(r.nextInt(6));
+                Set<KDPoint> inRange = new HashSet<>(kdTree.range(anchor, range));
+                assertEquals("The range queries of a mapped KD-Tree should match those of the saved one.",
+                        inRange, new HashSet<>(mappedKD.range(anchor, range)));
+                assertEquals("The range queries of a mapped PR-Tree should match those of the saved one.",
+                        inRange, new HashSet<>(mappedPR.range(anchor, range)));
+            }
+            Files.write(dir.resolve("garbage.bin"), new byte[64]);
+            try {
+                MappedKDTree.open(dir.resolve("garbage.bin"));
+                fail("Opening a file that was not written by save() should fail.");
+            } catch(IOException expected) {
+                // Expected.
+            }
+        } finally {
+            for(String name : new String[]{"kd.bin", "pr.bin", "garbage.bin"})
+                Files.deleteIfExists(dir.resolve(name));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
     public void testKDTreeViz(){
         /**
          * This test just gives an example for how to generate a KD-tree visualization using compactVizTree.
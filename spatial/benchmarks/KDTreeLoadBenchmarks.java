@@ -0,0 +1,116 @@
+package projects.spatial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.trees.KDTree;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>{@link KDTreeLoadBenchmarks} measures how the cost of loading and emptying a {@link KDTree} one point at a time
+ * grows with the number of points. Every insertion and deletion only touches the nodes on a single root-to-leaf path,
+ * so over random points, loading n of them takes time in O(n log n): going from 100,000 to 1,000,000 points should
+ * multiply the time of a run by a little more than 10, not by 100.</p>
+ *
+ * <p>The benchmarks need {@code jmh-core} on the classpath and the {@code jmh-generator-annprocess} annotation
+ * processor at compile time.</p>
+ *
+ * @see SpatialBenchmarks
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+public class KDTreeLoadBenchmarks {
+
+    /**
+     * The points of a run, and a tree already holding all of them.
+     */
+    @State(Scope.Benchmark)
+    public static class Points {
+
+        @Param({"10000", "100000", "1000000"})
+        public int n;
+
+        @Param({"2", "3"})
+        public int dims;
+
+        KDPoint[] points;
+        KDTree loaded;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            Random random = new Random(47);
+            points = new KDPoint[n];
+            for (int i = 0; i < n; i++) {
+                double[] coords = new double[dims];
+                for (int d = 0; d < dims; d++)
+                    coords[d] = random.nextDouble();
+                points[i] = new KDPoint(coords);
+            }
+        }
+
+        /* Deleting empties the tree, so every measured deletion run needs a fresh one. */
+        @Setup(Level.Iteration)
+        public void load() {
+            loaded = new KDTree(dims);
+            for (KDPoint p : points)
+                loaded.insert(p);
+        }
+    }
+
+    /**
+     * Inserts all n points into an empty tree.
+     * @param s The points.
+     * @return The loaded tree, so that the JIT cannot drop the insertions.
+     */
+    @Benchmark
+    public KDTree insertAll(Points s) {
+        KDTree tree = new KDTree(s.dims);
+        for (KDPoint p : s.points)
+            tree.insert(p);
+        return tree;
+    }
+
+    /**
+     * Deletes all n points from a loaded tree, in the order they were inserted.
+     * @param s The points.
+     * @return The emptied tree, so that the JIT cannot drop the deletions.
+     */
+    @Benchmark
+    public KDTree deleteAll(Points s) {
+        KDTree tree = s.loaded;
+        for (KDPoint p : s.points)
+            tree.delete(p);
+        return tree;
+    }
+
+    /**
+     * Runs both benchmarks over every size.
+     * @param args Ignored.
+     * @throws RunnerException if JMH fails to run the benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(KDTreeLoadBenchmarks.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,258 @@
+package projects.spatial.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.trees.KDTree;
+import projects.spatial.trees.PRQuadTree;
+import projects.spatial.trees.SpatialDictionary;
+import projects.spatial.trees.SpatialQuerySolver;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * <p>{@link SpatialBenchmarks} measures the throughput of {@link KDTree} and {@link PRQuadTree} on the four operations
+ * that matter to their users: insertion, search, range queries and <em>k</em>-NN queries. Every benchmark runs over
+ * every combination of the {@link Param}s of {@link Workload}: the number of points, their dimensionality, the way they
+ * are distributed in space, the bucketing parameter of the {@link PRQuadTree} and the <em>k</em> of the <em>k</em>-NN
+ * queries. {@link #main(String[])} also attaches the {@link GCProfiler}, so that every result comes with the allocation
+ * rate of the benchmark ({@code gc.alloc.rate.norm} is the number of bytes allocated per operation), which is where
+ * regressions in the hot paths of {@link projects.spatial.nodes.KDTreeNode} and {@link projects.spatial.nodes.PRQuadNode}
+ * usually show up first.</p>
+ *
+ * <p>The benchmarks need {@code jmh-core} on the classpath and the {@code jmh-generator-annprocess} annotation
+ * processor at compile time. To run a subset of them, e.g. only the 2-D <em>k</em>-NN queries over clustered points,
+ * pass the usual JMH options to the runner instead of going through {@link #main(String[])}:</p>
+ *
+ * <pre>
+ *     java -cp ... org.openjdk.jmh.Main SpatialBenchmarks.kNearestNeighbors -p dims=2 -p distribution=CLUSTERED -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialBenchmarks {
+
+    /**
+     * The exponent of the side of the space spanned by the {@link PRQuadTree}s: every point of every workload has
+     * coordinates in [-{@value #HALF_SIDE}, {@value #HALF_SIDE}).
+     */
+    private static final int K = 11;
+    private static final double HALF_SIDE = 1000;
+
+    private static final int QUERIES = 1024; // A power of two, so that cycling through the queries is a mask.
+
+    /**
+     * How the points of a workload are spread over space.
+     */
+    public enum Distribution {
+
+        /**
+         * Uniformly at random over the whole space.
+         */
+        UNIFORM,
+
+        /**
+         * In a few dense Gaussian clusters, which makes {@link PRQuadTree}s deep and {@link KDTree} cells uneven.
+         */
+        CLUSTERED,
+
+        /**
+         * Uniformly at random, but inserted in increasing order of their first coordinate: the worst insertion order
+         * for an unbalanced {@link KDTree}.
+         */
+        SORTED;
+
+        private static final int CLUSTERS = 16;
+        private static final double SPREAD = HALF_SIDE / 50;
+
+        double[][] generate(int n, int dims, Random random) {
+            double[][] centers = new double[CLUSTERS][];
+            for (int c = 0; c < CLUSTERS; c++)
+                centers[c] = uniform(dims, random);
+            double[][] points = new double[n][];
+            for (int i = 0; i < n; i++) {
+                if (this == CLUSTERED) {
+                    double[] center = centers[random.nextInt(CLUSTERS)];
+                    points[i] = new double[dims];
+                    for (int d = 0; d < dims; d++) {
+                        double c = center[d] + random.nextGaussian() * SPREAD;
+                        points[i][d] = Math.max(-HALF_SIDE, Math.min(Math.nextDown(HALF_SIDE), c));
+                    }
+                } else {
+                    points[i] = uniform(dims, random);
+                }
+            }
+            if (this == SORTED)
+                Arrays.sort(points, Comparator.comparingDouble(p -> p[0]));
+            return points;
+        }
+
+        private static double[] uniform(int dims, Random random) {
+            double[] p = new double[dims];
+            for (int d = 0; d < dims; d++)
+                p[d] = (2 * random.nextDouble() - 1) * HALF_SIDE;
+            return p;
+        }
+    }
+
+    /**
+     * The kind of tree being measured.
+     */
+    public enum Index {
+        KD, PR
+    }
+
+    /**
+     * The shared state of a benchmark: the points, a tree already holding all of them, and the anchors of the queries.
+     */
+    @State(Scope.Benchmark)
+    public static class Workload {
+
+        @Param({"KD", "PR"})
+        public Index index;
+
+        @Param({"10000", "100000"})
+        public int n;
+
+        @Param({"2", "3", "8"})
+        public int dims;
+
+        @Param({"UNIFORM", "CLUSTERED", "SORTED"})
+        public Distribution distribution;
+
+        /**
+         * The bucketing parameter of the {@link PRQuadTree}s; {@link KDTree}s have no buckets, and ignore it.
+         */
+        @Param({"1", "8"})
+        public int bucketingParam;
+
+        @Param({"1", "16"})
+        public int k;
+
+        KDPoint[] points;
+        KDPoint[] anchors; // Half of them are stored points, the other half are fresh ones.
+        BigDecimal range;
+        SpatialDictionary tree;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(47);
+            points = toKDPoints(distribution.generate(n, dims, random));
+            KDPoint[] fresh = toKDPoints(distribution.generate(QUERIES / 2, dims, random));
+            anchors = new KDPoint[QUERIES];
+            for (int i = 0; i < QUERIES; i++)
+                anchors[i] = i % 2 == 0 ? points[random.nextInt(n)] : fresh[i / 2];
+            /*
+             * The radius of the ball that holds k points on average, had they been uniformly spread: the range
+             * queries then report about as many points as the k-NN queries.
+             */
+            double volume = Math.pow(2 * HALF_SIDE, dims) * k / n;
+            double unitBall = Math.pow(Math.PI, dims / 2.0) / gamma(dims / 2.0 + 1);
+            range = BigDecimal.valueOf(Math.pow(volume / unitBall, 1.0 / dims));
+            tree = load();
+        }
+
+        SpatialDictionary load() {
+            SpatialDictionary t = index == Index.KD ? new KDTree(dims) : new PRQuadTree(K, bucketingParam, dims);
+            for (KDPoint p : points)
+                t.insert(p);
+            return t;
+        }
+
+        SpatialQuerySolver solver() {
+            return (SpatialQuerySolver) tree;
+        }
+
+        KDPoint nextAnchor() {
+            return anchors[next++ & (QUERIES - 1)];
+        }
+
+        private static KDPoint[] toKDPoints(double[][] coords) {
+            KDPoint[] pts = new KDPoint[coords.length];
+            for (int i = 0; i < coords.length; i++)
+                pts[i] = new KDPoint(coords[i]);
+            return pts;
+        }
+
+        /* Gamma at the positive multiples of 1/2, which is all that the volume of a ball needs. */
+        private static double gamma(double x) {
+            if (x == 1) return 1;
+            if (x == 0.5) return Math.sqrt(Math.PI);
+            return (x - 1) * gamma(x - 1);
+        }
+    }
+
+    /**
+     * Inserts all the points of the workload into an empty tree. One operation is n insertions.
+     * @param w The workload.
+     * @return The loaded tree, so that the JIT cannot drop the insertions.
+     */
+    @Benchmark
+    public SpatialDictionary insert(Workload w) {
+        return w.load();
+    }
+
+    /**
+     * Looks up a single point, which is stored in the tree half of the time.
+     * @param w The workload.
+     * @return Whether the point was found.
+     */
+    @Benchmark
+    public boolean search(Workload w) {
+        return w.tree.search(w.nextAnchor());
+    }
+
+    /**
+     * Runs a single range query, whose radius is chosen so that it reports about k points on uniform data.
+     * @param w The workload.
+     * @param bh Consumes the points reported.
+     */
+    @Benchmark
+    public void range(Workload w, Blackhole bh) {
+        bh.consume(w.solver().range(w.nextAnchor(), w.range));
+    }
+
+    /**
+     * Runs a single <em>k</em>-NN query.
+     * @param w The workload.
+     * @param bh Consumes the queue of neighbors.
+     */
+    @Benchmark
+    public void kNearestNeighbors(Workload w, Blackhole bh) {
+        bh.consume(w.solver().kNearestNeighbors(w.k, w.nextAnchor()));
+    }
+
+    /**
+     * Runs every benchmark over every workload, and reports the allocation rate of each along with its throughput.
+     * @param args Ignored.
+     * @throws RunnerException if JMH fails to run the benchmarks.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SpatialBenchmarks.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,142 @@
+package projects.spatial.kdpoint;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/** <p>{@link DoubleKDPoint} is a primitive-backed counterpart of {@link KDPoint}. Its coordinates are stored
+ * in a single {@code double[]}, so that squared Euclidean distances can be computed <b>without allocating</b> a
+ * single temporary object, which is not possible with the {@link BigDecimal} arithmetic of {@link KDPoint}.</p>
+ *
+ * <p>Unlike {@link KDPoint}, a {@link DoubleKDPoint} is <b>immutable</b>: its coordinates are copied in on
+ * construction and never exposed, so instances can be freely shared between the spatial trees and their clients.
+ * The precision is that of {@code double}; {@link #toKDPoint()} and {@link #DoubleKDPoint(KDPoint)} convert
+ * between the two representations.</p>
+ *
+ * @see KDPoint
+ */
+public final class DoubleKDPoint {
+
+	private final double[] coords;
+
+	/**
+	 * Initialize a {@link DoubleKDPoint} with some double values. Implicitly sets the {@link DoubleKDPoint}'s
+	 * dimensionality.
+	 * @param vals The values with which to initialize the {@link DoubleKDPoint}.
+	 * @throws RuntimeException if no values are provided.
+	 */
+	public DoubleKDPoint(double... vals){
+		if(vals.length == 0)
+			throw new RuntimeException("All KDPoints need to have a positive dimensionality.");
+		coords = new double[vals.length];
+		for(int i = 0; i < vals.length; i++)
+			coords[i] = vals[i] + 0.0; // Folds -0.0 into 0.0, keeping equals() consistent with KDPoint.
+	}
+
+	/**
+	 * Initialize a {@link DoubleKDPoint} from an already existing {@link KDPoint}. Every coordinate is
+	 * converted through {@link BigDecimal#doubleValue()} exactly once.
+	 * @param p The {@link KDPoint} on which we will base the creation of this.
+	 */
+	public DoubleKDPoint(KDPoint p){
+		coords = new double[p.coords.length];
+		for(int i = 0; i < coords.length; i++)
+			coords[i] = p.coords[i].doubleValue();
+	}
+
+	/**
+	 * Query the dimensionality of this.
+	 * @return The number of coordinates of this.
+	 */
+	public int dims(){
+		return coords.length;
+	}
+
+	/**
+	 * Return a single coordinate of this.
+	 * @param dim The dimension to retrieve, starting from 0.
+	 * @return The coordinate of this at dimension {@code dim}.
+	 */
+	public double coord(int dim){
+		return coords[dim];
+	}
+
+	/**
+	 * Return a copy of the coordinates of this.
+	 * @return A freshly allocated array with the coordinates of this.
+	 */
+	public double[] toArray(){
+		return Arrays.copyOf(coords, coords.length);
+	}
+
+	/**
+	 * Convert this into a {@link KDPoint} with the same coordinates.
+	 * @return A new {@link KDPoint}, built through {@link KDPoint#KDPoint(double...)}.
+	 */
+	public KDPoint toKDPoint(){
+		return new KDPoint(coords);
+	}
+
+	/**
+	 * Calculate the <b><u>squared</u> Euclidean distance</b> between this and p. No objects are allocated.
+	 * @param p The {@link DoubleKDPoint} to calculate the distance to.
+	 * @return The <b><u>squared</u> Euclidean distance</b> between the two {@link DoubleKDPoint}s.
+	 * @throws RuntimeException if the dimensionality of the two points is different.
+	 */
+	public double distanceSquared(DoubleKDPoint p) throws RuntimeException{
+		return distanceSquared(coords, p.coords);
+	}
+
+	/**
+	 * A static version of {@link #distanceSquared(DoubleKDPoint)}.
+	 * @param p1 One of the two {@link DoubleKDPoint}s to calculate the distance of.
+	 * @param p2 One of the two {@link DoubleKDPoint}s to calculate the distance of.
+	 * @return The <b><u>squared</u> Euclidean distance</b> between p1 and p2.
+	 */
+	public static double distanceSquared(DoubleKDPoint p1, DoubleKDPoint p2){
+		return distanceSquared(p1.coords, p2.coords);
+	}
+
+	/**
+	 * The allocation-free kernel behind every distance computation of this class, exposed for code that keeps
+	 * its coordinates in raw arrays.
+	 * @param c1 The coordinates of the first point.
+	 * @param c2 The coordinates of the second point.
+	 * @return The <b><u>squared</u> Euclidean distance</b> between the two points.
+	 * @throws RuntimeException if the two arrays have different lengths.
+	 */
+	public static double distanceSquared(double[] c1, double[] c2){
+		if(c1.length != c2.length)
+			throw new RuntimeException("Cannot calculate the Euclidean Distance between KDPoints of different dimensionalities.");
+		double sum = 0;
+		for(int i = 0; i < c1.length; i++){
+			double diff = c1[i] - c2[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(coords);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(o == null)
+			return false;
+		if(o.getClass() != this.getClass())
+			return false;
+		return Arrays.equals(coords, ((DoubleKDPoint)o).coords);
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder retVal = new StringBuilder("A DoubleKDPoint with coordinates: (");
+		for(int i = 0; i < coords.length; i++){
+			retVal.append(coords[i]);
+			if(i < coords.length - 1)
+				retVal.append(", ");
+		}
+		return retVal +")";
+	}
+}
@@ -245,4 +245,23 @@ public class KDPointTests {
 
 
 
+	@Test
+	public void testDoubleKDPointDistanceMatchesKDPoint(){
+		for(int i = 0; i < MAX_ITER; i++){
+			int dim = 1 + r.nextInt(10);
+			double[] c1 = new double[dim], c2 = new double[dim];
+			for(int j = 0; j < dim; j++){
+				c1[j] = (2 * r.nextInt(2) - 1) * 100 * r.nextDouble();
+				c2[j] = (2 * r.nextInt(2) - 1) * 100 * r.nextDouble();
+			}
+			KDPoint p1 = new KDPoint(c1), p2 = new KDPoint(c2);
+			DoubleKDPoint d1 = new DoubleKDPoint(p1), d2 = new DoubleKDPoint(c2);
+			assertEquals("The primitive squared distance of DoubleKDPoint pair #" + i + " disagrees with the one of KDPoint.",
+					distanceSquared(p1, p2).doubleValue(), d1.distanceSquared(d2), 1e-9);
+			assertEquals("Converting DoubleKDPoint #" + i + " back to a KDPoint did not recover the original point.",
+					p1, d1.toKDPoint());
+		}
+		assertEquals("-0.0 and 0.0 should be considered the same coordinate.", new DoubleKDPoint(0, 0), new DoubleKDPoint(-0.0, 0));
+	}
+
 }
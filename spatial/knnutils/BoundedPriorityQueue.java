@@ -2,11 +2,11 @@ package projects.spatial.knnutils;
 
 import projects.UnimplementedMethodException;
 
-import javax.print.attribute.standard.NumberOfDocuments;
 import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 
 /**
@@ -15,7 +15,16 @@ import java.util.Iterator;
  * its length is not expanded, but rather the maximum priority element is ejected
  * (which could be the element just attempted to be enqueued).</p>
  *
- * <p><b>YOU ***** MUST ***** IMPLEMENT THIS CLASS!</b></p>
+ * <p>Internally, the elements are kept in an array-based <b>max</b>-heap, so that the element to eject is always at
+ * the root: {@link #enqueue(Object, double) enqueue} costs O(log k) and {@link #last()} O(1). The ascending order that
+ * {@link #first()}, {@link #dequeue()} and {@link #iterator()} need is produced lazily, by sorting the heap the first
+ * time it is asked for after an enqueue. A descending array is itself a valid max-heap, so sorting never breaks the
+ * heap and a kNN query, which enqueues many times and then drains once, sorts exactly once. Ties are broken by
+ * insertion order, exactly like {@link PriorityQueueNode#compareTo(PriorityQueueNode)} does.</p>
+ *
+ * <p>Priorities are compared as {@code double}s first. Those given as {@link BigDecimal}s are also kept exactly, and
+ * consulted whenever two {@code double}s tie, so {@link BigDecimal} priorities that only differ beyond double
+ * precision are still ordered exactly, not by insertion order.</p>
  *
  * @author  <a href = "https://github.com/JasonFil/">Jason Filippou</a>
  *
@@ -28,20 +37,100 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T>{
 	/* *************  PLACE YOUR PRIVATE FIELDS AND METHODS HERE: ************ */
 	/* *********************************************************************** */
 
+	private static final int INITIAL_LENGTH = 16;
+
 	private int capacity = 0;
- 	private ArrayList<Node> arr;
- 	private int checkChange;
+	private Object[] elements;
+	private double[] priorities;
+	private BigDecimal[] exactPriorities; // Allocated by the first BigDecimal enqueue; null slots hold doubles only.
+	private int[] insertionOrders;
+	private int size;
+	private int insertions;
+	private boolean sorted; // True iff the heap array is sorted in descending order.
+	private int checkChange;
+
+	/* Does the slot i hold a "larger" element than the slot j, in PriorityQueueNode terms? */
+	private boolean greater(int i, int j) {
+		int c = compare(priorities[i], exactAt(i), priorities[j], exactAt(j));
+		if (c != 0)
+			return c > 0;
+		return insertionOrders[i] > insertionOrders[j];
+	}
+
+	private BigDecimal exactAt(int i) {
+		return exactPriorities == null ? null : exactPriorities[i];
+	}
+
+	/* BigDecimal.doubleValue() never reverses an order, so two priorities whose doubles differ compare the same way
+	 * exactly. Only ties between doubles need a look at the exact values, when both are known. */
+	private static int compare(double a, BigDecimal exactA, double b, BigDecimal exactB) {
+		if (a != b)
+			return a < b ? -1 : 1;
+		if (exactA == null && exactB == null)
+			return 0;
+		return (exactA == null ? new BigDecimal(a) : exactA).compareTo(exactB == null ? new BigDecimal(b) : exactB);
+	}
+
+	private void swap(int i, int j) {
+		Object e = elements[i]; elements[i] = elements[j]; elements[j] = e;
+		double p = priorities[i]; priorities[i] = priorities[j]; priorities[j] = p;
+		int o = insertionOrders[i]; insertionOrders[i] = insertionOrders[j]; insertionOrders[j] = o;
+		if (exactPriorities != null) {
+			BigDecimal x = exactPriorities[i]; exactPriorities[i] = exactPriorities[j]; exactPriorities[j] = x;
+		}
+	}
 
- 	private class Node {
- 		private T data;
- 		private BigDecimal priority;
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!greater(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
 
- 		public Node (T data, BigDecimal priority) {
- 			this.data = data;
- 			this.priority = priority;
+	private void siftDown(int i, int end) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= end)
+				break;
+			if (child + 1 < end && greater(child + 1, child))
+				child++;
+			if (!greater(child, i))
+				break;
+			swap(i, child);
+			i = child;
 		}
 	}
 
+	private void grow() {
+		int length = (int) Math.min(capacity, 2L * elements.length);
+		elements = Arrays.copyOf(elements, length);
+		priorities = Arrays.copyOf(priorities, length);
+		insertionOrders = Arrays.copyOf(insertionOrders, length);
+		if (exactPriorities != null)
+			exactPriorities = Arrays.copyOf(exactPriorities, length);
+	}
+
+	/* Heapsort into ascending order, then reverse: the result is descending, hence still a max-heap. */
+	private void ensureSorted() {
+		if (sorted)
+			return;
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		for (int i = 0, j = size - 1; i < j; i++, j--)
+			swap(i, j);
+		sorted = true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T elementAt(int i) {
+		return (T) elements[i];
+	}
+
 	/* *********************************************************************** */
 	/* ***************  IMPLEMENT THE FOLLOWING PUBLIC METHODS:  ************ */
 	/* *********************************************************************** */
@@ -54,7 +143,11 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T>{
 	public BoundedPriorityQueue(int size) throws IllegalArgumentException{
 		if (size <= 0) throw new IllegalArgumentException();
 		capacity = size;
-		arr = new ArrayList<>();
+		int length = Math.min(size, INITIAL_LENGTH);
+		elements = new Object[length];
+		priorities = new double[length];
+		insertionOrders = new int[length];
+		sorted = true;
 	}
 
 	/**
@@ -63,53 +156,97 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T>{
 	 * appropriate location in the sequence. On the other hand, if the object is at capacity, the element is
 	 * inserted in its appropriate spot in the sequence (if such a spot exists, based on its priority) and
 	 * the maximum priority element is ejected from the structure.</p>
-	 * 
+	 *
+	 * <p>The priority is kept exactly: it is ordered against the other {@link BigDecimal} priorities of the queue
+	 * exactly, even when they only differ beyond double precision.</p>
+	 *
 	 * @param element The element to insert in the queue.
 	 * @param priority The priority of the element to insert in the queue.
 	 */
 	@Override
 	public void enqueue(T element, BigDecimal priority) {
-		checkChange++;
-		insertNode(element, priority);
-		if (arr.size() > capacity) arr.remove(arr.size() - 1);
+		if (exactPriorities == null)
+			exactPriorities = new BigDecimal[elements.length];
+		enqueue(element, priority.doubleValue(), priority);
 	}
 
-	private void insertNode(T element, BigDecimal priority) {
-		int index = -1;
-		for (int i = 0; i < arr.size(); i++) {
-			if (arr.get(i).priority.compareTo(priority) > 0) {
-				index = i;
-				break;
-			}
+	/**
+	 * Primitive counterpart of {@link #enqueue(Object, BigDecimal)}, used by the spatial trees so that
+	 * their kNN queries do not have to box every candidate distance into a {@link BigDecimal}. Priorities
+	 * are compared as {@code double}s; ties are still broken by insertion order. O(log k).
+	 * @param element The element to insert in the queue.
+	 * @param priority The priority of the element to insert in the queue.
+	 * @see projects.spatial.kdpoint.DoubleKDPoint#distanceSquared(projects.spatial.kdpoint.DoubleKDPoint)
+	 */
+	public void enqueue(T element, double priority) {
+		enqueue(element, priority, null);
+	}
+
+	private void enqueue(T element, double priority, BigDecimal exact) {
+		checkChange++;
+		int order = insertions++;
+		if (size < capacity) {
+			if (size == elements.length)
+				grow();
+			elements[size] = element;
+			priorities[size] = priority;
+			if (exactPriorities != null)
+				exactPriorities[size] = exact;
+			insertionOrders[size] = order;
+			siftUp(size++);
+		} else {
+			// The newcomer was inserted last, so it loses every tie: it only gets in by beating the root outright.
+			if (!(compare(priority, exact, priorities[0], exactAt(0)) < 0))
+				return;
+			elements[0] = element;
+			priorities[0] = priority;
+			if (exactPriorities != null)
+				exactPriorities[0] = exact;
+			insertionOrders[0] = order;
+			siftDown(0, size);
 		}
-		if (index == -1) index = arr.size();
-		arr.add(index, new Node(element, priority));
+		sorted = size <= 1;
 	}
 
 	@Override
 	public T dequeue() {
+		if (size == 0) return null;
 		checkChange++;
-		Node n = arr.remove(0);
-		return n.data;
+		ensureSorted();
+		T data = elementAt(--size);
+		elements[size] = null;
+		if (exactPriorities != null)
+			exactPriorities[size] = null;
+		return data;
 	}
 
 	@Override
 	public T first() {
-		if (arr.size() == 0) return null;
-		return arr.get(0).data;
+		if (size == 0) return null;
+		ensureSorted();
+		return elementAt(size - 1);
 	}
-	
+
 	/**
-	 * Returns the last element in the queue. Useful for cases where we want to 
-	 * compare the priorities of a given quantity with the maximum priority of 
-	 * our stored quantities. In a minheap-based implementation of any {@link PriorityQueue},
-	 * this operation would scan O(n) nodes and O(nlogn) links. In an array-based implementation,
-	 * it takes constant time.
+	 * Returns the last element in the queue. Useful for cases where we want to
+	 * compare the priorities of a given quantity with the maximum priority of
+	 * our stored quantities. Since the elements are kept in a max-heap, this operation takes constant time.
 	 * @return The maximum priority element in our queue, or null if the queue is empty.
 	 */
 	public T last() {
-		if (arr.size() == 0) return null;
-		return arr.get(arr.size() - 1).data;
+		if (size == 0) return null;
+		return elementAt(0);
+	}
+
+	/**
+	 * Returns the priority that an element has to <b>strictly</b> beat in order to be kept by the queue. While the
+	 * queue still has room this is {@link Double#POSITIVE_INFINITY}; once it is at capacity, it is the priority of
+	 * {@link #last()}. Branch-and-bound searches use it to prune subtrees that cannot contribute any element.
+	 * @return The admission threshold of the queue.
+	 */
+	public double threshold() {
+		if (size < capacity) return Double.POSITIVE_INFINITY;
+		return priorities[0];
 	}
 
 	/**
@@ -119,51 +256,58 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T>{
 	 */
 	public boolean contains(T element)
 	{
-		for (Node n : arr) {
-			if (n.data.equals(element))
+		for (int i = 0; i < size; i++) {
+			if (elements[i].equals(element))
 				return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Removes every element from the queue, keeping its capacity and its already allocated storage, so that the same
+	 * instance can serve as scratch space for a long series of queries without allocating.
+	 */
+	public void clear() {
+		checkChange++;
+		Arrays.fill(elements, 0, size, null);
+		if (exactPriorities != null)
+			Arrays.fill(exactPriorities, 0, size, null);
+		size = 0;
+		insertions = 0;
+		sorted = true;
+	}
+
 	@Override
 	public int size() {
-		return arr.size();
+		return size;
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return arr.size() == 0;
+		return size == 0;
 	}
 
 	@Override
 	public Iterator<T> iterator() {
-		return new myIter<T>(this.arr);
+		ensureSorted();
+		return new myIter();
 	}
 
-	private class myIter<T> implements Iterator<T> {
+	private class myIter implements Iterator<T> {
 
-		private ArrayList<T> array;
-		private int curr = 0;
-
-		private myIter(ArrayList<Node> arr) {
-			array = new ArrayList<>();
-			for (Node n : arr) {
-				array.add((T) n.data);
-			}
-			checkChange = 0;
-		}
+		private int curr = size - 1;
+		private final int expectedChange = checkChange;
 
 		@Override
 		public boolean hasNext() {
-			return curr < array.size();
+			return curr >= 0;
 		}
 
 		@Override
 		public T next() {
-			if (checkChange != 0) throw new ConcurrentModificationException();
-			curr++;
-			return array.get(curr - 1);
+			if (checkChange != expectedChange) throw new ConcurrentModificationException();
+			if (curr < 0) throw new NoSuchElementException();
+			return elementAt(curr--);
 		}
 	}
 
@@ -0,0 +1,247 @@
+package projects.spatial.knnutils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**<p>{@link QueryMetrics} aggregates the {@link QueryStats} of many queries into histograms, one per kind of query
+ * and per counter, so that one can tell not only how much work queries do on average, but also how the slow ones
+ * differ from the rest. A tree that is given a {@link QueryMetrics} fills in a fresh {@link QueryStats} for every
+ * query it answers, and {@link #record(Query, QueryStats) records} it here. Recording is thread-safe and lock-free, so
+ * a single instance may be shared by several trees and threads.</p>
+ *
+ * <p>Histograms have one bucket per power of two, so they take constant space whatever the number of queries, and
+ * locate any value within a factor of 2. {@link #scrape(Appendable)} exposes all of them in the text format of
+ * Prometheus.</p>
+ *
+ * <p>Instrumentation is off unless the JVM is started with {@code -Dprojects.spatial.metrics=true}: see
+ * {@link #ENABLED}.</p>
+ *
+ * @see QueryStats
+ */
+public class QueryMetrics {
+
+	/**
+	 * Whether trees report their queries to their {@link QueryMetrics} at all. This is read once, from the
+	 * {@code projects.spatial.metrics} system property, and is a {@code static final} field, so the JIT compiler treats
+	 * it as a constant: when it is {@code false}, the instrumented branches of the queries are dead code, and are
+	 * compiled away along with the cost of creating and filling in {@link QueryStats}.
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("projects.spatial.metrics");
+
+	/**
+	 * The kinds of queries that are recorded separately.
+	 */
+	public enum Query {
+		NEAREST_NEIGHBOR("nn"), K_NEAREST_NEIGHBORS("knn"), RANGE("range");
+
+		private final String label;
+
+		Query(String label){
+			this.label = label;
+		}
+	}
+
+	/**
+	 * The counters of {@link QueryStats} that are aggregated.
+	 */
+	public enum Metric {
+		NODES_VISITED("nodes_visited"), SUBTREES_PRUNED("subtrees_pruned"),
+		DISTANCE_COMPUTATIONS("distance_computations"), MAX_DEPTH("max_depth"),
+		ELAPSED_NANOS("elapsed_nanoseconds");
+
+		private final String suffix;
+
+		Metric(String suffix){
+			this.suffix = suffix;
+		}
+	}
+
+	private final String name;
+	private final Histogram[][] histograms = new Histogram[Query.values().length][Metric.values().length];
+
+	/**
+	 * Creates an empty set of histograms.
+	 * @param name The prefix of the names of the histograms when they are {@link #scrape(Appendable) scraped}, e.g.
+	 *             {@code "kdtree"}. It should only contain letters, digits and underscores.
+	 */
+	public QueryMetrics(String name){
+		this.name = name;
+		for(Histogram[] row : histograms){
+			for(int m = 0; m < row.length; m++)
+				row[m] = new Histogram();
+		}
+	}
+
+	/**
+	 * Adds the counters of a single query to the histograms of its kind.
+	 * @param query The kind of the query.
+	 * @param stats The counters filled in by the query.
+	 */
+	public void record(Query query, QueryStats stats){
+		Histogram[] row = histograms[query.ordinal()];
+		row[Metric.NODES_VISITED.ordinal()].record(stats.nodesVisited);
+		row[Metric.SUBTREES_PRUNED.ordinal()].record(stats.subtreesPruned);
+		row[Metric.DISTANCE_COMPUTATIONS.ordinal()].record(stats.distanceComputations);
+		row[Metric.MAX_DEPTH.ordinal()].record(stats.maxDepth);
+		row[Metric.ELAPSED_NANOS.ordinal()].record(stats.elapsedNanos);
+	}
+
+	/**
+	 * Returns the histogram of one counter over one kind of query.
+	 * @param query The kind of query.
+	 * @param metric The counter.
+	 * @return The live {@link Histogram}, which keeps changing as queries are recorded.
+	 */
+	public Histogram histogram(Query query, Metric metric){
+		return histograms[query.ordinal()][metric.ordinal()];
+	}
+
+	/**
+	 * Writes all the histograms to out, in the text exposition format of Prometheus: for every counter, a histogram
+	 * named after the prefix of this and the counter, with a {@code query} label that tells the kinds of queries apart.
+	 * Buckets are cumulative, and only written up to the highest one that holds a value.
+	 * @param out Where to write the histograms.
+	 * @throws IOException if out throws it.
+	 */
+	public void scrape(Appendable out) throws IOException{
+		for(Metric metric : Metric.values()){
+			String family = name + "_" + metric.suffix;
+			out.append("# TYPE ").append(family).append(" histogram\n");
+			for(Query query : Query.values()){
+				Histogram h = histogram(query, metric);
+				String labels = "{query=\"" + query.label + "\"";
+				long cumulative = 0;
+				for(int b = 0; b <= h.highestBucket(); b++){
+					cumulative += h.bucketCount(b);
+					out.append(family).append("_bucket").append(labels).append(",le=\"")
+							.append(Long.toString(Histogram.upperBound(b))).append("\"} ")
+							.append(Long.toString(cumulative)).append('\n');
+				}
+				out.append(family).append("_bucket").append(labels).append(",le=\"+Inf\"} ")
+						.append(Long.toString(h.count())).append('\n');
+				out.append(family).append("_sum").append(labels).append("} ").append(Long.toString(h.sum())).append('\n');
+				out.append(family).append("_count").append(labels).append("} ").append(Long.toString(h.count())).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Returns the output of {@link #scrape(Appendable)}.
+	 * @return All the histograms, in the text format of Prometheus.
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		try{
+			scrape(sb);
+		} catch(IOException e){
+			throw new UncheckedIOException(e); // A StringBuilder never throws.
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * <p>{@link Histogram} counts non-negative values in buckets of exponentially growing width: bucket 0 holds 0, and
+	 * bucket b &gt; 0 holds the values in [2^(b-1), 2^b). It also keeps the number and the sum of all values, so that
+	 * their mean is exact. Recording is thread-safe and lock-free.</p>
+	 */
+	public static final class Histogram {
+
+		/**
+		 * The number of buckets, enough for every non-negative {@code long}.
+		 */
+		public static final int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+		/**
+		 * Records a value. Negative values are recorded as 0.
+		 * @param value The value to record.
+		 */
+		public void record(long value){
+			if(value < 0)
+				value = 0;
+			buckets.incrementAndGet(bucketOf(value));
+			count.increment();
+			sum.add(value);
+		}
+
+		/**
+		 * Returns the bucket that holds value.
+		 * @param value A non-negative value.
+		 * @return The index of its bucket.
+		 */
+		public static int bucketOf(long value){
+			return 64 - Long.numberOfLeadingZeros(value);
+		}
+
+		/**
+		 * Returns the largest value held by a bucket.
+		 * @param bucket The index of a bucket.
+		 * @return The largest value that falls in it.
+		 */
+		public static long upperBound(int bucket){
+			return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+
+		/**
+		 * Returns the number of values recorded in a bucket.
+		 * @param bucket The index of a bucket.
+		 * @return The number of values that fell in it.
+		 */
+		public long bucketCount(int bucket){
+			return buckets.get(bucket);
+		}
+
+		/**
+		 * Returns the index of the highest bucket that holds a value, or 0 if there are none.
+		 * @return The highest non-empty bucket.
+		 */
+		public int highestBucket(){
+			for(int b = BUCKETS - 1; b > 0; b--){
+				if(buckets.get(b) > 0)
+					return b;
+			}
+			return 0;
+		}
+
+		/**
+		 * Returns the number of values recorded.
+		 * @return The number of values recorded.
+		 */
+		public long count(){
+			return count.sum();
+		}
+
+		/**
+		 * Returns the sum of the values recorded.
+		 * @return The sum of the values recorded.
+		 */
+		public long sum(){
+			return sum.sum();
+		}
+
+		/**
+		 * Estimates a quantile of the values recorded, by the upper bound of the bucket it falls in: the true
+		 * quantile is at least half of that.
+		 * @param q The quantile, between 0 and 1; e.g. 0.99 for the 99th percentile.
+		 * @return An upper bound on the quantile, or 0 if no value was recorded.
+		 * @throws RuntimeException if q is not between 0 and 1.
+		 */
+		public long quantile(double q){
+			if(!(q >= 0 && q <= 1))
+				throw new RuntimeException("The quantile provided, " + q + ", is invalid: Please provide a number between 0 and 1.");
+			long rank = (long) Math.ceil(q * count());
+			long seen = 0;
+			for(int b = 0; b < BUCKETS; b++){
+				seen += buckets.get(b);
+				if(seen >= rank && seen > 0)
+					return upperBound(b);
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package projects.spatial.knnutils;
+
+/**<p>{@link QueryStats} is a simple "struct-like" class that nearest neighbor queries fill in with information
+ * about the work they did. A caller that is interested in that information creates a fresh instance and hands it to
+ * the query; the query only ever <b>adds</b> to its counters, so one instance may also be used to accumulate totals
+ * over several queries.</p>
+ *
+ * <p>Filling in the counters costs a few increments per visited node, which is why queries only do it when they are
+ * handed an instance. Trees can also fill one in for every query on their own, and aggregate it into a
+ * {@link QueryMetrics}; see {@link QueryMetrics#ENABLED}.</p>
+ *
+ * @see QueryMetrics
+ * @see NNData
+ * @see BoundedPriorityQueue
+ */
+public class QueryStats {
+
+	/**
+	 * The number of tree nodes the query examined. For a branch-and-bound search over a reasonably balanced tree
+	 * this should be in the order of the logarithm of the number of stored points, not the number itself.
+	 * Declared public to facilitate access by client code.
+	 */
+	public int nodesVisited;
+
+	/**
+	 * The number of subtrees the query proved it did not need to visit, because they lie too far from the anchor.
+	 * Declared public to facilitate access by client code.
+	 */
+	public int subtreesPruned;
+
+	/**
+	 * The number of distances between the anchor and a stored point that the query computed. Distances to the
+	 * regions spanned by subtrees are not included.
+	 * Declared public to facilitate access by client code.
+	 */
+	public int distanceComputations;
+
+	/**
+	 * The depth of the deepest node the query visited, the root being at depth 0.
+	 * Declared public to facilitate access by client code.
+	 */
+	public int maxDepth;
+
+	/**
+	 * The time the query took, in nanoseconds, as measured by {@link System#nanoTime()}.
+	 * Declared public to facilitate access by client code.
+	 */
+	public long elapsedNanos;
+
+	/**
+	 * The guarantee achieved by approximate queries: the distance of the k-th neighbor they reported is at most this
+	 * many times the distance of the true k-th nearest neighbor. Exact queries achieve 1, and a query whose visit budget
+	 * ran out before it could bound its error at all achieves {@link Double#POSITIVE_INFINITY}. Over several queries,
+	 * this keeps the worst (largest) of their bounds.
+	 * Declared public to facilitate access by client code.
+	 */
+	public double approximationBound = 1;
+
+	/**
+	 * Resets all counters to zero, and the approximation bound to 1, so that the instance can be reused for another
+	 * query.
+	 */
+	public void reset(){
+		nodesVisited = 0;
+		subtreesPruned = 0;
+		distanceComputations = 0;
+		maxDepth = 0;
+		elapsedNanos = 0;
+		approximationBound = 1;
+	}
+
+	/**
+	 * Records a visit to a node at the given depth.
+	 * @param depth The depth of the visited node, the root being at depth 0.
+	 */
+	public void visit(int depth){
+		nodesVisited++;
+		if(depth > maxDepth)
+			maxDepth = depth;
+	}
+}
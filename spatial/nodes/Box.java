@@ -0,0 +1,122 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.DoubleKDPoint;
+import projects.spatial.kdpoint.KDPoint;
+
+/**
+ * <p>{@link Box} is the axis-aligned, <b>INCLUSIVE</b> box of a box query: all the points whose coordinate at every
+ * dimension i lies between {@code lower.coords[i]} and {@code upper.coords[i]}. Like {@link RangeCheck}, it decides in
+ * {@code double} arithmetic, and only falls back to the exact {@link java.math.BigDecimal} coordinates when the
+ * primitive comparison is a tie: rounding to {@code double} never reverses a strict inequality, so any other outcome
+ * is already exact.</p>
+ *
+ * @see KDTreeNode#box(KDPoint, KDPoint, java.util.Collection, int, int)
+ * @see PRQuadNode#box(KDPoint, KDPoint, java.util.Collection)
+ */
+final class Box {
+
+    private final KDPoint lower, upper;
+    private final double[] lo, hi;
+
+    /**
+     * Creates the box between lower and upper.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates.
+     * @throws RuntimeException if the two corners do not have the same dimensionality.
+     */
+    Box(KDPoint lower, KDPoint upper) {
+        if (lower.coords.length != upper.coords.length)
+            throw new RuntimeException("The corners of a box must have the same dimensionality, but they have " +
+                    lower.coords.length + " and " + upper.coords.length + ".");
+        this.lower = lower;
+        this.upper = upper;
+        lo = new DoubleKDPoint(lower).toArray();
+        hi = new DoubleKDPoint(upper).toArray();
+    }
+
+    /**
+     * Reports whether p lies in the box.
+     * @param p A stored {@link KDPoint}.
+     * @param dp The primitive mirror of p.
+     * @return {@code true} iff every coordinate of p lies between those of the corners of the box, inclusive.
+     */
+    boolean contains(KDPoint p, DoubleKDPoint dp) {
+        for (int i = 0; i < lo.length; i++) {
+            double c = dp.coord(i);
+            if (c < lo[i] || c > hi[i])
+                return false;
+            if ((c == lo[i] && p.coords[i].compareTo(lower.coords[i]) < 0)
+                    || (c == hi[i] && p.coords[i].compareTo(upper.coords[i]) > 0))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports whether the box may hold points whose coordinate at dim is at least value.
+     * @param dim A dimension.
+     * @param value A coordinate at dim.
+     * @return {@code false} only if no point of the box has a coordinate of at least value at dim.
+     */
+    boolean reachesUpTo(int dim, double value) {
+        return hi[dim] >= value;
+    }
+
+    /**
+     * Reports whether the box may hold points whose coordinate at dim is at most value.
+     * @param dim A dimension.
+     * @param value A coordinate at dim.
+     * @return {@code false} only if no point of the box has a coordinate of at most value at dim.
+     */
+    boolean reachesDownTo(int dim, double value) {
+        return lo[dim] <= value;
+    }
+
+    /**
+     * Reports whether the box may share points with the region between qLower and qUpper.
+     * @param qLower The smallest coordinates of the region.
+     * @param qUpper The largest coordinates of the region.
+     * @return {@code false} only if the box and the region are disjoint.
+     */
+    boolean intersects(double[] qLower, double[] qUpper) {
+        for (int i = 0; i < lo.length; i++) {
+            if (hi[i] < qLower[i] || lo[i] > qUpper[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports whether the box surely covers the whole region between qLower and qUpper, boundary included.
+     * @param qLower The smallest coordinates of the region.
+     * @param qUpper The largest coordinates of the region.
+     * @return {@code true} only if every point of the region is in the box.
+     */
+    boolean covers(double[] qLower, double[] qUpper) {
+        for (int i = 0; i < lo.length; i++) {
+            if (!(lo[i] < qLower[i] && hi[i] > qUpper[i])) // Strict, so that rounding cannot matter.
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports whether the box holds no points at all, because lower exceeds upper at some dimension.
+     * @return {@code true} iff the box is empty.
+     */
+    boolean isEmpty() {
+        for (int i = 0; i < lo.length; i++) {
+            if (lower.coords[i].compareTo(upper.coords[i]) > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the dimensionality of the box.
+     * @return The number of coordinates of the corners of the box.
+     */
+    int dims() {
+        return lo.length;
+    }
+}
@@ -0,0 +1,187 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.DoubleKDPoint;
+import projects.spatial.kdpoint.KDPoint;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>{@link KDTreeBuilder} builds a <b>balanced</b> KD-Tree out of a batch of {@link KDPoint}s in one go, instead of
+ * inserting them one by one. At every level, the median at the current dimension is found with a linear-time
+ * selection (quickselect), not a sort, and becomes the root of the subtree; the two halves are then built
+ * recursively, optionally in parallel on a {@link ForkJoinPool}.</p>
+ *
+ * <p>The produced tree follows the same convention as {@link KDTreeNode#insert(KDPoint, int, int)}: the right subtree
+ * holds the {@link KDPoint}s whose coordinate at the splitting dimension is <b>smaller than or equal to</b> the one of
+ * the root, the left subtree those whose coordinate is strictly larger. Without duplicate coordinates, a tree over n
+ * points has a height of floor(log2(n)).</p>
+ *
+ * @see KDTreeNode#buildBalanced(Collection, int, ForkJoinPool)
+ */
+final class KDTreeBuilder {
+
+    /**
+     * Subtrees smaller than this are built on the calling thread; forking for them would cost more than it saves.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private final KDPoint[] points;
+    private final DoubleKDPoint[] doublePoints; // Parallel to points, swapped together.
+    private final int dims;
+
+    private KDTreeBuilder(Collection<KDPoint> in, int dims) {
+        this.dims = dims;
+        points = new KDPoint[in.size()];
+        doublePoints = new DoubleKDPoint[in.size()];
+        int i = 0;
+        for (KDPoint p : in) {
+            if (p.coords.length != dims)
+                throw new RuntimeException("Cannot insert a " + p.coords.length + "-D KDPoint into a " + dims + "-D tree.");
+            points[i] = new KDPoint(p); // KDPoints are mutable: the tree owns its own copies.
+            doublePoints[i++] = new DoubleKDPoint(p);
+        }
+    }
+
+    /* Takes the points of an existing subtree as they are: its nodes already own them. */
+    private KDTreeBuilder(KDTreeNode subtree, int size, int dims) {
+        this.dims = dims;
+        points = new KDPoint[size];
+        doublePoints = new DoubleKDPoint[size];
+        subtree.collect(points, doublePoints, 0);
+    }
+
+    /**
+     * Builds a balanced tree over the provided {@link KDPoint}s.
+     * @param in The {@link KDPoint}s to store. They are deep-copied.
+     * @param dims The dimensionality of the tree.
+     * @param pool The {@link ForkJoinPool} to build large subtrees on, or {@code null} to build on the calling thread.
+     * @return The root of the new tree, or {@code null} if there were no points.
+     */
+    static KDTreeNode build(Collection<KDPoint> in, int dims, ForkJoinPool pool) {
+        KDTreeBuilder builder = new KDTreeBuilder(in, dims);
+        if (pool == null || builder.points.length < PARALLEL_THRESHOLD)
+            return builder.build(0, builder.points.length, 0);
+        return pool.invoke(builder.new BuildTask(0, builder.points.length, 0));
+    }
+
+    /**
+     * Rebuilds an existing subtree into a balanced one over the same {@link KDPoint}s, which are moved over without
+     * being copied.
+     * @param subtree The root of the subtree to rebuild.
+     * @param size The number of nodes in the subtree.
+     * @param currDim The splitting dimension of the root of the subtree, which the new root will also split on.
+     * @param dims The dimensionality of the tree.
+     * @return The root of the balanced subtree.
+     */
+    static KDTreeNode rebuild(KDTreeNode subtree, int size, int currDim, int dims) {
+        KDTreeBuilder builder = new KDTreeBuilder(subtree, size, dims);
+        return builder.build(0, size, currDim);
+    }
+
+    private KDTreeNode build(int from, int to, int currDim) {
+        if (from >= to)
+            return null;
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        int split = partition(from, to, currDim);
+        KDTreeNode root = new KDTreeNode(points[split], doublePoints[split]);
+        root.setChildren(build(split + 1, to, nextDim), build(from, split, nextDim));
+        return root;
+    }
+
+    private final class BuildTask extends RecursiveTask<KDTreeNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, currDim;
+
+        private BuildTask(int from, int to, int currDim) {
+            this.from = from;
+            this.to = to;
+            this.currDim = currDim;
+        }
+
+        @Override
+        protected KDTreeNode compute() {
+            if (to - from < PARALLEL_THRESHOLD)
+                return build(from, to, currDim);
+            int nextDim = currDim + 1;
+            if (currDim == dims - 1) nextDim = 0;
+            int split = partition(from, to, currDim);
+            KDTreeNode root = new KDTreeNode(points[split], doublePoints[split]);
+            BuildTask leftTask = new BuildTask(split + 1, to, nextDim);
+            leftTask.fork();
+            KDTreeNode right = new BuildTask(from, split, nextDim).compute();
+            root.setChildren(leftTask.join(), right);
+            return root;
+        }
+    }
+
+    /**
+     * Selects the median of [from, to) at dim and rearranges the range so that it sits at the returned index, with
+     * everything smaller than or equal to it before it and everything strictly larger after it.
+     */
+    private int partition(int from, int to, int dim) {
+        int mid = from + (to - from) / 2;
+        select(from, to - 1, mid, dim);
+        // Quickselect leaves values equal to the median on both sides of it; ours go to the right subtree.
+        int equalEnd = mid + 1;
+        for (int i = mid + 1; i < to; i++) {
+            if (compare(i, mid, dim) == 0)
+                swap(i, equalEnd++);
+        }
+        swap(mid, equalEnd - 1);
+        return equalEnd - 1;
+    }
+
+    /*
+     * Quickselect with a median-of-three pivot and a three-way partition, so that runs of equal coordinates, common in
+     * clustered or gridded data, cannot degrade it to quadratic time. On return, slot k holds the k-th smallest value.
+     */
+    private void select(int lo, int hi, int k, int dim) {
+        while (hi > lo) {
+            int mid = lo + (hi - lo) / 2;
+            if (compare(mid, lo, dim) < 0) swap(mid, lo);
+            if (compare(hi, lo, dim) < 0) swap(hi, lo);
+            if (compare(hi, mid, dim) < 0) swap(hi, mid);
+            KDPoint pivot = points[mid];
+            double dPivot = doublePoints[mid].coord(dim);
+
+            int lt = lo, i = lo, gt = hi; // [lo, lt) < pivot, [lt, i) == pivot, (gt, hi] > pivot
+            while (i <= gt) {
+                int cmp = compare(i, dPivot, pivot, dim);
+                if (cmp < 0)
+                    swap(lt++, i++);
+                else if (cmp > 0)
+                    swap(i, gt--);
+                else
+                    i++;
+            }
+            if (k < lt)
+                hi = lt - 1;
+            else if (k > gt)
+                lo = gt + 1;
+            else
+                return;
+        }
+    }
+
+    /* Doubles order the same way as the exact values do, so BigDecimal is only consulted to break double ties. */
+    private int compare(int i, int j, int dim) {
+        return compare(i, doublePoints[j].coord(dim), points[j], dim);
+    }
+
+    private int compare(int i, double dValue, KDPoint value, int dim) {
+        double di = doublePoints[i].coord(dim);
+        if (di != dValue)
+            return di < dValue ? -1 : 1;
+        return points[i].coords[dim].compareTo(value.coords[dim]);
+    }
+
+    private void swap(int i, int j) {
+        KDPoint p = points[i]; points[i] = points[j]; points[j] = p;
+        DoubleKDPoint dp = doublePoints[i]; doublePoints[i] = doublePoints[j]; doublePoints[j] = dp;
+    }
+}
@@ -1,14 +1,18 @@
 package projects.spatial.nodes;
 
 import projects.UnimplementedMethodException;
+import projects.spatial.kdpoint.DoubleKDPoint;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.trees.KDTree;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * <p>{@link KDTreeNode} is an abstraction over nodes of a KD-Tree. It is used extensively by
@@ -34,27 +38,8 @@ public class KDTreeNode {
     /* *************  PLACE ANY OTHER PRIVATE FIELDS AND YOUR PRIVATE METHODS HERE: ************ */
     /* ************************************************************************************* */
 
-    private KDTreeNode parent;
-    private int dimension;
-
-    private void setDimension(KDTreeNode n, int start, int dims) {
-        if (n == null) return;
-        int next = start + 1;
-        if (next == dims) next = 0;
-        n.dimension = start;
-        setDimension(n.left, next, dims);
-        setDimension(n.right, next, dims);
-    }
-
-    private void addParentalRelation (KDTreeNode n) {
-        if (n == null) return;
-        if (n.left != null)
-            n.left.parent = n;
-        if (n.right != null)
-            n.right.parent = n;
-        addParentalRelation(n.left);
-        addParentalRelation(n.right);
-    }
+    private DoubleKDPoint dp; // Primitive mirror of p, kept in sync wherever p is replaced.
+    private int size; // The number of nodes in the subtree rooted at this, kept in sync by every update.
 
     /* *********************************************************************** */
     /* ***************  IMPLEMENT THE FOLLOWING PUBLIC METHODS:  ************ */
@@ -67,7 +52,38 @@ public class KDTreeNode {
      */
     public KDTreeNode(KDPoint p){
         this.p = new KDPoint(p);
+        dp = new DoubleKDPoint(p);
+        height = 0;
+        size = 1;
+    }
+
+    /* Used by KDTreeBuilder, which has already made its own copies of the points. */
+    KDTreeNode(KDPoint p, DoubleKDPoint dp){
+        this.p = p;
+        this.dp = dp;
         height = 0;
+        size = 1;
+    }
+
+    void setChildren(KDTreeNode left, KDTreeNode right){
+        this.left = left;
+        this.right = right;
+        size = 1 + size(left) + size(right);
+    }
+
+    /**
+     * Builds a <b>balanced</b> KD-Tree over the provided {@link KDPoint}s in one go, by splitting every subtree at the
+     * median of its points at the current dimension. The resulting tree has a height of about log2(n), independent
+     * of the order of the points, while inserting them one by one can give a height of up to n - 1.
+     * @param points The {@link KDPoint}s to store. They are deep-copied.
+     * @param dims The total number of dimensions considered.
+     * @param pool A {@link ForkJoinPool} to build large subtrees in parallel on, or {@code null} to build sequentially.
+     * @return The root of the new tree, or {@code null} if points is empty.
+     * @throws RuntimeException if some {@link KDPoint} does not have dims coordinates.
+     * @see #insert(KDPoint, int, int)
+     */
+    public static KDTreeNode buildBalanced(Collection<KDPoint> points, int dims, ForkJoinPool pool){
+        return KDTreeBuilder.build(points, dims, pool);
     }
 
     /**
@@ -81,26 +97,87 @@ public class KDTreeNode {
      * @see #delete(KDPoint, int, int)
      */
     public void insert(KDPoint pIn, int currDim, int dims){
+        insert(pIn, new DoubleKDPoint(pIn), currDim, dims);
+    }
+
+    private void insert(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims){
+        size++;
         int nextDim = currDim + 1;
         if (currDim == dims - 1) nextDim = 0;
-        if (p.coords[currDim].compareTo(pIn.coords[currDim]) >= 0) {
-            if (right == null) {
-                right = new KDTreeNode(pIn);
-                right.parent = this;
-            }
+        if (goesRight(pIn, dIn, currDim)) {
+            if (right == null)
+                right = new KDTreeNode(new KDPoint(pIn), dIn);
             else
-                right.insert(pIn, nextDim, dims);
+                right.insert(pIn, dIn, nextDim, dims);
         }
         else {
-            if (left == null) {
-                left = new KDTreeNode(pIn);
-                left.parent = this;
-            }
+            if (left == null)
+                left = new KDTreeNode(new KDPoint(pIn), dIn);
             else
-                left.insert(pIn, nextDim, dims);
+                left.insert(pIn, dIn, nextDim, dims);
         }
     }
 
+    /*
+     * Whether pIn belongs to the right subtree of this at dim, i.e. whether its coordinate there is at most ours.
+     * Rounding to double never reverses a strict inequality, so the exact BigDecimal coordinates are only compared
+     * when the doubles tie; that keeps the walk down the tree from rescaling BigDecimals at every node.
+     */
+    private boolean goesRight(KDPoint pIn, DoubleKDPoint dIn, int dim) {
+        double ours = dp.coord(dim), theirs = dIn.coord(dim);
+        if (ours != theirs)
+            return ours > theirs;
+        return p.coords[dim].compareTo(pIn.coords[dim]) >= 0;
+    }
+
+    /* Whether this holds pIn, with the same trick as goesRight. */
+    private boolean holds(KDPoint pIn, DoubleKDPoint dIn) {
+        return dp.equals(dIn) && checkSame(p, pIn);
+    }
+
+    /*
+     * Scapegoat insertion, driven by KDTreeRebalancer. Once the new leaf turns out to be deeper than the rebalancer
+     * allows, every node on the way back up measures its subtree; the first one that is too tall for its size gets
+     * rebuilt balanced, and the new root of that subtree is returned in its place.
+     */
+    KDTreeNode insert(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims, int depth, KDTreeRebalancer rb){
+        size++;
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        boolean goRight = goesRight(pIn, dIn, currDim);
+        KDTreeNode child = goRight ? right : left;
+        if (child == null) {
+            child = new KDTreeNode(new KDPoint(pIn), dIn);
+            rb.leafInserted(depth + 1);
+        }
+        else
+            child = child.insert(pIn, dIn, nextDim, dims, depth + 1, rb);
+        if (goRight) right = child;
+        else left = child;
+
+        if (!rb.searchingScapegoat())
+            return this;
+        if (!rb.isScapegoat(size))
+            return this;
+        return KDTreeBuilder.rebuild(this, size, currDim, dims);
+    }
+
+    /* The number of nodes in the subtree rooted at n, in constant time. */
+    static int size(KDTreeNode n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /* Pre-order copy of the points of the subtree into the two arrays, from index i on. Returns the next free index. */
+    int collect(KDPoint[] points, DoubleKDPoint[] doublePoints, int i) {
+        points[i] = p;
+        doublePoints[i++] = dp;
+        if (left != null)
+            i = left.collect(points, doublePoints, i);
+        if (right != null)
+            i = right.collect(points, doublePoints, i);
+        return i;
+    }
+
     /**
      * <p>Deletes the provided {@link KDPoint} from the tree rooted at this. To select which subtree to recurse to,
      * the KD-Tree acts as a Binary Search Tree on currDim; it will examine the value of the provided {@link KDPoint}
@@ -119,102 +196,152 @@ public class KDTreeNode {
      * @param dims The total number of dimensions that the space considers.
      * @param pIn The {@link KDPoint} to insert into the node.
      * @see #insert(KDPoint, int, int)
-     * @return A reference to this after the deletion takes place.
+     * @return The root of the subtree after the deletion takes place, which is {@code null} if the subtree
+     * consisted only of the deleted {@link KDPoint}.
      */
     public KDTreeNode delete(KDPoint pIn, int currDim, int dims){
-        KDTreeNode del = searchNode(pIn, currDim, dims);
-        if (del != null) {
-            if (del == this && left == null && right == null)
-                this.p = null;
-            else
-                deleteHelper(findDimension(this, pIn, 0, dims), dims, this);
-        }
-        return this;
+        return delete(pIn, new DoubleKDPoint(pIn), currDim, dims);
     }
 
-    private int findDimension(KDTreeNode n, KDPoint pIn, int dim, int dims) {
-        int nextDim = dim + 1;
-        if (dim == dims - 1) nextDim = 0;
-        if (checkSame(n.p, pIn)) return dim;
-        if (n.p.coords[dim].compareTo(pIn.coords[dim]) >= 0) {
-            return right.findDimension(n.right, pIn, nextDim, dims);
+    private KDTreeNode delete(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims){
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        if (holds(pIn, dIn)) {
+            // Our right subtree holds the coordinates that are smaller than or equal to ours at currDim, so the
+            // replacement is the maximum at currDim; taking it from the right keeps every other node on its side.
+            if (right != null) {
+                KDTreeNode max = right.getMaxNode(currDim, nextDim, dims);
+                p = new KDPoint(max.p);
+                dp = max.dp;
+                right = right.delete(max.p, max.dp, nextDim, dims);
+            }
+            else if (left != null) {
+                KDTreeNode max = left.getMaxNode(currDim, nextDim, dims);
+                p = new KDPoint(max.p);
+                dp = max.dp;
+                right = left.delete(max.p, max.dp, nextDim, dims);
+                left = null;
+            }
+            else
+                return null;
+        }
+        else if (goesRight(pIn, dIn, currDim)) {
+            if (right != null)
+                right = right.delete(pIn, dIn, nextDim, dims);
         }
         else {
-            return left.findDimension(n.left, pIn, nextDim, dims);
+            if (left != null)
+                left = left.delete(pIn, dIn, nextDim, dims);
         }
+        size = 1 + size(left) + size(right);
+        return this;
     }
 
-    private void deleteHelper(int currDim, int dims, KDTreeNode root){
-        if (right == null && left == null) {
-            if (this.parent.left == this)
-                this.parent.left = null;
-            else
-                this.parent.right = null;
-        }
+    private KDTreeNode getMaxNode(int targetDim, int currDim, int dims) {
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        KDTreeNode max = this;
+        if (left != null)
+            max = larger(max, left.getMaxNode(targetDim, nextDim, dims), targetDim);
+        if (right != null && currDim != targetDim) // If we split on targetDim, the right subtree cannot win.
+            max = larger(max, right.getMaxNode(targetDim, nextDim, dims), targetDim);
+        return max;
+    }
 
-        if (right == null) {
-            KDTreeNode n = getMinNode(left, currDim);
-            KDPoint newP = new KDPoint(n.p);
-            p = newP;
-            right = left;
-            left = null;
-            int dim = findDimension(root, n.p, 0, dims);
-            deleteHelper(dim, dims, root);
-        }
-        else {
-            KDTreeNode n = getMinNode(right, currDim);
-            KDPoint newP = new KDPoint(n.p);
-            p = newP;
-            int dim = findDimension(root, n.p, 0, dims);
-            deleteHelper(dim, dims, root);
-        }
-    }
-
-    private KDTreeNode getMinNode(KDTreeNode n, int currDim) {
-        ArrayList<KDTreeNode> arr = new ArrayList<>();
-        makeArraylist(n, arr);
-        BigDecimal min = arr.get(0).p.coords[currDim];
-        for (int i = 0; i < arr.size(); i++) {
-            BigDecimal curr = arr.get(i).p.coords[currDim];
-            if (curr.compareTo(min) < 0)
-                min = curr;
-        }
-        for (int i = 0; i < arr.size(); i++) {
-            BigDecimal curr = arr.get(i).p.coords[currDim];
-            if (curr.compareTo(min) == 0) {
-                return arr.get(i);
-            }
-        }
-        return null;
+    private static KDTreeNode larger(KDTreeNode n1, KDTreeNode n2, int dim) {
+        return n2.p.coords[dim].compareTo(n1.p.coords[dim]) > 0 ? n2 : n1;
     }
 
-    private void makeArraylist(KDTreeNode n, ArrayList<KDTreeNode> arr) {
-        if (n == null) return;
-        if (n.left == null && n.right == null) arr.add(n);
-        makeArraylist(n.left, arr);
-        arr.add(n);
-        makeArraylist(n.right, arr);
+    /* A copy of this, with a different point and children. Its height and size are derived from the children's. */
+    private KDTreeNode copyWith(KDPoint p, DoubleKDPoint dp, KDTreeNode left, KDTreeNode right) {
+        KDTreeNode copy = new KDTreeNode(p, dp);
+        copy.left = left;
+        copy.right = right;
+        copy.height = Math.max(left == null ? -1 : left.height, right == null ? -1 : right.height) + 1;
+        copy.size = 1 + size(left) + size(right);
+        return copy;
     }
 
+    /**
+     * <p>A <b>copy-on-write</b> counterpart of {@link #insert(KDPoint, int, int)}: instead of modifying the tree rooted
+     * at this, it returns the root of a new tree which holds pIn as well. Only the nodes on the path from this to the
+     * new leaf are copied; every other subtree is shared with the old tree, which is left completely untouched, so
+     * that threads still traversing it are not affected.</p>
+     *
+     * <p>Nodes created this way keep their height up to date, as reported by {@link #storedHeight()}.</p>
+     * @param pIn The {@link KDPoint} to insert.
+     * @param currDim The current dimension to consider.
+     * @param dims The total number of dimensions that the space considers.
+     * @return The root of the new version of the subtree.
+     * @see #deleteCopy(KDPoint, int, int)
+     */
+    public KDTreeNode insertCopy(KDPoint pIn, int currDim, int dims){
+        return insertCopy(pIn, new DoubleKDPoint(pIn), currDim, dims);
+    }
 
-    private KDTreeNode searchNode(KDPoint pIn, int currDim, int dims){
+    private KDTreeNode insertCopy(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims){
         int nextDim = currDim + 1;
         if (currDim == dims - 1) nextDim = 0;
-        if (checkSame(p, pIn)) return this;
-        if (p.coords[currDim].compareTo(pIn.coords[currDim]) >= 0) {
-            if (right == null) {
-                return null;
-            }
-            else
-                return right.searchNode(pIn, nextDim, dims);
+        if (goesRight(pIn, dIn, currDim)) {
+            KDTreeNode newRight = right == null ? new KDTreeNode(new KDPoint(pIn), dIn)
+                    : right.insertCopy(pIn, dIn, nextDim, dims);
+            return copyWith(p, dp, left, newRight);
         }
-        else {
-            if (left == null) {
-                return null;
+        KDTreeNode newLeft = left == null ? new KDTreeNode(new KDPoint(pIn), dIn)
+                : left.insertCopy(pIn, dIn, nextDim, dims);
+        return copyWith(p, dp, newLeft, right);
+    }
+
+    /**
+     * A <b>copy-on-write</b> counterpart of {@link #delete(KDPoint, int, int)}, in the sense of
+     * {@link #insertCopy(KDPoint, int, int)}. Deleting an internal node copies both the path to it and the path to the
+     * node that replaces it.
+     * @param pIn The {@link KDPoint} to delete. It is assumed to be in the subtree.
+     * @param currDim The current dimension to consider.
+     * @param dims The total number of dimensions that the space considers.
+     * @return The root of the new version of the subtree, which is {@code null} if the subtree consisted only of the
+     * deleted {@link KDPoint}.
+     */
+    public KDTreeNode deleteCopy(KDPoint pIn, int currDim, int dims){
+        return deleteCopy(pIn, new DoubleKDPoint(pIn), currDim, dims);
+    }
+
+    private KDTreeNode deleteCopy(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims){
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        if (holds(pIn, dIn)) {
+            if (right != null) {
+                KDTreeNode max = right.getMaxNode(currDim, nextDim, dims);
+                return copyWith(max.p, max.dp, left, right.deleteCopy(max.p, max.dp, nextDim, dims));
             }
-            else
-                return left.searchNode(pIn, nextDim, dims);
+            if (left != null) {
+                KDTreeNode max = left.getMaxNode(currDim, nextDim, dims);
+                return copyWith(max.p, max.dp, null, left.deleteCopy(max.p, max.dp, nextDim, dims));
+            }
+            return null;
         }
+        if (goesRight(pIn, dIn, currDim))
+            return right == null ? this : copyWith(p, dp, left, right.deleteCopy(pIn, dIn, nextDim, dims));
+        return left == null ? this : copyWith(p, dp, left.deleteCopy(pIn, dIn, nextDim, dims), right);
+    }
+
+    /**
+     * Returns the height of the subtree rooted at this in constant time, as maintained by
+     * {@link #insertCopy(KDPoint, int, int)} and {@link #deleteCopy(KDPoint, int, int)}. Only meaningful for trees that
+     * were built exclusively through those methods; otherwise, use {@link #height()}.
+     * @return The stored height of the subtree rooted at this.
+     */
+    public int storedHeight(){
+        return height;
+    }
+
+    /**
+     * Returns the number of {@link KDPoint}s in the subtree rooted at this, in constant time. Every update keeps the
+     * subtree sizes of the nodes on its path up to date, including the copy-on-write ones.
+     * @return The number of nodes in the subtree rooted at this.
+     */
+    public int count(){
+        return size;
     }
 
     /**
@@ -225,22 +352,26 @@ public class KDTreeNode {
      * @return true iff pIn was found in the subtree rooted at this, false otherwise.
      */
     public boolean search(KDPoint pIn, int currDim, int dims){
+        return search(pIn, new DoubleKDPoint(pIn), currDim, dims);
+    }
+
+    private boolean search(KDPoint pIn, DoubleKDPoint dIn, int currDim, int dims){
         int nextDim = currDim + 1;
         if (currDim == dims - 1) nextDim = 0;
-        if (checkSame(p, pIn)) return true;
-        if (p.coords[currDim].compareTo(pIn.coords[currDim]) >= 0) {
+        if (holds(pIn, dIn)) return true;
+        if (goesRight(pIn, dIn, currDim)) {
             if (right == null) {
                 return false;
             }
             else
-                return right.search(pIn, nextDim, dims);
+                return right.search(pIn, dIn, nextDim, dims);
         }
         else {
             if (left == null) {
                 return false;
             }
             else
-                return left.search(pIn, nextDim, dims);
+                return left.search(pIn, dIn, nextDim, dims);
         }
     }
 
@@ -275,87 +406,251 @@ public class KDTreeNode {
      */
     public void range(KDPoint anchor, Collection<KDPoint> results,
                       BigDecimal range, int currDim , int dims){
-        addParentalRelation(this);
-        setDimension(this, 0, dims);
-//        rangeHelper(this, anchor, results, range, dims);
-
-        getRangePoint(this, anchor, results, range);
-
-
+        range(anchor, results, range, currDim, dims, null);
+    }
 
+    /**
+     * Same as {@link #range(KDPoint, Collection, BigDecimal, int, int)}, but also records the work done by the query
+     * in stats.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s within range.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param currDim The current dimension examined by the {@link KDTreeNode}.
+     * @param dims The total number of dimensions of our {@link KDPoint}s.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    public void range(KDPoint anchor, Collection<KDPoint> results,
+                      BigDecimal range, int currDim, int dims, QueryStats stats){
+        double r = range.doubleValue();
+        double rangeSq = r * r;
+        getRangePoint(this, anchor, new DoubleKDPoint(anchor), results, range, rangeSq,
+                rangeSq * (1 + RangeCheck.TOLERANCE), currDim, dims, 0, stats);
     }
 
-    private void getRangePoint(KDTreeNode n, KDPoint anchor, Collection<KDPoint> results,
-                               BigDecimal range) {
-        if (n == null) return;
-        if (compareDist(n.p, anchor, range) <= 0) {
+    /*
+     * On the way down, a subtree is skipped whenever the splitting plane of its parent is farther from the anchor than
+     * the range: every point beyond the plane is farther still. slack is rangeSq, widened so that no subtree is pruned
+     * over rounding.
+     */
+    private void getRangePoint(KDTreeNode n, KDPoint anchor, DoubleKDPoint dAnchor, Collection<KDPoint> results,
+                               BigDecimal range, double rangeSq, double slack, int currDim, int dims, int depth,
+                               QueryStats stats) {
+        if (stats != null) {
+            stats.visit(depth);
+            stats.distanceComputations++;
+        }
+        if (!(n.dp.equals(dAnchor) && checkSame(n.p, anchor)) // The anchor itself is never part of the result.
+                && RangeCheck.withinRange(n.p, n.dp, anchor, dAnchor, range, rangeSq)) {
             results.add(n.p);
         }
-        getRangePoint(n.left, anchor, results, range);
-        getRangePoint(n.right, anchor, results, range);
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        double diff = dAnchor.coord(currDim) - n.dp.coord(currDim);
+        boolean nearPlane = diff * diff <= slack;
+        if (n.left != null) { // Greater coordinates.
+            if (diff >= 0 || nearPlane)
+                getRangePoint(n.left, anchor, dAnchor, results, range, rangeSq, slack, nextDim, dims, depth + 1, stats);
+            else if (stats != null)
+                stats.subtreesPruned++;
+        }
+        if (n.right != null) { // Smaller or equal coordinates.
+            if (diff <= 0 || nearPlane)
+                getRangePoint(n.right, anchor, dAnchor, results, range, rangeSq, slack, nextDim, dims, depth + 1, stats);
+            else if (stats != null)
+                stats.subtreesPruned++;
+        }
     }
 
+    /**
+     * Executes a box query in the subtree rooted at the current node: adds to results every {@link KDPoint} whose
+     * coordinates all lie between those of lower and upper, <b>INCLUSIVE</b>. A subtree is skipped whenever the
+     * splitting plane of its parent shows that it lies entirely on one side of the box.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates. An empty box, with a coordinate smaller than
+     *              that of lower, holds no points.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s in the box.
+     * @param currDim The splitting dimension of the current node.
+     * @param dims The total number of dimensions of our {@link KDPoint}s.
+     */
+    public void box(KDPoint lower, KDPoint upper, Collection<KDPoint> results, int currDim, int dims){
+        Box b = new Box(lower, upper);
+        if (!b.isEmpty())
+            box(b, results, currDim, dims);
+    }
 
-    private void rangeHelper(KDTreeNode n, KDPoint anchor, Collection<KDPoint> results, BigDecimal range, int dims) {
-        KDTreeNode end = greedyApproach(n, anchor, n.dimension, dims);
-        if (compareDist(end.p, anchor, range) > 0) return;
-        else {
-            results.add(n.p);
-            if (end.right != null && !(outOfRange(end.right, anchor, range)))
-                rangeHelper(end.right, anchor, results, range, dims);
-            if (end.left != null && !(outOfRange(end.left, anchor, range)))
-                rangeHelper(end.left, anchor, results, range, dims);
-
-            KDTreeNode curr = end;
-            KDTreeNode curr2 = end.parent;
-
-            while (curr2 != n.parent) {
-                if (!outOfRange(curr2, anchor, range)) {
-                    if (curr == curr2.left)
-                        rangeHelper(curr2.right, anchor, results, range, dims);
-                    else
-                        rangeHelper(curr2.left, anchor, results, range, dims);
-                }
-                curr = curr2;
-                curr2 = curr2.parent;
-            }
+    private void box(Box b, Collection<KDPoint> results, int currDim, int dims) {
+        if (b.contains(p, dp))
+            results.add(p);
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        double split = dp.coord(currDim);
+        if (left != null && b.reachesUpTo(currDim, split)) // Greater coordinates.
+            left.box(b, results, nextDim, dims);
+        if (right != null && b.reachesDownTo(currDim, split)) // Smaller or equal coordinates.
+            right.box(b, results, nextDim, dims);
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #box(KDPoint, KDPoint, Collection, int, int)} would report, without
+     * collecting them.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates.
+     * @param currDim The splitting dimension of the current node.
+     * @param dims The total number of dimensions of our {@link KDPoint}s.
+     * @return The number of {@link KDPoint}s of the subtree that lie in the box.
+     */
+    public int boxCount(KDPoint lower, KDPoint upper, int currDim, int dims){
+        Box b = new Box(lower, upper);
+        return b.isEmpty() ? 0 : boxCount(b, currDim, dims, unboundedCell(dims, -1), unboundedCell(dims, 1));
+    }
 
+    /* The cell [lo, hi] bounds the subtree, as narrowed down by the splitting planes of its ancestors. */
+    private int boxCount(Box b, int currDim, int dims, double[] lo, double[] hi) {
+        if (b.covers(lo, hi))
+            return size; // Every point of the subtree is in the box.
+        int count = b.contains(p, dp) ? 1 : 0;
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+        double split = dp.coord(currDim);
+        if (left != null && b.reachesUpTo(currDim, split)) {
+            double saved = lo[currDim];
+            lo[currDim] = Math.max(saved, split);
+            count += left.boxCount(b, nextDim, dims, lo, hi);
+            lo[currDim] = saved;
+        }
+        if (right != null && b.reachesDownTo(currDim, split)) {
+            double saved = hi[currDim];
+            hi[currDim] = Math.min(saved, split);
+            count += right.boxCount(b, nextDim, dims, lo, hi);
+            hi[currDim] = saved;
         }
+        return count;
     }
 
-    private boolean outOfRange(KDTreeNode n, KDPoint anchor, BigDecimal range) {
-        BigDecimal index = n.p.coords[n.dimension];
-        BigDecimal index2 = anchor.coords[n.dimension];
-        if (index.subtract(index2).abs().compareTo(range) >= 0)
-            return true;
-        return false;
+    private static double[] unboundedCell(int dims, int sign) {
+        double[] cell = new double[dims];
+        Arrays.fill(cell, sign * Double.POSITIVE_INFINITY);
+        return cell;
     }
 
-    private KDTreeNode greedyApproach(KDTreeNode n, KDPoint anchor, int currDim, int dims) {
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, Collection, BigDecimal, int, int)} would report, without
+     * collecting them. As the query descends, it keeps track of the cell that the splitting planes of the ancestors
+     * confine every subtree to; a subtree whose whole cell lies within range is counted through its stored size, in
+     * constant time, and one whose cell lies beyond range is skipped.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @param currDim The splitting dimension of the current node.
+     * @param dims The total number of dimensions of our {@link KDPoint}s.
+     * @return The number of {@link KDPoint}s of the subtree, other than the anchor, that lie within range of it.
+     */
+    public int rangeCount(KDPoint anchor, BigDecimal range, int currDim, int dims){
+        double r = range.doubleValue();
+        int count = rangeCount(anchor, new DoubleKDPoint(anchor), range, r * r, currDim, dims,
+                unboundedCell(dims, -1), unboundedCell(dims, 1));
+        return count - boxCount(anchor, anchor, currDim, dims); // The anchor itself is never part of the result.
+    }
+
+    private int rangeCount(KDPoint anchor, DoubleKDPoint dAnchor, BigDecimal range, double rangeSq, int currDim,
+                           int dims, double[] lo, double[] hi) {
+        if (maxDistanceSquared(dAnchor, lo, hi) < rangeSq * (1 - RangeCheck.TOLERANCE))
+            return size; // The whole subtree lies within range.
+        int count = RangeCheck.withinRange(p, dp, anchor, dAnchor, range, rangeSq) ? 1 : 0;
         int nextDim = currDim + 1;
-        if (nextDim >= dims) nextDim = 0;
-        if (n.p.coords[currDim].compareTo(anchor.coords[currDim]) >= 0) {
-            if (n.right == null)
-                return n;
-            else {
-                return greedyApproach(n.right, anchor, nextDim, dims);
-            }
+        if (currDim == dims - 1) nextDim = 0;
+        double split = dp.coord(currDim), slack = rangeSq * (1 + RangeCheck.TOLERANCE);
+        if (left != null) {
+            double saved = lo[currDim];
+            lo[currDim] = Math.max(saved, split);
+            if (minDistanceSquared(dAnchor, lo, hi) <= slack)
+                count += left.rangeCount(anchor, dAnchor, range, rangeSq, nextDim, dims, lo, hi);
+            lo[currDim] = saved;
         }
-        else {
-            if (n.left == null)
-                return n;
-            else {
-                return greedyApproach(n.left, anchor, nextDim, dims);
-            }
+        if (right != null) {
+            double saved = hi[currDim];
+            hi[currDim] = Math.min(saved, split);
+            if (minDistanceSquared(dAnchor, lo, hi) <= slack)
+                count += right.rangeCount(anchor, dAnchor, range, rangeSq, nextDim, dims, lo, hi);
+            hi[currDim] = saved;
         }
+        return count;
     }
 
-    private BigDecimal rootOfBigDecimal(BigDecimal bd){
-        return new BigDecimal(Math.sqrt(bd.doubleValue()));
+    private static double minDistanceSquared(DoubleKDPoint anchor, double[] lo, double[] hi) {
+        double sum = 0;
+        for (int i = 0; i < lo.length; i++) {
+            double a = anchor.coord(i), diff;
+            if (a < lo[i])
+                diff = lo[i] - a;
+            else if (a > hi[i])
+                diff = a - hi[i];
+            else
+                continue;
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private static double maxDistanceSquared(DoubleKDPoint anchor, double[] lo, double[] hi) {
+        double sum = 0;
+        for (int i = 0; i < lo.length; i++) {
+            double a = anchor.coord(i), diff = Math.max(Math.abs(a - lo[i]), Math.abs(hi[i] - a));
+            sum += diff * diff;
+        }
+        return sum;
     }
 
-    private int compareDist(KDPoint p1, KDPoint p2, BigDecimal range) {
-        return rootOfBigDecimal(p1.distanceSquared(p2)).compareTo(range);
+    /**
+     * Returns a lazy, splittable walk over the answers of the range query that
+     * {@link #range(KDPoint, Collection, BigDecimal, int, int)} would answer, with the same {@link KDPoint}s. Subtrees
+     * are only visited when the walk reaches them, and only if the splitting plane of their parent lies within range
+     * of the anchor. The subtree must not be modified while the walk is in progress.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @param currDim The splitting dimension of the current node.
+     * @param dims The total number of dimensions of our {@link KDPoint}s.
+     * @return A {@link Spliterator} over the {@link KDPoint}s of the subtree that lie within range of anchor.
+     * @see RangeSpliterator
+     */
+    public Spliterator<KDPoint> rangeSpliterator(KDPoint anchor, BigDecimal range, int currDim, int dims){
+        Range walk = new Range(anchor, range, dims);
+        walk.push(this, currDim);
+        return walk;
+    }
+
+    private static final class Range extends RangeSpliterator<KDTreeNode> {
+
+        private final int dims;
+
+        private Range(KDPoint anchor, BigDecimal range, int dims) {
+            super(anchor, range);
+            this.dims = dims;
+        }
+
+        private Range(Range parent) {
+            super(parent);
+            dims = parent.dims;
+        }
+
+        @Override
+        void visit(KDTreeNode n, int currDim) {
+            if (!(n.dp.equals(dAnchor) && n.checkSame(n.p, anchor)) // The anchor itself is never part of the result.
+                    && RangeCheck.withinRange(n.p, n.dp, anchor, dAnchor, range, rangeSq))
+                emit(n.p);
+            int nextDim = currDim + 1;
+            if (currDim == dims - 1) nextDim = 0;
+            double diff = dAnchor.coord(currDim) - n.dp.coord(currDim);
+            boolean nearPlane = diff * diff <= slack;
+            if (n.left != null && (diff >= 0 || nearPlane)) // Greater coordinates.
+                push(n.left, nextDim);
+            if (n.right != null && (diff <= 0 || nearPlane)) // Smaller or equal coordinates.
+                push(n.right, nextDim);
+        }
+
+        @Override
+        RangeSpliterator<KDTreeNode> fork() {
+            return new Range(this);
+        }
     }
 
     /**
@@ -385,26 +680,61 @@ public class KDTreeNode {
      */
     public  NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim,
                                             NNData<KDPoint> n, int dims){
+        return nearestNeighbor(anchor, currDim, n, dims, null);
+    }
 
-        KDTreeNode curr = this;
-        ArrayList<NNData<KDPoint>> arr = new ArrayList<>();
-        makeNN(this, arr, anchor);
-        BigDecimal b = arr.get(0).bestDist;
-        NNData<KDPoint> out = arr.get(0);
-        for (NNData nn : arr) {
-            if (nn.bestDist.compareTo(b) < 0) {
-                b = nn.bestDist;
-                out = nn;
-            }
-        }
-        return out;
+    /**
+     * Same as {@link #nearestNeighbor(KDPoint, int, NNData, int)}, but also records the work done by the
+     * query in stats.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint}of the nearest neighbor query.
+     * @param currDim The current dimension considered.
+     * @param n The best guess known to the caller, if any.
+     * @param dims The total number of dimensions considered.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     * @return An object of type {@link NNData} describing the nearest neighbor found.
+     */
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim,
+                                           NNData<KDPoint> n, int dims, QueryStats stats){
+        BoundedPriorityQueue<KDPoint> best = new BoundedPriorityQueue<>(1);
+        DoubleKDPoint dAnchor = new DoubleKDPoint(anchor);
+        if (n.bestGuess != null)
+            best.enqueue(n.bestGuess, new DoubleKDPoint(n.bestGuess).distanceSquared(dAnchor));
+        search(anchor, dAnchor, best, currDim, dims, 0, stats);
+        if (best.isEmpty() || best.first() == n.bestGuess)
+            return n;
+        return new NNData<>(best.first(), best.first().distanceSquared(anchor));
     }
 
-    private void makeNN(KDTreeNode n, ArrayList<NNData<KDPoint>> arr, KDPoint anchor) {
-        if (n == null) return;
-        arr.add(new NNData(n.p, n.p.distanceSquared(anchor)));
-        makeNN(n.left, arr, anchor);
-        makeNN(n.right, arr, anchor);
+    /**
+     * Branch-and-bound body shared by the NN and kNN queries. We descend greedily towards the anchor and,
+     * on the way back, only visit the far side of a splitting plane if the plane is closer to the anchor than the
+     * worst candidate we currently keep. Remember that the right subtree holds the coordinates that are
+     * <b>smaller than or equal</b> to ours at currDim. The exact anchor is needed alongside its double coordinates,
+     * so that a distinct point whose coordinates round to the same doubles is still reported.
+     */
+    private void search(KDPoint pAnchor, DoubleKDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim,
+                        int dims, int depth, QueryStats stats) {
+        if (stats != null)
+            stats.visit(depth);
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+
+        double diff = anchor.coord(currDim) - dp.coord(currDim);
+        KDTreeNode near = diff <= 0 ? right : left;
+        KDTreeNode far = diff <= 0 ? left : right;
+        if (near != null)
+            near.search(pAnchor, anchor, queue, nextDim, dims, depth + 1, stats);
+        if (!(dp.equals(anchor) && checkSame(p, pAnchor))) { // The anchor itself is never reported.
+            if (stats != null)
+                stats.distanceComputations++;
+            queue.enqueue(p, dp.distanceSquared(anchor));
+        }
+        if (far != null) {
+            if (diff * diff < queue.threshold())
+                far.search(pAnchor, anchor, queue, nextDim, dims, depth + 1, stats);
+            else if (stats != null)
+                stats.subtreesPruned++;
+        }
     }
 
     /**
@@ -435,25 +765,115 @@ public class KDTreeNode {
      * @see BoundedPriorityQueue
      */
     public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims){
-        queue = new BoundedPriorityQueue<>(k);
-        KDTreeNode curr = this;
-        ArrayList<NNData<KDPoint>> arr = new ArrayList<>();
-        makeNN(this, arr, anchor);
-
-        while(k>0) {
-            BigDecimal b = arr.get(0).bestDist;
-            NNData<KDPoint> out = arr.get(0);
-            int index = 0;
-            for (int i = 0; i < arr.size(); i++) {
-                if (arr.get(i).bestDist.compareTo(b) < 0) {
-                    b = arr.get(i).bestDist;
-                    out = arr.get(i);
-                    index = i;
-                }
-            }
-            queue.enqueue(arr.get(index).bestGuess, arr.get(index).bestDist);
-            arr.remove(index);
-            k--;
+        kNearestNeighbors(k, anchor, queue, currDim, dims, null);
+    }
+
+    /**
+     * Same as {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int)}, but also records the work
+     * done by the query in stats.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of the anchor.
+     * @param currDim The current dimension considered.
+     * @param dims The total number of dimensions considered.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims,
+                                  QueryStats stats){
+        search(anchor, new DoubleKDPoint(anchor), queue, currDim, dims, 0, stats);
+    }
+
+    /**
+     * <p>An <b>approximate</b> counterpart of {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int,
+     * QueryStats)}, which trades accuracy for speed in two ways, which may be combined:</p>
+     * <ul>
+     *     <li>With epsilon &gt; 0, a subtree is pruned as soon as no point in it could be closer than the current k-th
+     *     candidate divided by (1 + epsilon). The reported k-th neighbor is then at most (1 + epsilon) times farther
+     *     than the true one.</li>
+     *     <li>With a budget of maxVisits nodes, the search stops opening subtrees once it has visited that many nodes,
+     *     whatever they could hold. This bounds the latency of the query, but not its error.</li>
+     * </ul>
+     * <p>Either way, the search remembers the smallest distance at which a pruned subtree could still hold a point,
+     * and derives from it the error bound that was actually achieved, which is reported through stats along with the
+     * number of visited nodes. The bound is often much better than (1 + epsilon).</p>
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of the anchor.
+     * @param currDim The current dimension considered.
+     * @param dims The total number of dimensions considered.
+     * @param epsilon The allowed relative error, at least 0. With 0, only the budget can make the search inexact.
+     * @param maxVisits The maximum number of nodes to visit, at least 1.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     * @see QueryStats#approximationBound
+     */
+    public void approximateKNearestNeighbors(KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim,
+                                             int dims, double epsilon, int maxVisits, QueryStats stats){
+        Approximation a = new Approximation(epsilon, maxVisits);
+        approximateSearch(anchor, new DoubleKDPoint(anchor), queue, currDim, dims, 0, a);
+        if (stats != null) {
+            stats.nodesVisited += a.visits;
+            stats.approximationBound = Math.max(stats.approximationBound, a.bound(queue));
+        }
+    }
+
+    /* The state of an approximate search: its parameters, its budget, and what it has given up on so far. */
+    private static final class Approximation {
+        private final double factor; // (1 + epsilon)^2, since we compare squared distances.
+        private final int maxVisits;
+        private int visits;
+        private boolean exhausted; // Whether the budget made us skip a subtree.
+        private double minPrunedSq = Double.POSITIVE_INFINITY; // Lower bound on the distance of any skipped point.
+
+        private Approximation(double epsilon, int maxVisits) {
+            factor = (1 + epsilon) * (1 + epsilon);
+            this.maxVisits = maxVisits;
+        }
+
+        private void pruned(double lowerSq, boolean overBudget) {
+            minPrunedSq = Math.min(minPrunedSq, lowerSq);
+            exhausted |= overBudget;
+        }
+
+        private double bound(BoundedPriorityQueue<KDPoint> queue) {
+            if (minPrunedSq == Double.POSITIVE_INFINITY)
+                return 1; // Nothing was skipped: the search was exact.
+            if (queue.threshold() == Double.POSITIVE_INFINITY) // Fewer than k candidates.
+                return exhausted ? Double.POSITIVE_INFINITY : 1;
+            if (minPrunedSq >= queue.threshold())
+                return 1;
+            return minPrunedSq == 0 ? Double.POSITIVE_INFINITY : Math.sqrt(queue.threshold() / minPrunedSq);
+        }
+    }
+
+    /*
+     * Same traversal as search(), except for the pruning rule. lowerSq is a lower bound on the squared distance
+     * between the anchor and any point of this subtree: the largest squared distance to the splitting plane of an
+     * ancestor that the path to this subtree crossed.
+     */
+    private void approximateSearch(KDPoint pAnchor, DoubleKDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+                                   int currDim, int dims, double lowerSq, Approximation a) {
+        a.visits++;
+        int nextDim = currDim + 1;
+        if (currDim == dims - 1) nextDim = 0;
+
+        double diff = anchor.coord(currDim) - dp.coord(currDim);
+        KDTreeNode near = diff <= 0 ? right : left;
+        KDTreeNode far = diff <= 0 ? left : right;
+        if (near != null) {
+            if (a.visits < a.maxVisits)
+                near.approximateSearch(pAnchor, anchor, queue, nextDim, dims, lowerSq, a);
+            else
+                a.pruned(lowerSq, true);
+        }
+        if (!(dp.equals(anchor) && checkSame(p, pAnchor))) // The anchor itself is never reported.
+            queue.enqueue(p, dp.distanceSquared(anchor));
+        if (far != null) {
+            double farLowerSq = Math.max(lowerSq, diff * diff);
+            if (farLowerSq * a.factor >= queue.threshold())
+                a.pruned(farLowerSq, false);
+            else if (a.visits >= a.maxVisits)
+                a.pruned(farLowerSq, true);
+            else
+                far.approximateSearch(pAnchor, anchor, queue, nextDim, dims, farLowerSq, a);
         }
     }
 
@@ -471,9 +891,7 @@ public class KDTreeNode {
 
     private int getHeight(KDTreeNode n) {
         if (n == null) return -1;
-        if (n.left == null && n.right == null)
-            return 0;
-        return getHeight(n.left) > getHeight(n.right) ? getHeight(n.left) + 1 : getHeight(n.right) + 1;
+        return Math.max(getHeight(n.left), getHeight(n.right)) + 1;
     }
 
 
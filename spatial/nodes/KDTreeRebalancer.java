@@ -0,0 +1,129 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.DoubleKDPoint;
+import projects.spatial.kdpoint.KDPoint;
+
+/**
+ * <p>{@link KDTreeRebalancer} is an optional, <b>scapegoat</b>-style rebalancing policy for KD-Trees. Inserting and
+ * deleting points in arbitrary order can let a KD-Tree drift far away from its ideal height of log2(n), and query
+ * times follow. Given a factor &alpha; &ge; 1, this policy keeps the height of the tree under about
+ * &alpha;&middot;log2(n):</p>
+ *
+ * <ul>
+ *     <li>When an insertion creates a leaf deeper than &alpha;&middot;log2(n), the nodes on the insertion path are
+ *     examined bottom-up, and the first one whose subtree is taller than &alpha;&middot;log2(size of the subtree) (the
+ *     <em>scapegoat</em>) has its subtree rebuilt perfectly balanced, through the same median splits that
+ *     {@link KDTreeNode#buildBalanced(java.util.Collection, int, java.util.concurrent.ForkJoinPool) bulk loading}
+ *     uses. The root itself always qualifies, so a scapegoat is always found.</li>
+ *     <li>Deletions never make a tree taller, but they make it smaller than the height it had been allowed to reach.
+ *     Once half of the points seen at the last full rebuild are gone, the whole tree is rebuilt.</li>
+ * </ul>
+ *
+ * <p>Since a rebuild costs time linear in the size of the subtree and happens only after enough updates
+ * unbalanced it, insertions and deletions take amortized O(log<sup>2</sup> n) time; the rebuilds themselves are
+ * counted and exposed through {@link #getRebuildCount()}. Note that points that share a coordinate must all stay on
+ * the same side of a node splitting on it, so a tree over many such points may not be able to get any shorter; in
+ * that case the policy keeps rebuilding to no avail, and is best left off.</p>
+ *
+ * @see projects.spatial.trees.KDTree#setRebalancing(double)
+ */
+public final class KDTreeRebalancer {
+
+    private final double alpha;
+    private int rebuilds;
+    private int maxCount; // The count at the last full rebuild, or the largest count since.
+
+    // State of the insertion in progress.
+    private double depthBound;
+    private boolean searching;
+    private int pathLength;
+
+    /**
+     * Creates a rebalancing policy.
+     * @param alpha The allowed ratio between the height of a subtree and the base-2 logarithm of its size.
+     * @throws RuntimeException if alpha &lt; 1, since not even a perfectly balanced tree would satisfy it.
+     */
+    public KDTreeRebalancer(double alpha){
+        if (!(alpha >= 1))
+            throw new RuntimeException("The value of alpha provided, " + alpha + ", is invalid: Please provide a number of at least 1.");
+        this.alpha = alpha;
+    }
+
+    /**
+     * Inserts p into the tree rooted at root, rebuilding the subtree of a scapegoat if the insertion made the tree
+     * too deep.
+     * @param root The root of the tree, which must not be {@code null}.
+     * @param p The {@link KDPoint} to insert.
+     * @param dims The dimensionality of the tree.
+     * @param count The number of points in the tree <b>after</b> the insertion.
+     * @return The root of the tree after the insertion, which differs from root if the whole tree was rebuilt.
+     */
+    public KDTreeNode insert(KDTreeNode root, KDPoint p, int dims, int count){
+        depthBound = alpha * log2(count);
+        searching = false;
+        maxCount = Math.max(maxCount, count);
+        return root.insert(p, new DoubleKDPoint(p), 0, dims, 0, this);
+    }
+
+    /**
+     * Deletes p from the tree rooted at root, rebuilding the whole tree if enough points were deleted since it was
+     * last rebuilt.
+     * @param root The root of the tree, which must not be {@code null}.
+     * @param p The {@link KDPoint} to delete. It is assumed to be in the tree.
+     * @param dims The dimensionality of the tree.
+     * @param count The number of points in the tree <b>after</b> the deletion.
+     * @return The root of the tree after the deletion.
+     */
+    public KDTreeNode delete(KDTreeNode root, KDPoint p, int dims, int count){
+        root = root.delete(p, 0, dims);
+        if (root != null && count <= maxCount / 2) {
+            root = KDTreeBuilder.rebuild(root, count, 0, dims);
+            rebuilds++;
+            maxCount = count;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the number of subtrees, including whole trees, that this policy has rebuilt so far.
+     * @return The number of rebuilds so far.
+     */
+    public int getRebuildCount(){
+        return rebuilds;
+    }
+
+    /**
+     * Returns the factor &alpha; of this policy.
+     * @return The allowed ratio between the height of a subtree and the base-2 logarithm of its size.
+     */
+    public double getAlpha(){
+        return alpha;
+    }
+
+    private static double log2(int n){
+        return Math.log(n) / Math.log(2);
+    }
+
+    /* ****************************************************************************** */
+    /* ************ CALLBACKS OF KDTreeNode, ON THE WAY BACK FROM THE LEAF ********** */
+    /* ****************************************************************************** */
+
+    void leafInserted(int depth){
+        searching = depth > depthBound;
+        pathLength = 0;
+    }
+
+    boolean searchingScapegoat(){
+        return searching;
+    }
+
+    /* Called with the size of the subtree of every ancestor of the new leaf, bottom-up, while searching. */
+    boolean isScapegoat(int size){
+        pathLength++;
+        if (pathLength <= alpha * log2(size))
+            return false;
+        searching = false;
+        rebuilds++;
+        return true;
+    }
+}
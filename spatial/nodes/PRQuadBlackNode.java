@@ -1,11 +1,14 @@
 package projects.spatial.nodes;
 
 import projects.UnimplementedMethodException;
+import projects.spatial.kdpoint.DoubleKDPoint;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.trees.PRQuadTree;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -34,7 +37,37 @@ public class PRQuadBlackNode extends PRQuadNode {
     /* *************  PLACE ANY  PRIVATE FIELDS AND METHODS HERE: ************ */
     /* ********************************************************************** */
 
-    private Collection<KDPoint> points;
+    private ArrayList<KDPoint> points;
+    private ArrayList<DoubleKDPoint> doublePoints; // Parallel to points.
+
+    private int indexOf(KDPoint p, DoubleKDPoint dp) {
+        for (int i = 0; i < points.size(); i++) {
+            if (doublePoints.get(i).equals(dp) && sameCoords(points.get(i), p))
+                return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Children are chosen by the double mirrors of the points, so points that share the same mirror always end up in the
+     * same child, however deep we split. Such a bucket is allowed to overflow instead.
+     */
+    private boolean inseparable() {
+        DoubleKDPoint first = doublePoints.get(0);
+        for (int i = 1; i < doublePoints.size(); i++) {
+            if (!doublePoints.get(i).equals(first))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean sameCoords(KDPoint p1, KDPoint p2) {
+        if (p1.coords.length != p2.coords.length) return false;
+        for (int i = 0; i < p1.coords.length; i++) {
+            if (p1.coords[i].compareTo(p2.coords[i]) != 0) return false;
+        }
+        return true;
+    }
 
     /* *********************************************************************** */
     /* ***************  IMPLEMENT THE FOLLOWING PUBLIC METHODS:  ************ */
@@ -52,7 +85,8 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     public PRQuadBlackNode(KDPoint centroid, int k, int bucketingParam){
         super(centroid, k, bucketingParam); // Call to the super class' protected constructor to properly initialize the object is necessary, even for a constructor that just throws!
-
+        points = new ArrayList<>(bucketingParam + 1);
+        doublePoints = new ArrayList<>(bucketingParam + 1);
     }
 
     /**
@@ -69,7 +103,8 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     public PRQuadBlackNode(KDPoint centroid, int k, int bucketingParam, KDPoint p){
         this(centroid, k, bucketingParam); // Call to the current class' other constructor, which takes care of the base class' initialization itself.
-        points.add(p);
+        points.add(new KDPoint(p));
+        doublePoints.add(new DoubleKDPoint(p));
     }
 
 
@@ -91,6 +126,10 @@ public class PRQuadBlackNode extends PRQuadNode {
      *     the subtrees through which those subplanes will be modeled will be &quot;unnecessarily&quot; tall.</li>
      * </ol>
      *
+     * <p>Points are routed by their {@code double} coordinates, so distinct {@link KDPoint}s whose coordinates round to
+     * the same {@code double}s can never be separated by splitting. A node that only holds such points therefore does
+     * not split, and keeps more points than the bucketing parameter instead.</p>
+     *
      * @param p A {@link KDPoint} to insert into the subtree rooted at the current node.
      * @param k The side length of the quadrant spanned by the <b>current</b> {@link PRQuadGrayNode}. It will need to be updated
      *           per recursive call to help guide the input {@link KDPoint} to the appropriate subtree.
@@ -98,9 +137,19 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode insert(KDPoint p, int k) {
+        return insert(new KDPoint(p), new DoubleKDPoint(p), k);
+    }
 
-
-        return null;
+    @Override
+    PRQuadNode insert(KDPoint p, DoubleKDPoint dp, int k) {
+        points.add(p);
+        doublePoints.add(dp);
+        if (points.size() <= bucketingParam || inseparable())
+            return this;
+        PRQuadNode split = new PRQuadGrayNode(centroid, k, bucketingParam);
+        for (int i = 0; i < points.size(); i++)
+            split = split.insert(points.get(i), doublePoints.get(i), k);
+        return split;
     }
 
 
@@ -116,24 +165,21 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-
-
-
-        return null;
+        int index = indexOf(p, new DoubleKDPoint(p));
+        if (index == -1)
+            return this;
+        points.remove(index);
+        doublePoints.remove(index);
+        return points.isEmpty() ? null : this;
     }
 
     @Override
     public boolean search(KDPoint p){
-
-
-        return true;
+        return indexOf(p, new DoubleKDPoint(p)) != -1;
     }
 
     @Override
     public int height(){
-
-
-
         return 0;
     }
 
@@ -143,7 +189,8 @@ public class PRQuadBlackNode extends PRQuadNode {
     }
 
     /** Returns all the {@link KDPoint}s contained by the {@link PRQuadBlackNode}. <b>INVARIANT</b>: the returned
-     * {@link Collection}'s size can only be between 1 and bucket-size inclusive.
+     * {@link Collection}'s size can only be between 1 and bucket-size inclusive, unless all of its points round to the
+     * same {@code double} coordinates (see {@link #insert(KDPoint, int)}).
      *
      * @return A {@link Collection} that contains all the {@link KDPoint}s that are contained by the node. It is
      * guaranteed, by the invariants, that the {@link Collection} will not be empty, and it will also <b>not</b> be
@@ -153,23 +200,88 @@ public class PRQuadBlackNode extends PRQuadNode {
         return points;
     }
 
+    /**
+     * Returns the primitive mirrors of the {@link KDPoint}s contained by the {@link PRQuadBlackNode}, in the same
+     * order as {@link #getPoints()}.
+     * @return A {@link Collection} over the {@link DoubleKDPoint}s of this node.
+     */
+    Collection<DoubleKDPoint> getDoublePoints() {
+        return doublePoints;
+    }
+
     @Override
     public void range(KDPoint anchor, Collection<KDPoint> results,
                       BigDecimal range) {
+        double r = range.doubleValue();
+        range(anchor, new DoubleKDPoint(anchor), results, range, r * r, 0, null);
+    }
 
+    @Override
+    void range(KDPoint anchor, DoubleKDPoint dAnchor, Collection<KDPoint> results,
+               BigDecimal range, double rangeSq, int depth, QueryStats stats) {
+        if (stats != null) {
+            stats.visit(depth);
+            stats.distanceComputations += points.size();
+        }
+        for (int i = 0; i < points.size(); i++) {
+            DoubleKDPoint dp = doublePoints.get(i);
+            if (dp.equals(dAnchor) && sameCoords(points.get(i), anchor))
+                continue; // The anchor itself is never part of the result.
+            if (RangeCheck.withinRange(points.get(i), dp, anchor, dAnchor, range, rangeSq))
+                results.add(points.get(i));
+        }
+    }
 
+    @Override
+    void box(Box b, Collection<KDPoint> results) {
+        for (int i = 0; i < points.size(); i++) {
+            if (b.contains(points.get(i), doublePoints.get(i)))
+                results.add(points.get(i));
+        }
     }
 
     @Override
-    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
+    int boxCount(Box b) {
+        int total = 0;
+        for (int i = 0; i < points.size(); i++) {
+            if (b.contains(points.get(i), doublePoints.get(i)))
+                total++;
+        }
+        return total;
+    }
 
+    @Override
+    int rangeCount(KDPoint anchor, DoubleKDPoint dAnchor, BigDecimal range, double rangeSq) {
+        int total = 0;
+        for (int i = 0; i < points.size(); i++) {
+            if (RangeCheck.withinRange(points.get(i), doublePoints.get(i), anchor, dAnchor, range, rangeSq))
+                total++;
+        }
+        return total;
+    }
 
-        return null;
+    @Override
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
+        return nearestNeighborOf(anchor, n);
     }
 
     @Override
     public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue){
+        kNearestNeighbors(anchor, new DoubleKDPoint(anchor), queue, 0, null);
+    }
 
-
+    @Override
+    void kNearestNeighbors(KDPoint anchor, DoubleKDPoint dAnchor, BoundedPriorityQueue<KDPoint> queue, int depth,
+                           QueryStats stats) {
+        if (stats != null)
+            stats.visit(depth);
+        for (int i = 0; i < points.size(); i++) {
+            DoubleKDPoint dp = doublePoints.get(i);
+            if (!(dp.equals(dAnchor) && sameCoords(points.get(i), anchor))) { // The anchor itself is never reported.
+                if (stats != null)
+                    stats.distanceComputations++;
+                queue.enqueue(points.get(i), dp.distanceSquared(dAnchor));
+            }
+        }
     }
 }
@@ -1,18 +1,23 @@
 package projects.spatial.nodes;
 
 import projects.UnimplementedMethodException;
+import projects.spatial.kdpoint.DoubleKDPoint;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.trees.PRQuadTree;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 
 /** <p>A {@link PRQuadGrayNode} is a gray (&quot;mixed&quot;) {@link PRQuadNode}. It
  * maintains the following invariants: </p>
  * <ul>
- *      <li>Its children pointer buffer is non-null and has a length of 4.</li>
+ *      <li>It has at most 2^d non-empty children, for the dimensionality d of the space: 4 in 2-D, 8 in 3-D and so on.
+ *      Only the non-empty children are stored, so a sparse gray node does not pay for 2^d references.</li>
  *      <li>If there is at least one black node child, the total number of {@link KDPoint}s stored
  *      by <b>all</b> of the children is greater than the bucketing parameter (because if it is equal to it
  *      or smaller, we can prune the node.</li>
@@ -29,6 +34,68 @@ public class PRQuadGrayNode extends PRQuadNode{
     /* *************  PLACE ANY  PRIVATE FIELDS AND METHODS HERE: ************ */
     /* ********************************************************************** */
 
+    /*
+     * A gray node of a d-dimensional tree has 2^d child slots, most of which stay empty in sparse regions of the space.
+     * We only store the occupied ones: slots[0, size) holds their indices in increasing order, and children[i] the
+     * child at slots[i]. Both arrays start small and grow on demand.
+     */
+    private int[] slots;
+    private PRQuadNode[] children;
+    private int size;
+    private int count; // The number of points under this, kept in sync by insertions and deletions.
+
+    private static final int INITIAL_SLOTS = 4;
+
+    /**
+     * Z-order index of the child quadrant that dp falls into. Bit i of the index tells on which side of the
+     * centroid dp lies at dimension i: for dimension 0 it is set on the East (greater) side, for all others on the
+     * South (smaller) side, which gives the NW, NE, SW, SE order in 2-D. Points lying exactly on a dividing hyperplane
+     * go to the greater side.
+     */
+    private int childIndex(DoubleKDPoint dp) {
+        int index = 0;
+        if (dp.coord(0) >= doubleCentroid.coord(0))
+            index |= 1; // East
+        for (int i = 1; i < lower.length; i++) {
+            if (dp.coord(i) < doubleCentroid.coord(i))
+                index |= 1 << i; // South, and its analogues in higher dimensions.
+        }
+        return index;
+    }
+
+    private KDPoint childCentroid(int index) {
+        double offset = Math.scalb(1.0, k - 2);
+        double[] coords = doubleCentroid.toArray();
+        coords[0] += (index & 1) != 0 ? offset : -offset;
+        for (int i = 1; i < coords.length; i++)
+            coords[i] += (index & (1 << i)) != 0 ? -offset : offset;
+        return new KDPoint(coords);
+    }
+
+    /* Position of slot in slots[0, size), or -(insertion point) - 1 if it is not occupied. */
+    private int find(int slot) {
+        return Arrays.binarySearch(slots, 0, size, slot);
+    }
+
+    private void add(int position, int slot, PRQuadNode child) {
+        if (size == slots.length) {
+            int length = (int) Math.min(2L * size, 1L << lower.length);
+            slots = Arrays.copyOf(slots, length);
+            children = Arrays.copyOf(children, length);
+        }
+        System.arraycopy(slots, position, slots, position + 1, size - position);
+        System.arraycopy(children, position, children, position + 1, size - position);
+        slots[position] = slot;
+        children[position] = child;
+        size++;
+    }
+
+    private void remove(int position) {
+        System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+        System.arraycopy(children, position + 1, children, position, size - position - 1);
+        children[--size] = null;
+    }
+
     /* *********************************************************************** */
     /* ***************  IMPLEMENT THE FOLLOWING PUBLIC METHODS:  ************ */
     /* *********************************************************************** */
@@ -43,8 +110,9 @@ public class PRQuadGrayNode extends PRQuadNode{
      */
     public PRQuadGrayNode(KDPoint centroid, int k, int bucketingParam){
         super(centroid, k, bucketingParam); // Call to the super class' protected constructor to properly initialize the object!
-
-
+        int length = (int) Math.min(INITIAL_SLOTS, 1L << lower.length);
+        slots = new int[length];
+        children = new PRQuadNode[length];
     }
 
 
@@ -63,9 +131,20 @@ public class PRQuadGrayNode extends PRQuadNode{
      */
     @Override
     public PRQuadNode insert(KDPoint p, int k) {
+        return insert(new KDPoint(p), new DoubleKDPoint(p), k);
+    }
 
-
-        return null;
+    @Override
+    PRQuadNode insert(KDPoint p, DoubleKDPoint dp, int k) {
+        int slot = childIndex(dp);
+        int position = find(slot);
+        if (position < 0) {
+            position = -position - 1;
+            add(position, slot, new PRQuadBlackNode(childCentroid(slot), k - 1, bucketingParam));
+        }
+        children[position] = children[position].insert(p, dp, k - 1);
+        count++;
+        return this;
     }
 
     /**
@@ -92,36 +171,67 @@ public class PRQuadGrayNode extends PRQuadNode{
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-
-
-        return null;
+        int position = find(childIndex(new DoubleKDPoint(p)));
+        if (position < 0)
+            return this;
+        int before = children[position].count();
+        PRQuadNode child = children[position].delete(p);
+        if (child == null)
+            remove(position);
+        else
+            children[position] = child;
+        count -= before - (child == null ? 0 : child.count());
+
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            if (children[i] instanceof PRQuadGrayNode)
+                return this;
+            total += children[i].count();
+        }
+        if (total == 0)
+            return null;
+        if (size > 1 && total > bucketingParam)
+            return this;
+
+        PRQuadBlackNode merged = new PRQuadBlackNode(centroid, k, bucketingParam);
+        for (int i = 0; i < size; i++) {
+            PRQuadBlackNode black = (PRQuadBlackNode) children[i];
+            Iterator<DoubleKDPoint> doubles = black.getDoublePoints().iterator();
+            for (KDPoint point : black.getPoints())
+                merged.insert(point, doubles.next(), k);
+        }
+        return merged;
     }
 
     @Override
     public boolean search(KDPoint p){
-
-
-
-        return true;
+        int position = find(childIndex(new DoubleKDPoint(p)));
+        return position >= 0 && children[position].search(p);
     }
 
     @Override
     public int height(){
-
-
-        return 0;
+        int max = -1;
+        for (int i = 0; i < size; i++)
+            max = Math.max(max, children[i].height());
+        return max + 1;
     }
 
+    /**
+     * Returns the number of {@link KDPoint}s under the current node, in constant time.
+     * @return The number of {@link KDPoint}s stored in the subtree rooted at this.
+     */
     @Override
     public int count(){
-
-
-        return 0;
+        return count;
     }
 
     /**
      * Returns the children of the current node in the form of a Z-ordered 1-D array.
-     * @return An array of references to the children of {@code this}. The order is Z (Morton), like so:
+     * @return A freshly allocated array of references to the children of {@code this}, with {@code null}s for the
+     * empty ones. For a tree of d dimensions, it has 2^d slots, in the order described by the index bits of the
+     * children: bit 0 is set for the East children and bit i, for i &gt; 0, for the children on the smaller side
+     * of dimension i. In 2-D, the order is Z (Morton), like so:
      * <ol>
      *     <li>0 is NW</li>
      *     <li>1 is NE</li>
@@ -130,30 +240,126 @@ public class PRQuadGrayNode extends PRQuadNode{
      * </ol>
      */
     public PRQuadNode[] getChildren(){
+        PRQuadNode[] all = new PRQuadNode[1 << lower.length];
+        for (int i = 0; i < size; i++)
+            all[slots[i]] = children[i];
+        return all;
+    }
 
+    /**
+     * Returns the number of non-empty children of the current node, which is at most 2^d for a tree of d
+     * dimensions.
+     * @return The number of children of {@code this} that hold at least one {@link KDPoint}.
+     */
+    public int getChildCount(){
+        return size;
+    }
 
+    /**
+     * Returns one of the non-empty children of the current node, without allocating the 2^d slots of
+     * {@link #getChildren()}. The children are numbered from 0 to {@link #getChildCount()} - 1, in increasing order of
+     * their index in {@link #getChildren()}.
+     * @param position The number of the child, between 0 and {@link #getChildCount()} - 1.
+     * @return The non-empty child at that position.
+     * @see #getChildSlot(int)
+     */
+    public PRQuadNode getChild(int position){
+        return children[position];
+    }
 
-        return null;
+    /**
+     * Returns the index that the child at position occupies in {@link #getChildren()}, which tells which quadrant
+     * of the current node it spans.
+     * @param position The number of the child, between 0 and {@link #getChildCount()} - 1.
+     * @return The index of the child in the Z-ordered array of all the children of {@code this}.
+     * @see #getChild(int)
+     */
+    public int getChildSlot(int position){
+        return slots[position];
     }
 
     @Override
     public void range(KDPoint anchor, Collection<KDPoint> results,
                       BigDecimal range) {
+        double r = range.doubleValue();
+        range(anchor, new DoubleKDPoint(anchor), results, range, r * r, 0, null);
+    }
 
+    @Override
+    void range(KDPoint anchor, DoubleKDPoint dAnchor, Collection<KDPoint> results,
+               BigDecimal range, double rangeSq, int depth, QueryStats stats) {
+        if (stats != null)
+            stats.visit(depth);
+        double slack = rangeSq * (1 + RangeCheck.TOLERANCE); // Never prune a quadrant over rounding.
+        for (int i = 0; i < size; i++) {
+            if (children[i].intersectsRange(dAnchor, slack))
+                children[i].range(anchor, dAnchor, results, range, rangeSq, depth + 1, stats);
+            else if (stats != null)
+                stats.subtreesPruned++;
+        }
+    }
 
+    @Override
+    void box(Box b, Collection<KDPoint> results) {
+        for (int i = 0; i < size; i++) {
+            if (b.intersects(children[i].lower, children[i].upper))
+                children[i].box(b, results);
+        }
     }
 
     @Override
-    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n)  {
+    int boxCount(Box b) {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            PRQuadNode child = children[i];
+            if (b.covers(child.lower, child.upper))
+                total += child.count(); // Every point of the quadrant is in the box.
+            else if (b.intersects(child.lower, child.upper))
+                total += child.boxCount(b);
+        }
+        return total;
+    }
 
+    @Override
+    int rangeCount(KDPoint anchor, DoubleKDPoint dAnchor, BigDecimal range, double rangeSq) {
+        double slack = rangeSq * (1 + RangeCheck.TOLERANCE);
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            PRQuadNode child = children[i];
+            if (child.maxDistanceSquared(dAnchor) < rangeSq * (1 - RangeCheck.TOLERANCE))
+                total += child.count(); // The whole quadrant lies within range.
+            else if (child.intersectsRange(dAnchor, slack))
+                total += child.rangeCount(anchor, dAnchor, range, rangeSq);
+        }
+        return total;
+    }
 
-        return null;
+    @Override
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n)  {
+        return nearestNeighborOf(anchor, n);
     }
 
     @Override
     public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+        kNearestNeighbors(anchor, new DoubleKDPoint(anchor), queue, 0, null);
+    }
 
-
+    @Override
+    void kNearestNeighbors(KDPoint anchor, DoubleKDPoint dAnchor, BoundedPriorityQueue<KDPoint> queue, int depth,
+                           QueryStats stats) {
+        if (stats != null)
+            stats.visit(depth);
+        // Greedy descent first: the quadrant containing the anchor is the most promising one.
+        int first = find(childIndex(dAnchor));
+        if (first >= 0)
+            children[first].kNearestNeighbors(anchor, dAnchor, queue, depth + 1, stats);
+        for (int i = 0; i < size; i++) {
+            if (i == first)
+                continue;
+            if (children[i].minDistanceSquared(dAnchor) < queue.threshold())
+                children[i].kNearestNeighbors(anchor, dAnchor, queue, depth + 1, stats);
+            else if (stats != null)
+                stats.subtreesPruned++;
+        }
     }
 }
-
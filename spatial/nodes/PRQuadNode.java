@@ -1,12 +1,16 @@
 package projects.spatial.nodes;
 
+import projects.spatial.kdpoint.DoubleKDPoint;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.trees.PRQuadTree;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
 
 /**
  * <p>{@link PRQuadNode} is an abstract class used to provide the common structure that all
@@ -60,6 +64,20 @@ public abstract class PRQuadNode {
      */
     protected int bucketingParam;
 
+    /**
+     * A primitive mirror of {@link #centroid}, so that routing points to children and bounding query distances
+     * never has to touch {@link BigDecimal} arithmetic.
+     * @see DoubleKDPoint
+     */
+    protected DoubleKDPoint doubleCentroid;
+
+    /**
+     * The bounding box of the quadrant spanned by the current node, in primitive form: {@code lower[i]} and
+     * {@code upper[i]} are the smallest and largest coordinates of the quadrant at dimension i. Computed once, on
+     * construction, so that pruning tests only ever subtract and multiply.
+     * @see #minDistanceSquared(DoubleKDPoint)
+     */
+    protected double[] lower, upper;
 
 
     /**
@@ -83,6 +101,14 @@ public abstract class PRQuadNode {
         this.centroid = centroid;
         this.k = k;
         this.bucketingParam = bucketingParam;
+        doubleCentroid = new DoubleKDPoint(centroid);
+        double half = Math.scalb(1.0, k - 1); // 2^(k-1), exactly.
+        lower = doubleCentroid.toArray();
+        upper = doubleCentroid.toArray();
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] -= half;
+            upper[i] += half;
+        }
     }
 
     /**
@@ -96,6 +122,16 @@ public abstract class PRQuadNode {
      */
     public abstract PRQuadNode insert(KDPoint p, int k);
 
+    /**
+     * Primitive-aware version of {@link #insert(KDPoint, int)}. The {@link KDPoint} is already a private copy owned
+     * by the tree, and dp is its {@link DoubleKDPoint} mirror, so that splits never have to re-convert coordinates.
+     * @param p A {@link KDPoint} to insert into the subtree rooted at the current node.
+     * @param dp The primitive mirror of p.
+     * @param k The side length of the quadrant spanned by the current {@link PRQuadNode}.
+     * @return The subtree rooted at the current node, potentially adjusted after insertion.
+     */
+    abstract PRQuadNode insert(KDPoint p, DoubleKDPoint dp, int k);
+
     /**
      * Deletes the given point from the subtree rooted at the current node. If the
      * point is <b>not</b> in the subtree, <b>no changes</b>  should be performed in the subtree.
@@ -195,6 +231,33 @@ public abstract class PRQuadNode {
     public abstract void range(KDPoint anchor, Collection<KDPoint> results,
                                BigDecimal range);
 
+    /**
+     * Recursive body of {@link #range(KDPoint, Collection, BigDecimal)}, with the anchor and the squared range
+     * converted to primitives once per query.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param dAnchor The primitive mirror of anchor.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s found.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param rangeSq The square of {@code range.doubleValue()}.
+     * @param depth The depth of this node, the root being at depth 0.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    abstract void range(KDPoint anchor, DoubleKDPoint dAnchor, Collection<KDPoint> results,
+                        BigDecimal range, double rangeSq, int depth, QueryStats stats);
+
+    /**
+     * Same as {@link #range(KDPoint, Collection, BigDecimal)}, but also records the work done by the query in stats.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s within range.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    public void range(KDPoint anchor, Collection<KDPoint> results, BigDecimal range, QueryStats stats)
+    {
+        double r = range.doubleValue();
+        range(anchor, new DoubleKDPoint(anchor), results, range, r * r, 0, stats);
+    }
+
     /**
      * <p>Executes a nearest neighbor query, which returns the nearest neighbor, in terms of
      * {@link KDPoint#distanceSquared(KDPoint)}, from the &quot;anchor&quot; point.</p>
@@ -246,6 +309,241 @@ public abstract class PRQuadNode {
      * @see BoundedPriorityQueue
      */
     public abstract void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue);
+
+    /**
+     * Recursive, primitive body of both {@link #nearestNeighbor(KDPoint, NNData)} and
+     * {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)}: a nearest neighbor query is simply a
+     * k-NN query with a queue of capacity 1. The anchor itself is never reported.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query. Only a point with exactly its coordinates
+     *               is skipped, not one whose coordinates merely round to the same doubles.
+     * @param dAnchor The primitive mirror of anchor.
+     * @param queue A {@link BoundedPriorityQueue} that maintains the best candidates found so far. Its
+     *              {@link BoundedPriorityQueue#threshold() threshold} bounds which subtrees have to be visited.
+     * @param depth The depth of this node, the root being at depth 0.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    abstract void kNearestNeighbors(KDPoint anchor, DoubleKDPoint dAnchor, BoundedPriorityQueue<KDPoint> queue,
+                                    int depth, QueryStats stats);
+
+    /**
+     * Same as {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)}, but also records the work done by the
+     * query in stats.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of the anchor.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     */
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, QueryStats stats)
+    {
+        kNearestNeighbors(anchor, new DoubleKDPoint(anchor), queue, 0, stats);
+    }
+
+    /**
+     * Computes the squared Euclidean distance between anchor and the closest point of the quadrant spanned by
+     * {@code this}. It is 0 when the anchor lies inside the quadrant.
+     * @param anchor The primitive mirror of the &quot;anchor&quot; {@link KDPoint} of a query.
+     * @return A lower bound on the squared distance between anchor and any {@link KDPoint} stored under this.
+     */
+    protected double minDistanceSquared(DoubleKDPoint anchor)
+    {
+        double sum = 0;
+        for (int i = 0; i < lower.length; i++) {
+            double a = anchor.coord(i), diff;
+            if (a < lower[i])
+                diff = lower[i] - a;
+            else if (a > upper[i])
+                diff = a - upper[i];
+            else
+                continue;
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the squared Euclidean distance between anchor and the farthest point of the quadrant spanned by
+     * {@code this}.
+     * @param anchor The primitive mirror of the &quot;anchor&quot; {@link KDPoint} of a query.
+     * @return An upper bound on the squared distance between anchor and any {@link KDPoint} stored under this.
+     */
+    protected double maxDistanceSquared(DoubleKDPoint anchor)
+    {
+        double sum = 0;
+        for (int i = 0; i < lower.length; i++) {
+            double a = anchor.coord(i), diff = Math.max(Math.abs(a - lower[i]), Math.abs(upper[i] - a));
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Primitive, k-dimensional replacement for {@link #doesQuadIntersectAnchorRange(KDPoint, double)}: reports whether
+     * the hypersphere of a range query reaches into the quadrant spanned by {@code this}. Only squared distances are
+     * compared, so there are no square roots, no powers and no {@link BigDecimal} conversions.
+     * @param anchor The primitive mirror of the anchor of the range query.
+     * @param rangeSq The square of the range of the query. Callers that must not miss points lying exactly on the
+     *                boundary of the query should pass a slightly widened value.
+     * @return {@code true} iff some point of the quadrant lies within the range of the anchor.
+     */
+    protected boolean intersectsRange(DoubleKDPoint anchor, double rangeSq)
+    {
+        return minDistanceSquared(anchor) <= rangeSq;
+    }
+
+    /**
+     * Executes a box query in the subtree rooted at the current node: adds to results every {@link KDPoint} whose
+     * coordinates all lie between those of lower and upper, <b>INCLUSIVE</b>. Quadrants that do not intersect the box
+     * are skipped.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates. An empty box, with a coordinate smaller than
+     *              that of lower, holds no points.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s in the box.
+     */
+    public void box(KDPoint lower, KDPoint upper, Collection<KDPoint> results)
+    {
+        Box b = new Box(lower, upper);
+        if (!b.isEmpty() && b.intersects(this.lower, this.upper))
+            box(b, results);
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #box(KDPoint, KDPoint, Collection)} would report, without collecting
+     * them. The points of quadrants that lie entirely inside the box are counted without being examined.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates.
+     * @return The number of {@link KDPoint}s of the subtree that lie in the box.
+     */
+    public int boxCount(KDPoint lower, KDPoint upper)
+    {
+        Box b = new Box(lower, upper);
+        return b.isEmpty() || !b.intersects(this.lower, this.upper) ? 0 : boxCount(b);
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, Collection, BigDecimal)} would report, without collecting
+     * them. Quadrants that lie entirely within range are counted through their {@link #count()}, without being
+     * visited, and quadrants that lie entirely beyond range are skipped.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @return The number of {@link KDPoint}s of the subtree, other than the anchor, that lie within range of it.
+     */
+    public int rangeCount(KDPoint anchor, BigDecimal range)
+    {
+        double r = range.doubleValue();
+        DoubleKDPoint dAnchor = new DoubleKDPoint(anchor);
+        int total = maxDistanceSquared(dAnchor) < r * r * (1 - RangeCheck.TOLERANCE) ? count()
+                : rangeCount(anchor, dAnchor, range, r * r);
+        return total - boxCount(anchor, anchor); // The anchor itself is never part of the result.
+    }
+
+    /**
+     * Recursive body of {@link #rangeCount(KDPoint, BigDecimal)}, which also counts the {@link KDPoint}s equal to the
+     * anchor.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param dAnchor The primitive mirror of anchor.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @param rangeSq The square of {@code range.doubleValue()}.
+     * @return The number of {@link KDPoint}s of the subtree that lie within range of the anchor.
+     */
+    abstract int rangeCount(KDPoint anchor, DoubleKDPoint dAnchor, BigDecimal range, double rangeSq);
+
+    /**
+     * Recursive body of {@link #box(KDPoint, KDPoint, Collection)}, for a quadrant that intersects the box.
+     * @param b The box of the query.
+     * @param results A {@link Collection} that accumulates all the {@link KDPoint}s in the box.
+     */
+    abstract void box(Box b, Collection<KDPoint> results);
+
+    /**
+     * Recursive body of {@link #boxCount(KDPoint, KDPoint)}, for a quadrant that intersects the box.
+     * @param b The box of the query.
+     * @return The number of {@link KDPoint}s of the subtree that lie in the box.
+     */
+    abstract int boxCount(Box b);
+
+    /**
+     * Returns a lazy, splittable walk over the answers of the range query that
+     * {@link #range(KDPoint, Collection, BigDecimal)} would answer, with the same {@link KDPoint}s. Quadrants are only
+     * visited when the walk reaches them, and only if they intersect the range of the anchor. The subtree must not be
+     * modified while the walk is in progress.
+     * @param anchor The centroid of the hypersphere that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the anchor.
+     * @return A {@link Spliterator} over the {@link KDPoint}s of the subtree that lie within range of anchor.
+     * @see RangeSpliterator
+     */
+    public Spliterator<KDPoint> rangeSpliterator(KDPoint anchor, BigDecimal range)
+    {
+        Range walk = new Range(anchor, range);
+        walk.push(this, 0);
+        return walk;
+    }
+
+    private static final class Range extends RangeSpliterator<PRQuadNode> {
+
+        private Range(KDPoint anchor, BigDecimal range) {
+            super(anchor, range);
+        }
+
+        private Range(Range parent) {
+            super(parent);
+        }
+
+        @Override
+        void visit(PRQuadNode n, int level) {
+            if (n instanceof PRQuadGrayNode) {
+                PRQuadGrayNode gray = (PRQuadGrayNode) n;
+                for (int i = gray.getChildCount() - 1; i >= 0; i--) {
+                    if (gray.getChild(i).intersectsRange(dAnchor, slack))
+                        push(gray.getChild(i), level + 1);
+                }
+                return;
+            }
+            PRQuadBlackNode black = (PRQuadBlackNode) n;
+            Iterator<DoubleKDPoint> doubles = black.getDoublePoints().iterator();
+            for (KDPoint p : black.getPoints()) {
+                DoubleKDPoint dp = doubles.next();
+                if (dp.equals(dAnchor) && PRQuadBlackNode.sameCoords(p, anchor))
+                    continue; // The anchor itself is never part of the result.
+                if (RangeCheck.withinRange(p, dp, anchor, dAnchor, range, rangeSq))
+                    emit(p);
+            }
+        }
+
+        @Override
+        RangeSpliterator<PRQuadNode> fork() {
+            return new Range(this);
+        }
+    }
+
+    /**
+     * Shared implementation of {@link #nearestNeighbor(KDPoint, NNData)} for all node types.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+     * @param n The best guess known to the caller, if any.
+     * @return The (possibly improved) best guess.
+     */
+    NNData<KDPoint> nearestNeighborOf(KDPoint anchor, NNData<KDPoint> n)
+    {
+        return nearestNeighbor(anchor, n, null);
+    }
+
+    /**
+     * Same as {@link #nearestNeighbor(KDPoint, NNData)}, but also records the work done by the query in stats.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+     * @param n The best guess known to the caller, if any.
+     * @param stats A {@link QueryStats} instance to add to, or {@code null}.
+     * @return The (possibly improved) best guess.
+     */
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n, QueryStats stats)
+    {
+        BoundedPriorityQueue<KDPoint> best = new BoundedPriorityQueue<>(1);
+        DoubleKDPoint dAnchor = new DoubleKDPoint(anchor);
+        if (n.bestGuess != null)
+            best.enqueue(n.bestGuess, new DoubleKDPoint(n.bestGuess).distanceSquared(dAnchor));
+        kNearestNeighbors(anchor, dAnchor, best, 0, stats);
+        if (best.isEmpty() || best.first() == n.bestGuess)
+            return n;
+        return new NNData<>(best.first(), best.first().distanceSquared(anchor));
+    }
 }
 
 
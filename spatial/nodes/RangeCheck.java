@@ -0,0 +1,70 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.DoubleKDPoint;
+import projects.spatial.kdpoint.KDPoint;
+
+import java.math.BigDecimal;
+
+/**
+ * <p>{@link RangeCheck} decides whether a stored {@link KDPoint} falls within the <b>INCLUSIVE</b> range of a
+ * range query. The decision is made in primitive arithmetic over the {@link DoubleKDPoint} mirrors of the two
+ * points; only when the squared distance lies within a few ulps of the squared range do we fall back to the exact
+ * {@link BigDecimal} comparison, so that points lying exactly on the boundary of the query are treated exactly as
+ * they were before the primitive path existed.</p>
+ *
+ * <p>This class is part of the supported public API of the spatial package. The array-based trees of
+ * {@code projects.spatial.trees} keep no nodes of their own, and call it directly so that every tree decides the
+ * boundaries of a range query in the same way. Its contract, including the value of {@link #TOLERANCE}, is therefore
+ * kept stable.</p>
+ *
+ * @see KDTreeNode
+ * @see PRQuadBlackNode
+ * @see projects.spatial.trees.FlatKDTree
+ * @see projects.spatial.trees.LinearQuadTree
+ * @see projects.spatial.trees.MappedKDTree
+ * @see projects.spatial.trees.MappedPRQuadTree
+ */
+public final class RangeCheck {
+
+    /**
+     * Relative width of the band around the squared range in which the double result is not trusted. Trees that prune
+     * with primitive arithmetic widen their pruning bounds by it, so that they never prune a point that
+     * {@link #withinRange(double, KDPoint, KDPoint, BigDecimal, double)} would accept.
+     */
+    public static final double TOLERANCE = 1e-9;
+
+    private RangeCheck(){}
+
+    /**
+     * Reports whether p lies within range of anchor, inclusive.
+     * @param p The stored {@link KDPoint}.
+     * @param dp The primitive mirror of p.
+     * @param anchor The anchor of the range query.
+     * @param dAnchor The primitive mirror of anchor.
+     * @param range The range of the query, as given by the caller.
+     * @param rangeSq The square of {@code range.doubleValue()}, computed once per query.
+     * @return {@code true} iff the Euclidean distance between p and anchor is at most range.
+     */
+    public static boolean withinRange(KDPoint p, DoubleKDPoint dp, KDPoint anchor, DoubleKDPoint dAnchor,
+                                      BigDecimal range, double rangeSq){
+        return withinRange(dp.distanceSquared(dAnchor), p, anchor, range, rangeSq);
+    }
+
+    /**
+     * Same as {@link #withinRange(KDPoint, DoubleKDPoint, KDPoint, DoubleKDPoint, BigDecimal, double)}, for callers
+     * that keep their coordinates in raw arrays and have already computed the squared distance in primitive arithmetic.
+     * @param distSq The squared distance between p and anchor, as computed over doubles.
+     * @param p The stored {@link KDPoint}.
+     * @param anchor The anchor of the range query.
+     * @param range The range of the query, as given by the caller.
+     * @param rangeSq The square of {@code range.doubleValue()}, computed once per query.
+     * @return {@code true} iff the Euclidean distance between p and anchor is at most range.
+     */
+    public static boolean withinRange(double distSq, KDPoint p, KDPoint anchor, BigDecimal range, double rangeSq){
+        if(distSq < rangeSq * (1 - TOLERANCE))
+            return true;
+        if(distSq > rangeSq * (1 + TOLERANCE))
+            return false;
+        return new BigDecimal(Math.sqrt(p.distanceSquared(anchor).doubleValue())).compareTo(range) <= 0;
+    }
+}
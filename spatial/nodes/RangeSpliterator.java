@@ -0,0 +1,147 @@
+package projects.spatial.nodes;
+
+import projects.spatial.kdpoint.DoubleKDPoint;
+import projects.spatial.kdpoint.KDPoint;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * <p>{@link RangeSpliterator} walks the subtrees of a spatial tree that may hold answers to a range query <b>lazily</b>,
+ * one node at a time, and hands out the {@link KDPoint}s it finds as it finds them. Instead of recursing, it keeps the
+ * subtrees still to visit on an explicit stack, so it can stop after any point, and resume later; a caller that only
+ * wants the first few answers never pays for the rest of the tree.</p>
+ *
+ * <p>The pending subtrees of the stack are disjoint, so {@link #trySplit()} simply hands out the bottom half of the
+ * stack to a new {@link RangeSpliterator}, which is how parallel streams divide the work between threads. The bottom
+ * of the stack holds the subtrees closest to the root, and therefore the largest ones.</p>
+ *
+ * <p>Subclasses say how to visit one node of their kind of tree, through {@link #visit(Object, int)}.</p>
+ *
+ * @param <N> The type of the nodes of the tree.
+ * @see KDTreeNode#rangeSpliterator(KDPoint, BigDecimal, int, int)
+ * @see PRQuadNode#rangeSpliterator(KDPoint, BigDecimal)
+ */
+abstract class RangeSpliterator<N> implements Spliterator<KDPoint> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    final KDPoint anchor;
+    final DoubleKDPoint dAnchor;
+    final BigDecimal range;
+    final double rangeSq;
+    final double slack; // rangeSq, widened so that no subtree is pruned over rounding.
+
+    /*
+     * The stack of subtrees to visit: nodes[0, size), along with an int per node that the subclass may use
+     * to remember, e.g., the splitting dimension of the node.
+     */
+    private Object[] nodes = new Object[INITIAL_CAPACITY];
+    private int[] levels = new int[INITIAL_CAPACITY];
+    private int size;
+    private long estimate = Long.MAX_VALUE;
+
+    private final ArrayDeque<KDPoint> ready = new ArrayDeque<>(); // Found, but not handed out yet.
+
+    RangeSpliterator(KDPoint anchor, BigDecimal range) {
+        this.anchor = anchor;
+        dAnchor = new DoubleKDPoint(anchor);
+        this.range = range;
+        double r = range.doubleValue();
+        rangeSq = r * r;
+        slack = rangeSq * (1 + RangeCheck.TOLERANCE);
+    }
+
+    /**
+     * Creates an empty {@link RangeSpliterator} for the same query as parent.
+     * @param parent The {@link RangeSpliterator} being split.
+     */
+    RangeSpliterator(RangeSpliterator<N> parent) {
+        anchor = parent.anchor;
+        dAnchor = parent.dAnchor;
+        range = parent.range;
+        rangeSq = parent.rangeSq;
+        slack = parent.slack;
+    }
+
+    /**
+     * Visits a single node: {@link #emit(KDPoint) emits} the {@link KDPoint}s stored in the node itself that are in
+     * range, and {@link #push(Object, int) pushes} the children whose subtrees may hold more.
+     * @param node The node to visit.
+     * @param level The int pushed along with the node.
+     */
+    abstract void visit(N node, int level);
+
+    /**
+     * Creates an empty {@link RangeSpliterator} of the same kind, for the same query.
+     * @return A new, empty {@link RangeSpliterator}.
+     */
+    abstract RangeSpliterator<N> fork();
+
+    final void push(N node, int level) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * size);
+            levels = Arrays.copyOf(levels, 2 * size);
+        }
+        nodes[size] = node;
+        levels[size++] = level;
+    }
+
+    final void emit(KDPoint p) {
+        ready.add(p);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitTop() {
+        N node = (N) nodes[--size];
+        nodes[size] = null;
+        visit(node, levels[size]);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super KDPoint> action) {
+        while (ready.isEmpty() && size > 0)
+            visitTop();
+        if (ready.isEmpty())
+            return false;
+        action.accept(ready.poll());
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Spliterator<KDPoint> trySplit() {
+        while (size == 1)
+            visitTop(); // A single subtree cannot be shared: open it up.
+        if (size < 2)
+            return null;
+        RangeSpliterator<N> other = fork();
+        int half = size / 2;
+        for (int i = 0; i < half; i++)
+            other.push((N) nodes[i], levels[i]);
+        System.arraycopy(nodes, half, nodes, 0, size - half);
+        System.arraycopy(levels, half, levels, 0, size - half);
+        Arrays.fill(nodes, size - half, size, null);
+        size -= half;
+        estimate >>>= 1;
+        other.estimate = estimate;
+        return other;
+    }
+
+    /**
+     * The number of answers is not known before the walk, so this starts at {@link Long#MAX_VALUE} and is halved on
+     * every split, which is what a parallel stream needs to stop splitting after a few levels.
+     */
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+}
@@ -0,0 +1,226 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.NNData;
+import projects.spatial.nodes.KDTreeNode;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>{@link ConcurrentKDTree} is a <em>K</em>-D Tree that may be queried by any number of threads while another thread
+ * updates it. Readers never block and never wait for writers; writers are serialized among themselves.</p>
+ *
+ * <p>This is achieved through <b>copy-on-write</b> path copying: an update never modifies a node that is reachable
+ * from the current root. It builds a new version of the tree that shares all untouched subtrees with the old one,
+ * through {@link KDTreeNode#insertCopy(KDPoint, int, int)} and {@link KDTreeNode#deleteCopy(KDPoint, int, int)}, and
+ * then publishes it with a single volatile write. A query reads that volatile reference once, and then works on an
+ * immutable version of the tree, as of the moment it started. An update costs O(depth) node copies.</p>
+ *
+ * <p>The root, the count and the height of a version are published <b>together</b>, so each of {@link #count()} and
+ * {@link #height()} reads a single, consistent version of the tree. Two separate calls may still see two different
+ * versions, if an update is published in between.</p>
+ *
+ * @see KDTree
+ * @see KDTreeNode#insertCopy(KDPoint, int, int)
+ */
+public class ConcurrentKDTree implements SpatialDictionary, SpatialQuerySolver {
+
+	/**
+	 * An immutable version of the tree. Never modified after publication.
+	 */
+	private static final class Version {
+		private final KDTreeNode root;
+		private final int count;
+
+		private Version(KDTreeNode root, int count){
+			this.root = root;
+			this.count = count;
+		}
+
+		private int height(){
+			return root == null ? -1 : root.storedHeight();
+		}
+	}
+
+	private final int dims;
+	private final Object writeLock = new Object();
+	private volatile Version current;
+
+	/**
+	 * Default constructor constructs this with <em>k=2</em>.
+	 * @see KDTree#DEFAULT_DIMS
+	 */
+	public ConcurrentKDTree(){
+		this(KDTree.DEFAULT_DIMS);
+	}
+
+	/**
+	 * This constructor requires that the user provide the value for <em>k</em>.
+	 * @param k The dimensionality of this.
+	 * @throws RuntimeException if k&lt;=0.
+	 */
+	public ConcurrentKDTree(int k){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		dims = k;
+		current = new Version(null, 0);
+	}
+
+	@Override
+	public void insert(KDPoint p){
+		synchronized(writeLock){
+			Version v = current;
+			KDTreeNode root = v.root == null ? new KDTreeNode(p) : v.root.insertCopy(p, 0, dims);
+			current = new Version(root, v.count + 1);
+		}
+	}
+
+	@Override
+	public void delete(KDPoint p){
+		synchronized(writeLock){
+			Version v = current;
+			if(v.root != null && v.root.search(p, 0, dims))
+				current = new Version(v.root.deleteCopy(p, 0, dims), v.count - 1);
+		}
+	}
+
+	@Override
+	public boolean search(KDPoint p){
+		KDTreeNode root = current.root;
+		return root != null && root.search(p, 0, dims);
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, BigDecimal range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		KDTreeNode root = current.root;
+		if(root != null)
+			root.range(p, pts, range, 0, dims);
+		return pts;
+	}
+
+	/**
+	 * {@inheritDoc} Every node knows the size of its subtree, so subtrees whose whole cell lies within range are
+	 * counted in constant time.
+	 */
+	@Override
+	public int rangeCount(KDPoint p, BigDecimal range){
+		KDTreeNode root = current.root;
+		return root == null ? 0 : root.rangeCount(p, range, 0, dims);
+	}
+
+	/**
+	 * Performs an axis-aligned box query: returns all the {@link KDPoint}s whose coordinates all lie between those of
+	 * lower and upper, <b>INCLUSIVE</b>. Subtrees that lie entirely on one side of the box are pruned by their
+	 * splitting planes.
+	 * @param lower The corner of the box with the smallest coordinates.
+	 * @param upper The corner of the box with the largest coordinates. If some coordinate of upper is smaller than
+	 *              that of lower, the box is empty.
+	 * @return A {@link Collection} over all {@link KDPoint}s in the box, which is empty if there are none.
+	 * @throws RuntimeException if the corners do not have the dimensionality of this.
+	 */
+	public Collection<KDPoint> box(KDPoint lower, KDPoint upper){
+		checkCorners(lower, upper);
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		KDTreeNode root = current.root;
+		if(root != null)
+			root.box(lower, upper, pts, 0, dims);
+		return pts;
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that {@link #box(KDPoint, KDPoint)} would return, without collecting them.
+	 * @param lower The corner of the box with the smallest coordinates.
+	 * @param upper The corner of the box with the largest coordinates.
+	 * @return The number of {@link KDPoint}s in the box.
+	 * @throws RuntimeException if the corners do not have the dimensionality of this.
+	 */
+	public int boxCount(KDPoint lower, KDPoint upper){
+		checkCorners(lower, upper);
+		KDTreeNode root = current.root;
+		return root == null ? 0 : root.boxCount(lower, upper, 0, dims);
+	}
+
+	private void checkCorners(KDPoint lower, KDPoint upper){
+		if(lower.coords.length != dims || upper.coords.length != dims)
+			throw new RuntimeException("Cannot query a " + dims + "-D tree with the corners of a " + lower.coords.length + "-D box.");
+	}
+
+	/**
+	 * {@inheritDoc} Unlike with the other trees, the stream may be consumed while this is being updated: it walks the
+	 * version of the tree that was current when this was called.
+	 */
+	@Override
+	public Stream<KDPoint> rangeStream(KDPoint p, BigDecimal range){
+		KDTreeNode root = current.root;
+		if(root == null)
+			return Stream.empty();
+		return StreamSupport.stream(root.rangeSpliterator(p, range, 0, dims), false);
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		NNData<KDPoint> n = new NNData<KDPoint>(null, KDTree.INFTY);
+		KDTreeNode root = current.root;
+		if(root != null)
+			n = root.nearestNeighbor(p, 0, n, dims);
+		return n.bestGuess;
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+		KDTreeNode root = current.root;
+		if(root != null)
+			root.kNearestNeighbors(k, p, queue, 0, dims);
+		return queue;
+	}
+
+	/**
+	 * {@inheritDoc} Unlike with the other trees, the batch may run while this is being updated: all of its queries
+	 * see the same version of the tree, the one current when the batch started.
+	 */
+	@Override
+	public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors){
+		KDTreeNode root = current.root;
+		return KNNBatch.run(k, anchors, (p, queue) -> {
+			if(root != null)
+				root.kNearestNeighbors(k, p, queue, 0, dims);
+		});
+	}
+
+	/**
+	 * Returns the height of the current version of the tree, in constant time.
+	 * @return The height of this, or -1 if it is empty.
+	 */
+	@Override
+	public int height(){
+		return current.height();
+	}
+
+	@Override
+	public boolean isEmpty(){
+		return current.count == 0;
+	}
+
+	@Override
+	public int count(){
+		return current.count;
+	}
+
+	/**
+	 * Returns the dimensionality of this.
+	 * @return The dimensionality k of the indexed space.
+	 */
+	public int getDims(){
+		return dims;
+	}
+}
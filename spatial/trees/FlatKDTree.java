@@ -0,0 +1,312 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.knnutils.QueryStats;
+import projects.spatial.nodes.RangeCheck;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>{@link FlatKDTree} is an <b>immutable</b>, pointer-free snapshot of a {@link KDTree}, meant for workloads that
+ * build a tree once and then query it many times. Instead of one heap object per node, linked through references, it
+ * stores a balanced KD-Tree in <em>implicit</em> (Eytzinger, or BFS) order: the root is at slot 0 and the children of
+ * slot i are at slots 2i+1 and 2i+2, so no references are stored at all. The coordinates of all nodes live in a
+ * single contiguous {@code double[]}, slot after slot, which means that the top levels of the tree, visited by every
+ * query, share a handful of cache lines, and that a query never dereferences a {@link KDPoint} until it reports it.</p>
+ *
+ * <p>The splitting dimension of a slot is its depth modulo k, exactly like in a {@link KDTree}. Since the snapshot
+ * is never updated, points equal to a splitting value may end up on either side of it; queries account for that.
+ * Distances are computed in {@code double} precision, with the same exact fallback on the boundary of range queries
+ * that {@link KDTree} uses. As in {@link KDTree}, the anchor of a query is never part of its nearest neighbors.</p>
+ *
+ * @see KDTree#snapshot()
+ * @see MappedKDTree
+ * @see SpatialQuerySolver
+ */
+public class FlatKDTree implements SpatialQuerySolver {
+
+	private final int dims;
+	private final int count;
+	private final double[] coords; // Slot i occupies coords[i * dims, (i + 1) * dims).
+	private final KDPoint[] points; // The point at slot i, only touched when reported.
+
+	/**
+	 * Builds a snapshot over the provided {@link KDPoint}s. The shape of the snapshot only depends on the points, so
+	 * this is also a way to get a flat tree without building a {@link KDTree} first.
+	 * @param k The dimensionality of the space.
+	 * @param points The {@link KDPoint}s to store. They are deep-copied.
+	 * @throws RuntimeException if k&lt;=0, or if some {@link KDPoint} does not have k coordinates.
+	 */
+	public FlatKDTree(int k, Collection<KDPoint> points){
+		this(k, copyOf(points));
+	}
+
+	/* Takes ownership of the provided array. */
+	FlatKDTree(int k, KDPoint[] in){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		dims = k;
+		count = in.length;
+		coords = new double[count * dims];
+		points = new KDPoint[count];
+
+		double[] src = new double[count * dims];
+		int[] order = new int[count];
+		for(int i = 0; i < count; i++){
+			if(in[i].coords.length != dims)
+				throw new RuntimeException("Cannot insert a " + in[i].coords.length + "-D KDPoint into a " + dims + "-D tree.");
+			for(int d = 0; d < dims; d++)
+				src[i * dims + d] = in[i].coords[d].doubleValue();
+			order[i] = i;
+		}
+		build(in, src, order, 0, count, 0, 0);
+	}
+
+	private static KDPoint[] copyOf(Collection<KDPoint> points){
+		KDPoint[] copy = new KDPoint[points.size()];
+		int i = 0;
+		for(KDPoint p : points)
+			copy[i++] = new KDPoint(p);
+		return copy;
+	}
+
+	/* ************************************************************************** */
+	/* ********************************* BUILDING ******************************* */
+	/* ************************************************************************** */
+
+	/*
+	 * Fills slot with the median of order[from, to) at the current dimension. The split is not taken at the middle,
+	 * but so that the left part has exactly the size of the left subtree of a complete binary tree over to - from
+	 * nodes: this is what makes every slot in [0, count) occupied.
+	 */
+	private void build(KDPoint[] in, double[] src, int[] order, int from, int to, int slot, int dim){
+		if(from >= to)
+			return;
+		int split = from + leftSize(to - from);
+		select(src, order, from, to - 1, split, dim);
+		System.arraycopy(src, order[split] * dims, coords, slot * dims, dims);
+		points[slot] = in[order[split]];
+		int nextDim = dim + 1;
+		if(dim == dims - 1) nextDim = 0;
+		build(in, src, order, from, split, 2 * slot + 1, nextDim);
+		build(in, src, order, split + 1, to, 2 * slot + 2, nextDim);
+	}
+
+	/* The size of the left subtree of a complete binary tree with n nodes. */
+	private static int leftSize(int n){
+		if(n <= 1)
+			return 0;
+		int h = 31 - Integer.numberOfLeadingZeros(n); // Levels 0..h-1 are full.
+		int lastLevel = n - ((1 << h) - 1);
+		int halfLastLevel = 1 << (h - 1);
+		return halfLastLevel - 1 + Math.min(lastLevel, halfLastLevel);
+	}
+
+	/* Three-way quickselect over order, keyed by the coordinates in src at dim. */
+	private void select(double[] src, int[] order, int lo, int hi, int k, int dim){
+		while(hi > lo){
+			double pivot = src[order[lo + (hi - lo) / 2] * dims + dim];
+			int lt = lo, i = lo, gt = hi;
+			while(i <= gt){
+				double v = src[order[i] * dims + dim];
+				if(v < pivot)
+					swap(order, lt++, i++);
+				else if(v > pivot)
+					swap(order, i, gt--);
+				else
+					i++;
+			}
+			if(k < lt)
+				hi = lt - 1;
+			else if(k > gt)
+				lo = gt + 1;
+			else
+				return;
+		}
+	}
+
+	private static void swap(int[] a, int i, int j){
+		int t = a[i]; a[i] = a[j]; a[j] = t;
+	}
+
+	/* ************************************************************************** */
+	/* ********************************* QUERIES ******************************** */
+	/* ************************************************************************** */
+
+	private double distanceSquared(int slot, double[] anchor){
+		int base = slot * dims;
+		double sum = 0;
+		for(int d = 0; d < dims; d++){
+			double diff = coords[base + d] - anchor[d];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	private double[] toArray(KDPoint p){
+		if(p.coords.length != dims)
+			throw new RuntimeException("Cannot query a " + dims + "-D tree with a " + p.coords.length + "-D KDPoint.");
+		double[] a = new double[dims];
+		for(int d = 0; d < dims; d++)
+			a[d] = p.coords[d].doubleValue();
+		return a;
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, BigDecimal range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		if(count > 0){
+			double r = range.doubleValue();
+			double rangeSq = r * r;
+			range(0, 0, p, toArray(p), range, rangeSq, rangeSq * (1 + RangeCheck.TOLERANCE), pts);
+		}
+		return pts;
+	}
+
+	private void range(int slot, int dim, KDPoint anchor, double[] a, BigDecimal range, double rangeSq, double slack,
+					   Collection<KDPoint> results){
+		double distSq = distanceSquared(slot, a);
+		if(distSq != 0 || !sameCoords(points[slot], anchor)){ // The anchor itself is never part of the result.
+			if(RangeCheck.withinRange(distSq, points[slot], anchor, range, rangeSq))
+				results.add(points[slot]);
+		}
+		int nextDim = dim + 1;
+		if(dim == dims - 1) nextDim = 0;
+		double diff = a[dim] - coords[slot * dims + dim];
+		boolean nearPlane = diff * diff <= slack;
+		int low = 2 * slot + 1, high = low + 1;
+		if(low < count && (diff <= 0 || nearPlane))
+			range(low, nextDim, anchor, a, range, rangeSq, slack, results);
+		if(high < count && (diff >= 0 || nearPlane))
+			range(high, nextDim, anchor, a, range, rangeSq, slack, results);
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		return nearestNeighbor(p, null);
+	}
+
+	/**
+	 * Performs a nearest neighbor query exactly like {@link #nearestNeighbor(KDPoint)}, additionally reporting
+	 * how many slots the branch-and-bound search had to visit.
+	 * @param p The query {@link KDPoint}.
+	 * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+	 * @return The solution to the nearest neighbor query, or null if there are no points other than p in the tree.
+	 */
+	public KDPoint nearestNeighbor(KDPoint p, QueryStats stats){
+		return kNearestNeighbors(1, p, stats).first();
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		return kNearestNeighbors(k, p, null);
+	}
+
+	/**
+	 * Performs a k-nearest neighbors query exactly like {@link #kNearestNeighbors(int, KDPoint)}, additionally
+	 * reporting how many slots the branch-and-bound search had to visit.
+	 * @param k A positive integer denoting the amount of neighbors to return.
+	 * @param p The query point.
+	 * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+	 * @return A {@link BoundedPriorityQueue} containing the k-nearest neighbors of p.
+	 * @throws RuntimeException If k&lt;=0.
+	 */
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, QueryStats stats){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+		if(count > 0)
+			search(0, 0, p, toArray(p), queue, stats);
+		return queue;
+	}
+
+	@Override
+	public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors){
+		return KNNBatch.run(k, anchors, (p, queue) -> {
+			if(count > 0)
+				search(0, 0, p, toArray(p), queue, null);
+		});
+	}
+
+	/* Same branch-and-bound as KDTreeNode: nearest child first, far child only if the plane beats the threshold. The
+	 * exact anchor is kept next to its doubles, so that a distinct point rounding to the same doubles is reported. */
+	private void search(int slot, int dim, KDPoint anchor, double[] a, BoundedPriorityQueue<KDPoint> queue,
+						QueryStats stats){
+		if(stats != null)
+			stats.nodesVisited++;
+		int nextDim = dim + 1;
+		if(dim == dims - 1) nextDim = 0;
+		double diff = a[dim] - coords[slot * dims + dim];
+		int near = diff <= 0 ? 2 * slot + 1 : 2 * slot + 2;
+		int far = diff <= 0 ? 2 * slot + 2 : 2 * slot + 1;
+		if(near < count)
+			search(near, nextDim, anchor, a, queue, stats);
+		double distSq = distanceSquared(slot, a);
+		if(distSq != 0 || !sameCoords(points[slot], anchor)) // The anchor itself is never reported.
+			queue.enqueue(points[slot], distSq);
+		if(far < count && diff * diff < queue.threshold())
+			search(far, nextDim, anchor, a, queue, stats);
+	}
+
+	private static boolean sameCoords(KDPoint p1, KDPoint p2){
+		for(int d = 0; d < p1.coords.length; d++){
+			if(p1.coords[d].compareTo(p2.coords[d]) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/* ************************************************************************** */
+	/* ******************************** PERSISTENCE ***************************** */
+	/* ************************************************************************** */
+
+	/**
+	 * Writes this to file, in the format that {@link MappedKDTree#open(Path)} maps back into memory: the header,
+	 * followed by the coordinates of every slot, in slot order. The file replaces any existing one.
+	 * @param file The file to write.
+	 * @throws IOException if the file cannot be written.
+	 * @see MappedKDTree
+	 */
+	public void save(Path file) throws IOException{
+		MappedByteBuffer buffer = MappedFiles.create(file, MappedFiles.HEADER_BYTES + 8L * coords.length);
+		buffer.putInt(MappedKDTree.MAGIC).putInt(dims).putInt(count);
+		buffer.position(MappedFiles.HEADER_BYTES);
+		buffer.asDoubleBuffer().put(coords);
+		buffer.force();
+	}
+
+	/* ************************************************************************** */
+	/* ********************************* ACCESSORS ****************************** */
+	/* ************************************************************************** */
+
+	/**
+	 * Returns the number of {@link KDPoint}s in the snapshot.
+	 * @return The number of {@link KDPoint}s held by this.
+	 */
+	public int count(){
+		return count;
+	}
+
+	/**
+	 * Returns the height of the snapshot, which is always floor(log2(n)) for n points, or -1 if it is empty.
+	 * @return The height of this.
+	 */
+	public int height(){
+		return 31 - Integer.numberOfLeadingZeros(count);
+	}
+
+	/**
+	 * Returns the dimensionality of the snapshot.
+	 * @return The dimensionality k of the indexed space.
+	 */
+	public int getDims(){
+		return dims;
+	}
+}
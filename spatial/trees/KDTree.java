@@ -3,12 +3,22 @@ package projects.spatial.trees;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryMetrics;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.nodes.KDTreeNode;
+import projects.spatial.nodes.KDTreeRebalancer;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>{@link KDTree} implements <em>K</em>-D Trees, where  <em>K</em> is a positive integer
@@ -75,6 +85,18 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 */
 	private int count;
 
+	/**
+	 * The rebalancing policy of the tree, or {@code null} if it does not rebalance itself.
+	 * @see #setRebalancing(double)
+	 */
+	private KDTreeRebalancer rebalancer;
+
+	/**
+	 * Where the counters of every query are aggregated, if {@link QueryMetrics#ENABLED}; {@code null} for none.
+	 * @see #setMetrics(QueryMetrics)
+	 */
+	private QueryMetrics metrics;
+
 
 	/* *********************************************************************************************** */
 	/* *************************** PUBLIC METHOD IMPLEMENTATION ************************************* */
@@ -102,10 +124,44 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		count = 0;
 	}
 
+	/**
+	 * Bulk-loading constructor. Instead of inserting the provided {@link KDPoint}s one by one, which yields a tree
+	 * whose shape depends on the insertion order, it builds a <b>balanced</b> tree of height about log2(n) in
+	 * O(n log n) time, by splitting every subtree at the median of its points.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store. They are deep-copied.
+	 * @throws RuntimeException if k&lt;=0, or if some {@link KDPoint} does not have k coordinates.
+	 * @see #bulkLoad(int, Collection, ForkJoinPool)
+	 */
+	public KDTree(int k, Collection<KDPoint> points){
+		this(k, points, null);
+	}
+
+	private KDTree(int k, Collection<KDPoint> points, ForkJoinPool pool){
+		this(k);
+		root = KDTreeNode.buildBalanced(points, k, pool);
+		count = points.size();
+	}
+
+	/**
+	 * Same as {@link #KDTree(int, Collection)}, but builds large subtrees in parallel on the provided
+	 * {@link ForkJoinPool}.
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store. They are deep-copied.
+	 * @param pool The {@link ForkJoinPool} to build on, e.g. {@link ForkJoinPool#commonPool()}.
+	 * @return A new, balanced {@link KDTree} holding the provided points.
+	 * @throws RuntimeException if k&lt;=0, or if some {@link KDPoint} does not have k coordinates.
+	 */
+	public static KDTree bulkLoad(int k, Collection<KDPoint> points, ForkJoinPool pool){
+		return new KDTree(k, points, pool);
+	}
+
 	@Override
 	public void insert(KDPoint p){
 		if(root == null)
 			root = new KDTreeNode(p);
+		else if(rebalancer != null)
+			root = rebalancer.insert(root, p, dims, count + 1);
 		else
 			root.insert(p, 0, dims);
 		count++;
@@ -115,7 +171,10 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	public void delete(KDPoint p){
 		if (root != null) {
 			if(search(p)) {
-				root = root.delete(p, 0, dims);
+				if(rebalancer != null)
+					root = rebalancer.delete(root, p, dims, count - 1);
+				else
+					root = root.delete(p, 0, dims);
 				count--; // Guaranteed successful deletion.
 			}
 		}
@@ -129,31 +188,199 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 
 	@Override
 	public Collection<KDPoint> range(KDPoint p, BigDecimal range){
+		if(QueryMetrics.ENABLED && metrics != null){
+			QueryStats stats = new QueryStats();
+			Collection<KDPoint> pts = range(p, range, stats);
+			metrics.record(QueryMetrics.Query.RANGE, stats);
+			return pts;
+		}
+		return range(p, range, null);
+	}
+
+	/**
+	 * Performs a range query exactly like {@link #range(KDPoint, BigDecimal)}, additionally reporting the work it did.
+	 * @param p The query {@link KDPoint}.
+	 * @param range The <b>INCLUSIVE</b> range from p.
+	 * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+	 * @return A {@link Collection} over all {@link KDPoint}s within range of p, other than p itself.
+	 */
+	public Collection<KDPoint> range(KDPoint p, BigDecimal range, QueryStats stats){
+		long start = (stats == null) ? 0 : System.nanoTime();
 		LinkedList<KDPoint> pts = new LinkedList<>();
-		if(root == null)
-			return pts; // empty
-		else
-			root.range(p, pts, range, 0, dims);
+		if(root != null)
+			root.range(p, pts, range, 0, dims, stats);
+		if(stats != null)
+			stats.elapsedNanos += System.nanoTime() - start;
 		return pts;
 	}
 
+	/**
+	 * {@inheritDoc} Every node knows the size of its subtree, so subtrees whose whole cell lies within range are
+	 * counted in constant time.
+	 */
+	@Override
+	public int rangeCount(KDPoint p, BigDecimal range){
+		return root == null ? 0 : root.rangeCount(p, range, 0, dims);
+	}
+
+	/**
+	 * Performs an axis-aligned box query: returns all the {@link KDPoint}s whose coordinates all lie between those of
+	 * lower and upper, <b>INCLUSIVE</b>. Subtrees that lie entirely on one side of the box are pruned by their
+	 * splitting planes.
+	 * @param lower The corner of the box with the smallest coordinates.
+	 * @param upper The corner of the box with the largest coordinates. If some coordinate of upper is smaller than
+	 *              that of lower, the box is empty.
+	 * @return A {@link Collection} over all {@link KDPoint}s in the box, which is empty if there are none.
+	 * @throws RuntimeException if the corners do not have the dimensionality of this.
+	 */
+	public Collection<KDPoint> box(KDPoint lower, KDPoint upper){
+		checkCorners(lower, upper);
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		if(root != null)
+			root.box(lower, upper, pts, 0, dims);
+		return pts;
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that {@link #box(KDPoint, KDPoint)} would return, without collecting them.
+	 * @param lower The corner of the box with the smallest coordinates.
+	 * @param upper The corner of the box with the largest coordinates.
+	 * @return The number of {@link KDPoint}s in the box.
+	 * @throws RuntimeException if the corners do not have the dimensionality of this.
+	 */
+	public int boxCount(KDPoint lower, KDPoint upper){
+		checkCorners(lower, upper);
+		return root == null ? 0 : root.boxCount(lower, upper, 0, dims);
+	}
+
+	private void checkCorners(KDPoint lower, KDPoint upper){
+		if(lower.coords.length != dims || upper.coords.length != dims)
+			throw new RuntimeException("Cannot query a " + dims + "-D tree with the corners of a " + lower.coords.length + "-D box.");
+	}
+
+	/**
+	 * {@inheritDoc} The nodes are walked lazily, with an explicit stack, and subtrees beyond the range of p are
+	 * pruned by their splitting planes.
+	 */
+	@Override
+	public Stream<KDPoint> rangeStream(KDPoint p, BigDecimal range){
+		if(root == null)
+			return Stream.empty();
+		return StreamSupport.stream(root.rangeSpliterator(p, range, 0, dims), false);
+	}
+
 	@Override
 	public KDPoint nearestNeighbor(KDPoint p){
+		if(QueryMetrics.ENABLED && metrics != null){
+			QueryStats stats = new QueryStats();
+			KDPoint nn = nearestNeighbor(p, stats);
+			metrics.record(QueryMetrics.Query.NEAREST_NEIGHBOR, stats);
+			return nn;
+		}
+		return nearestNeighbor(p, null);
+	}
+
+	/**
+	 * Performs a nearest neighbor query exactly like {@link #nearestNeighbor(KDPoint)}, additionally reporting
+	 * the work the branch-and-bound search did.
+	 * @param p The query {@link KDPoint}.
+	 * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+	 * @return The solution to the nearest neighbor query, or null if there are no points other than p in the tree.
+	 */
+	public KDPoint nearestNeighbor(KDPoint p, QueryStats stats){
+		long start = (stats == null) ? 0 : System.nanoTime();
 		NNData<KDPoint> n = new NNData<KDPoint>(null, INFTY);
 		if(root != null)
-			n = root.nearestNeighbor(p, 0, n, dims);
+			n = root.nearestNeighbor(p, 0, n, dims, stats);
+		if(stats != null)
+			stats.elapsedNanos += System.nanoTime() - start;
 		return n.bestGuess;
 	}
 
 	@Override
 	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(QueryMetrics.ENABLED && metrics != null){
+			QueryStats stats = new QueryStats();
+			BoundedPriorityQueue<KDPoint> queue = kNearestNeighbors(k, p, stats);
+			metrics.record(QueryMetrics.Query.K_NEAREST_NEIGHBORS, stats);
+			return queue;
+		}
+		return kNearestNeighbors(k, p, null);
+	}
+
+	/**
+	 * Performs a k-nearest neighbors query exactly like {@link #kNearestNeighbors(int, KDPoint)}, additionally
+	 * reporting the work the branch-and-bound search did.
+	 * @param k A positive integer denoting the amount of neighbors to return.
+	 * @param p The query point.
+	 * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+	 * @return A {@link BoundedPriorityQueue} containing the k-nearest neighbors of p.
+	 * @throws RuntimeException If k&lt;=0.
+	 */
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, QueryStats stats){
 		if(k <= 0)
 			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		long start = (stats == null) ? 0 : System.nanoTime();
 		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
 		if(root != null)
-			root.kNearestNeighbors(k, p, queue, 0, dims);
+			root.kNearestNeighbors(k, p, queue, 0, dims, stats);
+		if(stats != null)
+			stats.elapsedNanos += System.nanoTime() - start;
 		return queue; // Might be empty; that's not a problem.
 	}
+
+	/**
+	 * Performs an <b>approximate</b> nearest neighbor query, which may return a neighbor up to (1 + epsilon) times
+	 * farther than the nearest one, and gives up after visiting maxVisits nodes. See
+	 * {@link #kNearestNeighbors(int, KDPoint, double, int, QueryStats)} for the details.
+	 * @param p The query {@link KDPoint}.
+	 * @param epsilon The allowed relative error, at least 0.
+	 * @param maxVisits The maximum number of nodes to visit, at least 1; {@link Integer#MAX_VALUE} for no limit.
+	 * @param stats A {@link QueryStats} instance that receives the number of visited nodes and the achieved bound.
+	 *              May be {@code null}.
+	 * @return An approximate nearest neighbor of p, or null if there are no points other than p in the tree.
+	 * @throws RuntimeException If epsilon&lt;0 or maxVisits&lt;1.
+	 */
+	public KDPoint nearestNeighbor(KDPoint p, double epsilon, int maxVisits, QueryStats stats){
+		return kNearestNeighbors(1, p, epsilon, maxVisits, stats).first();
+	}
+
+	/**
+	 * Performs an <b>approximate</b> k-nearest neighbors query. Instead of proving that no closer point exists, the
+	 * search prunes any subtree that could only improve on the current k-th candidate by a factor of less than
+	 * (1 + epsilon), and stops opening subtrees after maxVisits nodes. The distance of the reported k-th neighbor is
+	 * at most {@link QueryStats#approximationBound} times that of the true one; with no budget, that bound is at most
+	 * (1 + epsilon). Passing 0 and {@link Integer#MAX_VALUE} gives the exact answer.
+	 * @param k A positive integer denoting the amount of neighbors to return.
+	 * @param p The query point.
+	 * @param epsilon The allowed relative error, at least 0.
+	 * @param maxVisits The maximum number of nodes to visit, at least 1; {@link Integer#MAX_VALUE} for no limit.
+	 * @param stats A {@link QueryStats} instance that receives the number of visited nodes and the achieved bound.
+	 *              May be {@code null}.
+	 * @return A {@link BoundedPriorityQueue} containing k approximate nearest neighbors of p.
+	 * @throws RuntimeException If k&lt;=0, epsilon&lt;0 or maxVisits&lt;1.
+	 */
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, double epsilon, int maxVisits, QueryStats stats){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(!(epsilon >= 0))
+			throw new RuntimeException("The value of epsilon provided, " + epsilon + ", is invalid: Please provide a non-negative number.");
+		if(maxVisits < 1)
+			throw new RuntimeException("The value of maxVisits provided, " + maxVisits + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+		if(root != null)
+			root.approximateKNearestNeighbors(p, queue, 0, dims, epsilon, maxVisits, stats);
+		return queue;
+	}
+
+	@Override
+	public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors){
+		return KNNBatch.run(k, anchors, (p, queue) -> {
+			if(root != null)
+				root.kNearestNeighbors(k, p, queue, 0, dims);
+		});
+	}
+
 	@Override
 	public int height(){
 		return root == null ? -1 : root.height();
@@ -169,6 +396,95 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		return count;
 	}
 
+	/**
+	 * Turns on automatic, scapegoat-style rebalancing: whenever an update leaves a subtree taller than alpha times the
+	 * base-2 logarithm of its size, that subtree is rebuilt balanced. This keeps the height, and with it the cost of
+	 * queries, close to logarithmic under arbitrary insert/delete churn, at the price of occasional rebuilds.
+	 * Rebalancing is off by default, since it moves {@link KDPoint}s between nodes.
+	 * @param alpha The allowed ratio between the height of a subtree and log2 of its size, at least 1, or 0 to turn
+	 *              rebalancing off. Values around 2 to 3 work well.
+	 * @throws RuntimeException if alpha is neither 0 nor at least 1.
+	 * @see KDTreeRebalancer
+	 */
+	public void setRebalancing(double alpha){
+		rebalancer = alpha == 0 ? null : new KDTreeRebalancer(alpha);
+	}
+
+	/**
+	 * Returns the number of subtree rebuilds that rebalancing has performed since it was last turned on.
+	 * @return The number of rebuilds, or 0 if rebalancing is off.
+	 * @see #setRebalancing(double)
+	 */
+	public int getRebuildCount(){
+		return rebalancer == null ? 0 : rebalancer.getRebuildCount();
+	}
+
+	/**
+	 * Returns how far the tree is from its ideal height: the ratio between {@link #height()} and log2 of
+	 * {@link #count()}. A balanced tree has a ratio of at most 1, a rebalancing one of at most about alpha. Takes time
+	 * linear in the size of the tree.
+	 * @return The ratio of the height of the tree to log2 of its size, or 0 if the tree holds fewer than 2 points.
+	 */
+	public double getHeightRatio(){
+		if(count < 2)
+			return 0;
+		return height() / (Math.log(count) / Math.log(2));
+	}
+
+	/**
+	 * Makes every subsequent nearest neighbor, k-NN and range query of this tree record its {@link QueryStats} into
+	 * metrics. This only has an effect if {@link QueryMetrics#ENABLED}; otherwise, queries are not instrumented at all.
+	 * Approximate and batch k-NN queries are not recorded.
+	 * @param metrics The histograms to record queries into, or {@code null} to stop recording them.
+	 */
+	public void setMetrics(QueryMetrics metrics){
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the {@link QueryMetrics} that queries are recorded into.
+	 * @return The {@link QueryMetrics} given to {@link #setMetrics(QueryMetrics)}, or {@code null} if there is none.
+	 */
+	public QueryMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * Takes an immutable, flat snapshot of this, for read-mostly workloads: the snapshot answers the same
+	 * {@link SpatialQuerySolver} queries as this, several times faster, but does not see later updates to this.
+	 * @return A {@link FlatKDTree} over the {@link KDPoint}s currently stored in this.
+	 * @see FlatKDTree
+	 */
+	public FlatKDTree snapshot(){
+		KDPoint[] points = new KDPoint[count];
+		int i = 0;
+		ArrayDeque<KDTreeNode> stack = new ArrayDeque<>();
+		if(root != null)
+			stack.push(root);
+		while(!stack.isEmpty()){
+			KDTreeNode n = stack.pop();
+			points[i++] = n.getPoint(); // Already a deep copy.
+			if(n.getLeft() != null)
+				stack.push(n.getLeft());
+			if(n.getRight() != null)
+				stack.push(n.getRight());
+		}
+		return new FlatKDTree(dims, points);
+	}
+
+	/**
+	 * Persists the {@link KDPoint}s of this to file, as a balanced, flat tree that {@link MappedKDTree#open(Path)}
+	 * can later query straight from the file, without rebuilding anything. Coordinates are stored in
+	 * {@code double} precision.
+	 * @param file The file to write. Any existing file is replaced.
+	 * @throws IOException if the file cannot be written.
+	 * @see #snapshot()
+	 * @see FlatKDTree#save(Path)
+	 */
+	public void save(Path file) throws IOException{
+		snapshot().save(file);
+	}
+
 	/**
 	 * Returns the {@link KDPoint} located at the <b>root</b>of the KDTree.
 	 * Only non-interface method! Added primarily for debugging purposes.
@@ -0,0 +1,98 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>{@link KNNBatch} runs the k-nearest neighbor queries of {@link SpatialQuerySolver#kNearestNeighbors(int, List)}
+ * in parallel on the common {@link ForkJoinPool}. The anchors are split into roughly four chunks per worker thread;
+ * every chunk allocates a single {@link BoundedPriorityQueue} and {@link BoundedPriorityQueue#clear() clears} it
+ * between its queries, so apart from the results themselves, a batch allocates a handful of objects per thread.</p>
+ *
+ * <p>The queries of a batch run concurrently, so the tree must not be modified while a batch is in flight.</p>
+ */
+final class KNNBatch {
+
+    /**
+     * A single k-NN query against some tree, which leaves its answer in the provided, empty, queue.
+     */
+    interface Query {
+        void run(KDPoint anchor, BoundedPriorityQueue<KDPoint> queue);
+    }
+
+    private static final int MIN_CHUNK = 16;
+
+    private final KDPoint[] anchors;
+    private final List<List<KDPoint>> results; // Pre-sized, so that chunks only ever set their own slots.
+    private final int k;
+    private final Query query;
+    private final int chunk;
+
+    private KNNBatch(int k, List<KDPoint> anchors, Query query) {
+        this.anchors = anchors.toArray(new KDPoint[0]);
+        results = new ArrayList<>(Collections.nCopies(this.anchors.length, null));
+        this.k = k;
+        this.query = query;
+        chunk = Math.max(MIN_CHUNK, this.anchors.length / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    /**
+     * Runs query for every anchor.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @param query The query to run, typically a tree's own k-NN search.
+     * @return The neighbors of every anchor, at the anchor's index, in ascending order of distance.
+     * @throws RuntimeException If k&lt;=0.
+     */
+    static List<List<KDPoint>> run(int k, List<KDPoint> anchors, Query query) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        KNNBatch batch = new KNNBatch(k, anchors, query);
+        if (batch.anchors.length <= batch.chunk)
+            batch.runChunk(0, batch.anchors.length);
+        else
+            ForkJoinPool.commonPool().invoke(batch.new Chunk(0, batch.anchors.length));
+        return batch.results;
+    }
+
+    private void runChunk(int from, int to) {
+        BoundedPriorityQueue<KDPoint> scratch = new BoundedPriorityQueue<>(k);
+        for (int i = from; i < to; i++) {
+            scratch.clear();
+            query.run(anchors[i], scratch);
+            KDPoint[] neighbors = new KDPoint[scratch.size()];
+            for (int j = 0; j < neighbors.length; j++)
+                neighbors[j] = scratch.dequeue(); // Ascending order of distance.
+            results.set(i, Arrays.asList(neighbors));
+        }
+    }
+
+    private final class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        private Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                runChunk(from, to);
+                return;
+            }
+            int mid = from + (to - from) / 2;
+            invokeAll(new Chunk(from, mid), new Chunk(mid, to));
+        }
+    }
+}
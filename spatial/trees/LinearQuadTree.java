@@ -0,0 +1,474 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.nodes.RangeCheck;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>{@link LinearQuadTree} is a <em>linear</em> PR-QuadTree: it decomposes the same 2^k &#42; 2^k space around the
+ * origin as a {@link PRQuadTree} with the same k and bucketing parameter, but without any node objects. Instead, every
+ * point gets a <b>Morton</b> (Z-order) key, made by interleaving the bits of its quantized coordinates, and points are
+ * kept sorted by key in three primitive arrays. The keys of all the points inside any quadrant of the decomposition
+ * form one contiguous interval, so a quadrant is simply a range of indices, found with two binary searches. A
+ * quadrant that holds more points than the bucketing parameter is &quot;gray&quot; and is examined through its four
+ * sub-quadrants, exactly like a {@link projects.spatial.nodes.PRQuadGrayNode} would.</p>
+ *
+ * <p>A stored point costs 24 bytes (a {@code long} key and two {@code double}s), a small fraction of what the
+ * {@link KDPoint}s, {@link BigDecimal}s and nodes of a {@link PRQuadTree} cost. The price is that coordinates are kept
+ * in {@code double} precision, and that {@link KDPoint}s are only created when reported. Single insertions and
+ * deletions shift the arrays and take linear time; {@link #insertAll(Collection)} appends a whole batch for the cost
+ * of sorting the batch and one merge.</p>
+ *
+ * <p>Coordinates are quantized to {@value #BITS} bits per dimension, so quadrants of more than {@value #BITS} levels
+ * below the root are not split any further, whatever their number of points. Points lying on the lines that divide
+ * quadrants go East and North, like in {@link PRQuadTree}.</p>
+ *
+ * @see PRQuadTree
+ */
+public class LinearQuadTree implements SpatialDictionary, SpatialQuerySolver {
+
+    /**
+     * The number of bits per dimension of the quantized coordinates, which is also the maximum depth of the tree.
+     */
+    public static final int BITS = 31;
+
+    private static final int INITIAL_LENGTH = 16;
+
+    private final int k;
+    private final int bucketingParam;
+    private final double min, max; // The extent of the space, in both dimensions.
+    private final double scale; // Quantized units per unit of space.
+
+    private long[] keys; // Sorted.
+    private double[] xs, ys; // Parallel to keys.
+    private int count;
+
+    /**
+     * Constructor for {@link LinearQuadTree} objects. The parameters mean exactly what they mean for
+     * {@link PRQuadTree#PRQuadTree(int, int)}.
+     * @param k The exponent of 2 that defines the side of the square spanned by the entire tree, centered at (0, 0).
+     * @param bucketingParam The number of {@link KDPoint}s a quadrant can hold before it has to be split.
+     * @throws RuntimeException if bucketingParam &lt; 1.
+     */
+    public LinearQuadTree(int k, int bucketingParam){
+        if(bucketingParam < 1)
+            throw new RuntimeException("Bucketing parameter needs to be at least 1!");
+        this.k = k;
+        this.bucketingParam = bucketingParam;
+        max = Math.scalb(1.0, k - 1);
+        min = -max;
+        scale = Math.scalb(1.0, BITS - k);
+        keys = new long[INITIAL_LENGTH];
+        xs = new double[INITIAL_LENGTH];
+        ys = new double[INITIAL_LENGTH];
+    }
+
+    /* ************************************************************************** */
+    /* ***************************** MORTON KEYS ******************************** */
+    /* ************************************************************************** */
+
+    private long quantize(double v){
+        if(!(v >= min && v <= max))
+            throw new RuntimeException("Coordinate " + v + " lies outside of the space spanned by the tree, [" + min + ", " + max + "].");
+        return Math.min((long) Math.floor((v - min) * scale), (1L << BITS) - 1);
+    }
+
+    /* Spreads the lower 32 bits of v to the even bits of the result. */
+    private static long spread(long v){
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    private static long morton(long qx, long qy){
+        return spread(qx) | (spread(qy) << 1);
+    }
+
+    private long keyOf(double x, double y){
+        return morton(quantize(x), quantize(y));
+    }
+
+    /* Smallest index in [from, to) whose key is at least key. */
+    private int lowerBound(long key, int from, int to){
+        while(from < to){
+            int mid = (from + to) >>> 1;
+            if(keys[mid] < key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    private static double[] toArray(KDPoint p){
+        if(p.coords.length != 2)
+            throw new RuntimeException("A LinearQuadTree only holds 2-D KDPoints, but a " + p.coords.length + "-D one was given.");
+        return new double[]{p.coords[0].doubleValue(), p.coords[1].doubleValue()};
+    }
+
+    /* ************************************************************************** */
+    /* ******************************* UPDATES ********************************** */
+    /* ************************************************************************** */
+
+    private int indexOf(double x, double y, long key){
+        for(int i = lowerBound(key, 0, count); i < count && keys[i] == key; i++){
+            if(xs[i] == x && ys[i] == y)
+                return i;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int needed){
+        if(needed <= keys.length)
+            return;
+        int length = Math.max(needed, 2 * keys.length);
+        keys = Arrays.copyOf(keys, length);
+        xs = Arrays.copyOf(xs, length);
+        ys = Arrays.copyOf(ys, length);
+    }
+
+    /**
+     * Inserts p, unless a point with the same coordinates is already stored, like {@link PRQuadTree} does. Takes
+     * time linear in the number of stored points; prefer {@link #insertAll(Collection)} for many points.
+     * @param p The {@link KDPoint} to insert.
+     * @throws RuntimeException if p is not 2-D or lies outside of the space spanned by the tree.
+     */
+    @Override
+    public void insert(KDPoint p){
+        double[] c = toArray(p);
+        long key = keyOf(c[0], c[1]);
+        if(indexOf(c[0], c[1], key) != -1)
+            return;
+        ensureCapacity(count + 1);
+        int i = lowerBound(key + 1, 0, count); // After all the points with an equal key.
+        System.arraycopy(keys, i, keys, i + 1, count - i);
+        System.arraycopy(xs, i, xs, i + 1, count - i);
+        System.arraycopy(ys, i, ys, i + 1, count - i);
+        keys[i] = key;
+        xs[i] = c[0];
+        ys[i] = c[1];
+        count++;
+    }
+
+    /**
+     * Appends a whole batch of {@link KDPoint}s. The batch is sorted by key on its own and then merged with the
+     * stored points in a single linear pass, which is much cheaper than inserting the points one by one. Points whose
+     * coordinates are already stored, or appear more than once in the batch, are stored only once.
+     * @param points The {@link KDPoint}s to insert.
+     * @throws RuntimeException if some {@link KDPoint} is not 2-D or lies outside of the space spanned by the tree.
+     */
+    public void insertAll(Collection<KDPoint> points){
+        int m = points.size();
+        long[] bKeys = new long[m];
+        double[] bXs = new double[m], bYs = new double[m];
+        int j = 0;
+        for(KDPoint p : points){
+            double[] c = toArray(p);
+            bKeys[j] = keyOf(c[0], c[1]);
+            bXs[j] = c[0];
+            bYs[j++] = c[1];
+        }
+        sort(bKeys, bXs, bYs, 0, m - 1);
+
+        long[] newKeys = new long[Math.max(INITIAL_LENGTH, count + m)];
+        double[] newXs = new double[newKeys.length], newYs = new double[newKeys.length];
+        int i = 0, n = 0;
+        j = 0;
+        while(i < count || j < m){
+            if(j == m || (i < count && keys[i] <= bKeys[j])){
+                newKeys[n] = keys[i];
+                newXs[n] = xs[i];
+                newYs[n++] = ys[i++];
+            } else {
+                if(!storedAmongEqualKeys(newKeys, newXs, newYs, n, bKeys[j], bXs[j], bYs[j])
+                        && indexOf(bXs[j], bYs[j], bKeys[j]) == -1){
+                    newKeys[n] = bKeys[j];
+                    newXs[n] = bXs[j];
+                    newYs[n++] = bYs[j];
+                }
+                j++;
+            }
+        }
+        keys = newKeys;
+        xs = newXs;
+        ys = newYs;
+        count = n;
+    }
+
+    /* Whether (x, y) is among the last entries of the merged arrays, which share its key. */
+    private static boolean storedAmongEqualKeys(long[] ks, double[] xs, double[] ys, int n, long key, double x, double y){
+        for(int i = n - 1; i >= 0 && ks[i] == key; i--){
+            if(xs[i] == x && ys[i] == y)
+                return true;
+        }
+        return false;
+    }
+
+    /* Quicksort of the three parallel arrays by key. */
+    private static void sort(long[] ks, double[] xs, double[] ys, int lo, int hi){
+        while(hi - lo > 16){
+            long pivot = ks[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(ks[i] < pivot) i++;
+                while(ks[j] > pivot) j--;
+                if(i <= j)
+                    swap(ks, xs, ys, i++, j--);
+            }
+            if(j - lo < hi - i){ // Recurse into the smaller half, loop over the larger one.
+                sort(ks, xs, ys, lo, j);
+                lo = i;
+            } else {
+                sort(ks, xs, ys, i, hi);
+                hi = j;
+            }
+        }
+        for(int i = lo + 1; i <= hi; i++)
+            for(int j = i; j > lo && ks[j - 1] > ks[j]; j--)
+                swap(ks, xs, ys, j - 1, j);
+    }
+
+    private static void swap(long[] ks, double[] xs, double[] ys, int i, int j){
+        long k = ks[i]; ks[i] = ks[j]; ks[j] = k;
+        double x = xs[i]; xs[i] = xs[j]; xs[j] = x;
+        double y = ys[i]; ys[i] = ys[j]; ys[j] = y;
+    }
+
+    @Override
+    public void delete(KDPoint p){
+        double[] c = toArray(p);
+        if(!(c[0] >= min && c[0] <= max && c[1] >= min && c[1] <= max))
+            return;
+        int i = indexOf(c[0], c[1], keyOf(c[0], c[1]));
+        if(i == -1)
+            return;
+        System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+        System.arraycopy(xs, i + 1, xs, i, count - i - 1);
+        System.arraycopy(ys, i + 1, ys, i, count - i - 1);
+        count--;
+    }
+
+    @Override
+    public boolean search(KDPoint p){
+        double[] c = toArray(p);
+        if(!(c[0] >= min && c[0] <= max && c[1] >= min && c[1] <= max))
+            return false;
+        return indexOf(c[0], c[1], keyOf(c[0], c[1])) != -1;
+    }
+
+    /* ************************************************************************** */
+    /* ****************************** QUADRANTS ********************************* */
+    /* ************************************************************************** */
+
+    /*
+     * A quadrant at some level is identified by its quantized lower-left corner (qx, qy); it spans 2^(BITS - level)
+     * quantized units per side, and its keys span the interval starting at morton(qx, qy) of length 4^(BITS - level).
+     * Its four sub-quadrants are, in key order, SW, SE, NW and NE, and their points are the four consecutive pieces of
+     * the points of the quadrant.
+     */
+
+    /* Splits [from, to), the points of a quadrant, into its sub-quadrants: sub-quadrant i gets [bounds[i], bounds[i+1]). */
+    private void split(long qx, long qy, int level, int from, int to, int[] bounds){
+        long half = 1L << (BITS - level - 1);
+        bounds[0] = from;
+        bounds[1] = lowerBound(morton(qx + half, qy), from, to);
+        bounds[2] = lowerBound(morton(qx, qy + half), bounds[1], to);
+        bounds[3] = lowerBound(morton(qx + half, qy + half), bounds[2], to);
+        bounds[4] = to;
+    }
+
+    private boolean isLeaf(int level, int from, int to){
+        return to - from <= bucketingParam || level == BITS;
+    }
+
+    /* Squared distance between (x, y) and the closest point of the quadrant. */
+    private double minDistanceSquared(long qx, long qy, int level, double x, double y){
+        double side = Math.scalb(1.0, k - level);
+        double dx = axisDistance(x, min + qx / scale, side), dy = axisDistance(y, min + qy / scale, side);
+        return dx * dx + dy * dy;
+    }
+
+    private static double axisDistance(double v, double low, double side){
+        if(v < low)
+            return low - v;
+        if(v > low + side)
+            return v - low - side;
+        return 0;
+    }
+
+    /* Squared distance between (x, y) and the farthest point of the quadrant. */
+    private double maxDistanceSquared(long qx, long qy, int level, double x, double y){
+        double side = Math.scalb(1.0, k - level);
+        double lowX = min + qx / scale, lowY = min + qy / scale;
+        double dx = Math.max(Math.abs(x - lowX), Math.abs(x - lowX - side));
+        double dy = Math.max(Math.abs(y - lowY), Math.abs(y - lowY - side));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns the height of the implied PR-QuadTree: 0 if all the points fit in the root quadrant, -1 if there are
+     * none, and otherwise one more than the tallest quadrant that had to be split. Takes time proportional to the
+     * number of quadrants times log(n).
+     * @return The height of the quadtree that this represents.
+     */
+    @Override
+    public int height(){
+        return count == 0 ? -1 : height(0, 0, 0, 0, count);
+    }
+
+    private int height(long qx, long qy, int level, int from, int to){
+        if(isLeaf(level, from, to))
+            return 0;
+        int[] bounds = new int[5];
+        split(qx, qy, level, from, to, bounds);
+        long half = 1L << (BITS - level - 1);
+        int max = -1;
+        for(int i = 0; i < 4; i++){
+            if(bounds[i] < bounds[i + 1])
+                max = Math.max(max, height(qx + ((i & 1) != 0 ? half : 0), qy + ((i & 2) != 0 ? half : 0),
+                        level + 1, bounds[i], bounds[i + 1]));
+        }
+        return max + 1;
+    }
+
+    @Override
+    public boolean isEmpty(){
+        return count == 0;
+    }
+
+    @Override
+    public int count(){
+        return count;
+    }
+
+    /**
+     * A simple accessor for the parameter k of the current {@link LinearQuadTree}.
+     * @return The exponent of 2 that defines the side of the space spanned by this.
+     */
+    public int getK(){
+        return k;
+    }
+
+    /**
+     * A simple accessor for the bucket size of the current {@link LinearQuadTree}.
+     * @return The bucketing parameter of this.
+     */
+    public int getBucketSize(){
+        return bucketingParam;
+    }
+
+    /* ************************************************************************** */
+    /* ******************************** QUERIES ********************************* */
+    /* ************************************************************************** */
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, BigDecimal range){
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if(count > 0){
+            double[] a = toArray(p);
+            double r = range.doubleValue();
+            range(0, 0, 0, 0, count, p, a[0], a[1], range, r * r, pts);
+        }
+        return pts;
+    }
+
+    private void range(long qx, long qy, int level, int from, int to, KDPoint anchor, double x, double y,
+                       BigDecimal range, double rangeSq, Collection<KDPoint> results){
+        if(maxDistanceSquared(qx, qy, level, x, y) < rangeSq * (1 - RangeCheck.TOLERANCE)){
+            // The whole quadrant is in range: no need to look at the points one by one.
+            for(int i = from; i < to; i++)
+                if(xs[i] != x || ys[i] != y) // The anchor itself is never part of the result.
+                    results.add(new KDPoint(xs[i], ys[i]));
+            return;
+        }
+        if(isLeaf(level, from, to)){
+            for(int i = from; i < to; i++){
+                if(xs[i] == x && ys[i] == y)
+                    continue;
+                double dx = xs[i] - x, dy = ys[i] - y, distSq = dx * dx + dy * dy;
+                if(distSq > rangeSq * (1 + RangeCheck.TOLERANCE))
+                    continue;
+                KDPoint p = new KDPoint(xs[i], ys[i]);
+                if(RangeCheck.withinRange(distSq, p, anchor, range, rangeSq))
+                    results.add(p);
+            }
+            return;
+        }
+        int[] bounds = new int[5];
+        split(qx, qy, level, from, to, bounds);
+        long half = 1L << (BITS - level - 1);
+        for(int i = 0; i < 4; i++){
+            long cx = qx + ((i & 1) != 0 ? half : 0), cy = qy + ((i & 2) != 0 ? half : 0);
+            if(bounds[i] < bounds[i + 1]
+                    && minDistanceSquared(cx, cy, level + 1, x, y) <= rangeSq * (1 + RangeCheck.TOLERANCE))
+                range(cx, cy, level + 1, bounds[i], bounds[i + 1], anchor, x, y, range, rangeSq, results);
+        }
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p){
+        return kNearestNeighbors(1, p).first();
+    }
+
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+        kNearestNeighbors(p, queue);
+        return queue;
+    }
+
+    @Override
+    public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors){
+        return KNNBatch.run(k, anchors, this::kNearestNeighbors);
+    }
+
+    private void kNearestNeighbors(KDPoint p, BoundedPriorityQueue<KDPoint> queue){
+        if(count > 0){
+            double[] a = toArray(p);
+            search(0, 0, 0, 0, count, a[0], a[1], queue);
+        }
+    }
+
+    /* Branch-and-bound over the quadrants: the one containing the anchor first, then the others, if still useful. */
+    private void search(long qx, long qy, int level, int from, int to, double x, double y,
+                        BoundedPriorityQueue<KDPoint> queue){
+        if(isLeaf(level, from, to)){
+            for(int i = from; i < to; i++){
+                if(xs[i] == x && ys[i] == y) // The anchor itself is never reported.
+                    continue;
+                double dx = xs[i] - x, dy = ys[i] - y, distSq = dx * dx + dy * dy;
+                if(distSq < queue.threshold())
+                    queue.enqueue(new KDPoint(xs[i], ys[i]), distSq);
+            }
+            return;
+        }
+        int[] bounds = new int[5];
+        split(qx, qy, level, from, to, bounds);
+        long half = 1L << (BITS - level - 1);
+        int first = -1;
+        if(minDistanceSquared(qx, qy, level, x, y) == 0){
+            long ax = quantize(Math.max(min, Math.min(max, x))), ay = quantize(Math.max(min, Math.min(max, y)));
+            first = (ax >= qx + half ? 1 : 0) | (ay >= qy + half ? 2 : 0);
+        }
+        for(int n = -1; n < 4; n++){
+            int i = n == -1 ? first : n;
+            if(i == -1 || (n != -1 && i == first) || bounds[i] == bounds[i + 1])
+                continue;
+            long cx = qx + ((i & 1) != 0 ? half : 0), cy = qy + ((i & 2) != 0 ? half : 0);
+            if(minDistanceSquared(cx, cy, level + 1, x, y) < queue.threshold())
+                search(cx, cy, level + 1, bounds[i], bounds[i + 1], x, y, queue);
+        }
+    }
+}
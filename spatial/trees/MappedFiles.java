@@ -0,0 +1,70 @@
+package projects.spatial.trees;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>{@link MappedFiles} maps the files written by {@link FlatKDTree#save(Path)} and {@link PRQuadTree#save(Path)}
+ * into memory. Every such file starts with a {@value #HEADER_BYTES}-byte header, whose first {@code int} is a magic
+ * number identifying its format, followed by arrays of primitives, each one aligned on 8 bytes. Numbers are stored in
+ * big-endian order, the default of {@link java.nio.ByteBuffer}, so the files can be moved between machines.</p>
+ *
+ * <p>A single mapping cannot exceed 2GB, which bounds the size of a persisted tree.</p>
+ */
+final class MappedFiles {
+
+    /**
+     * The size of the header of every file, in bytes.
+     */
+    static final int HEADER_BYTES = 32;
+
+    private MappedFiles() {}
+
+    /**
+     * Creates, or truncates, file, and maps size bytes of it for writing.
+     * @param file The file to write.
+     * @param size The size of the file, in bytes, header included.
+     * @return A writable buffer over the whole file, positioned at 0.
+     * @throws IOException if the file cannot be created, or if size exceeds what a single mapping can hold.
+     */
+    static MappedByteBuffer create(Path file, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Cannot map " + size + " bytes at once: the tree is too large to be persisted.");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Maps file for reading, and checks that it starts with the expected magic number. The mapping stays valid after
+     * this returns, until the buffer is garbage-collected.
+     * @param file The file to map.
+     * @param magic The magic number of the expected format.
+     * @return A read-only buffer over the whole file, positioned right after the magic number.
+     * @throws IOException if the file cannot be read, or if it is not in the expected format.
+     */
+    static MappedByteBuffer open(Path file, int magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a persisted spatial tree.");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != magic)
+                throw new IOException(file + " is not a persisted spatial tree of the expected kind.");
+            return buffer;
+        }
+    }
+
+    /**
+     * Rounds a byte offset up to the next multiple of 8.
+     * @param offset A byte offset.
+     * @return The smallest multiple of 8 that is at least offset.
+     */
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+}
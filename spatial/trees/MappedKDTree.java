@@ -0,0 +1,196 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.nodes.RangeCheck;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>{@link MappedKDTree} is a read-only <em>K</em>-D Tree that lives in a file, written by {@link KDTree#save(Path)}
+ * or {@link FlatKDTree#save(Path)}. Opening it maps the file into memory and reads its header, which takes constant
+ * time whatever the size of the tree: nothing is parsed, copied or rebuilt. Queries then run directly against the
+ * mapped pages, which the operating system loads on first touch and may share between processes.</p>
+ *
+ * <p>The file holds the coordinates of a {@link FlatKDTree}, slot after slot, in implicit (Eytzinger) order, and the
+ * queries are the ones of {@link FlatKDTree}. No {@link KDPoint} is stored: a {@link KDPoint} is only created when it
+ * is reported, from the {@code double} coordinates in the file.</p>
+ *
+ * @see FlatKDTree
+ * @see MappedPRQuadTree
+ */
+public class MappedKDTree implements SpatialQuerySolver {
+
+	/**
+	 * The magic number at the start of every file of this format, &quot;KDT1&quot; in ASCII.
+	 */
+	static final int MAGIC = 0x4B445431;
+
+	private final int dims;
+	private final int count;
+	private final DoubleBuffer coords; // Slot i occupies [i * dims, (i + 1) * dims).
+
+	private MappedKDTree(MappedByteBuffer buffer){
+		dims = buffer.getInt();
+		count = buffer.getInt();
+		buffer.position(MappedFiles.HEADER_BYTES);
+		coords = buffer.asDoubleBuffer();
+		if(dims <= 0 || count < 0 || coords.capacity() != (long) count * dims)
+			throw new IllegalStateException("The header of the file does not match its contents.");
+	}
+
+	/**
+	 * Opens a tree persisted by {@link KDTree#save(Path)} or {@link FlatKDTree#save(Path)}.
+	 * @param file The file to open.
+	 * @return A {@link MappedKDTree} that answers queries straight from file.
+	 * @throws IOException if the file cannot be read, or was not written by one of those methods.
+	 */
+	public static MappedKDTree open(Path file) throws IOException{
+		try{
+			return new MappedKDTree(MappedFiles.open(file, MAGIC));
+		} catch(IllegalStateException e){
+			throw new IOException(file + " is corrupted: " + e.getMessage());
+		}
+	}
+
+	/* ************************************************************************** */
+	/* ********************************* QUERIES ******************************** */
+	/* ************************************************************************** */
+
+	private double distanceSquared(int slot, double[] anchor){
+		int base = slot * dims;
+		double sum = 0;
+		for(int d = 0; d < dims; d++){
+			double diff = coords.get(base + d) - anchor[d];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	private boolean sameCoords(int slot, double[] a){
+		for(int d = 0; d < dims; d++){
+			if(coords.get(slot * dims + d) != a[d])
+				return false;
+		}
+		return true;
+	}
+
+	private KDPoint pointAt(int slot){
+		double[] c = new double[dims];
+		coords.get(slot * dims, c);
+		return new KDPoint(c);
+	}
+
+	private double[] toArray(KDPoint p){
+		if(p.coords.length != dims)
+			throw new RuntimeException("Cannot query a " + dims + "-D tree with a " + p.coords.length + "-D KDPoint.");
+		double[] a = new double[dims];
+		for(int d = 0; d < dims; d++)
+			a[d] = p.coords[d].doubleValue();
+		return a;
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, BigDecimal range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		if(count > 0){
+			double r = range.doubleValue();
+			double rangeSq = r * r;
+			range(0, 0, p, toArray(p), range, rangeSq, rangeSq * (1 + RangeCheck.TOLERANCE), pts);
+		}
+		return pts;
+	}
+
+	private void range(int slot, int dim, KDPoint anchor, double[] a, BigDecimal range, double rangeSq, double slack,
+					   Collection<KDPoint> results){
+		double distSq = distanceSquared(slot, a);
+		if(distSq <= slack && !sameCoords(slot, a)){ // The anchor itself is never part of the result.
+			KDPoint p = pointAt(slot);
+			if(RangeCheck.withinRange(distSq, p, anchor, range, rangeSq))
+				results.add(p);
+		}
+		int nextDim = dim + 1;
+		if(dim == dims - 1) nextDim = 0;
+		double diff = a[dim] - coords.get(slot * dims + dim);
+		boolean nearPlane = diff * diff <= slack;
+		int low = 2 * slot + 1, high = low + 1;
+		if(low < count && (diff <= 0 || nearPlane))
+			range(low, nextDim, anchor, a, range, rangeSq, slack, results);
+		if(high < count && (diff >= 0 || nearPlane))
+			range(high, nextDim, anchor, a, range, rangeSq, slack, results);
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		return kNearestNeighbors(1, p).first();
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+		if(count > 0)
+			search(0, 0, toArray(p), queue);
+		return queue;
+	}
+
+	@Override
+	public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors){
+		return KNNBatch.run(k, anchors, (p, queue) -> {
+			if(count > 0)
+				search(0, 0, toArray(p), queue);
+		});
+	}
+
+	/* Same branch-and-bound as FlatKDTree, except that KDPoints are only created for the candidates. */
+	private void search(int slot, int dim, double[] a, BoundedPriorityQueue<KDPoint> queue){
+		int nextDim = dim + 1;
+		if(dim == dims - 1) nextDim = 0;
+		double diff = a[dim] - coords.get(slot * dims + dim);
+		int near = diff <= 0 ? 2 * slot + 1 : 2 * slot + 2;
+		int far = diff <= 0 ? 2 * slot + 2 : 2 * slot + 1;
+		if(near < count)
+			search(near, nextDim, a, queue);
+		double distSq = distanceSquared(slot, a);
+		if(distSq < queue.threshold() && !sameCoords(slot, a)) // The anchor itself is never reported.
+			queue.enqueue(pointAt(slot), distSq);
+		if(far < count && diff * diff < queue.threshold())
+			search(far, nextDim, a, queue);
+	}
+
+	/* ************************************************************************** */
+	/* ********************************* ACCESSORS ****************************** */
+	/* ************************************************************************** */
+
+	/**
+	 * Returns the number of {@link KDPoint}s in the file.
+	 * @return The number of {@link KDPoint}s held by this.
+	 */
+	public int count(){
+		return count;
+	}
+
+	/**
+	 * Returns the height of the tree, which is always floor(log2(n)) for n points, or -1 if it is empty.
+	 * @return The height of this.
+	 */
+	public int height(){
+		return 31 - Integer.numberOfLeadingZeros(count);
+	}
+
+	/**
+	 * Returns the dimensionality of the tree.
+	 * @return The dimensionality k of the indexed space.
+	 */
+	public int getDims(){
+		return dims;
+	}
+}
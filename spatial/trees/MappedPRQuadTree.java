@@ -0,0 +1,352 @@
+package projects.spatial.trees;
+
+import projects.spatial.kdpoint.KDPoint;
+import projects.spatial.knnutils.BoundedPriorityQueue;
+import projects.spatial.nodes.PRQuadBlackNode;
+import projects.spatial.nodes.PRQuadGrayNode;
+import projects.spatial.nodes.PRQuadNode;
+import projects.spatial.nodes.RangeCheck;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>{@link MappedPRQuadTree} is a read-only PR-Tree that lives in a file, written by {@link PRQuadTree#save(Path)}.
+ * Opening it maps the file into memory and reads its header, which takes constant time whatever the size of the tree;
+ * queries then walk the nodes directly on the mapped pages.</p>
+ *
+ * <p>The file keeps the exact shape of the saved tree, in two primitive arrays. The nodes are {@code int}s, in
+ * pre-order, starting with the root:</p>
+ * <ul>
+ *     <li>A black node takes two {@code int}s: its number of points, which is positive, and the position of its first
+ *     point. The points of a black node are consecutive.</li>
+ *     <li>A gray node with c non-empty children takes 1 + 2c {@code int}s: -c, and then, for every child, its index
+ *     among the 2^d children of the node (see {@link PRQuadGrayNode#getChildren()}) and its own position in the
+ *     array.</li>
+ * </ul>
+ * <p>The coordinates of the points are {@code double}s, point after point. Centroids are not stored at all: as in the
+ * tree itself, they follow from k and from the index of every child on the path from the root. A {@link KDPoint} is
+ * only created when it is reported, from the {@code double} coordinates in the file.</p>
+ *
+ * @see PRQuadTree
+ * @see MappedKDTree
+ */
+public class MappedPRQuadTree implements SpatialQuerySolver {
+
+    /**
+     * The magic number at the start of every file of this format, &quot;PRT1&quot; in ASCII.
+     */
+    static final int MAGIC = 0x50525431;
+
+    private final int dims, k, bucketingParam, count, height;
+    private final IntBuffer nodes;
+    private final DoubleBuffer coords; // Point i occupies [i * dims, (i + 1) * dims).
+
+    private MappedPRQuadTree(MappedByteBuffer buffer) {
+        dims = buffer.getInt();
+        k = buffer.getInt();
+        bucketingParam = buffer.getInt();
+        count = buffer.getInt();
+        height = buffer.getInt();
+        int nodeInts = buffer.getInt();
+        if (dims < 1 || dims > 30 || count < 0 || nodeInts < 0)
+            throw new IllegalStateException("The header of the file is invalid.");
+        long coordsAt = MappedFiles.align(MappedFiles.HEADER_BYTES + 4L * nodeInts);
+        if (coordsAt + 8L * count * dims != buffer.capacity())
+            throw new IllegalStateException("The header of the file does not match its size.");
+        buffer.position(MappedFiles.HEADER_BYTES);
+        nodes = buffer.slice().asIntBuffer();
+        nodes.limit(nodeInts);
+        buffer.position((int) coordsAt);
+        coords = buffer.slice().asDoubleBuffer();
+    }
+
+    /**
+     * Opens a tree persisted by {@link PRQuadTree#save(Path)}.
+     * @param file The file to open.
+     * @return A {@link MappedPRQuadTree} that answers queries straight from file.
+     * @throws IOException if the file cannot be read, or was not written by {@link PRQuadTree#save(Path)}.
+     */
+    public static MappedPRQuadTree open(Path file) throws IOException {
+        try {
+            return new MappedPRQuadTree(MappedFiles.open(file, MAGIC));
+        } catch (IllegalStateException e) {
+            throw new IOException(file + " is corrupted: " + e.getMessage());
+        }
+    }
+
+    /* ************************************************************************** */
+    /* ********************************* WRITING ******************************** */
+    /* ************************************************************************** */
+
+    /**
+     * Writes the tree rooted at root to file, in the format described above.
+     * @param root The root of the tree, or {@code null} if it is empty.
+     * @param tree The tree itself, for its parameters.
+     * @param file The file to write. Any existing file is replaced.
+     * @throws IOException if the file cannot be written.
+     */
+    static void write(PRQuadNode root, PRQuadTree tree, Path file) throws IOException {
+        Writer w = new Writer(tree.getDims(), tree.count());
+        if (root != null)
+            w.write(root);
+        long coordsAt = MappedFiles.align(MappedFiles.HEADER_BYTES + 4L * w.size);
+        MappedByteBuffer buffer = MappedFiles.create(file, coordsAt + 8L * w.coords.length);
+        buffer.putInt(MAGIC).putInt(tree.getDims()).putInt(tree.getK()).putInt(tree.getBucketSize())
+                .putInt(tree.count()).putInt(tree.height()).putInt(w.size);
+        buffer.position(MappedFiles.HEADER_BYTES);
+        buffer.asIntBuffer().put(w.nodes, 0, w.size);
+        buffer.position((int) coordsAt);
+        buffer.asDoubleBuffer().put(w.coords);
+        buffer.force();
+    }
+
+    private static final class Writer {
+        private final int dims;
+        private final double[] coords;
+        private int[] nodes = new int[64];
+        private int size, points;
+
+        private Writer(int dims, int count) {
+            this.dims = dims;
+            coords = new double[count * dims];
+        }
+
+        private int reserve(int ints) {
+            if (size + ints > nodes.length)
+                nodes = Arrays.copyOf(nodes, Math.max(size + ints, 2 * nodes.length));
+            size += ints;
+            return size - ints;
+        }
+
+        /* Appends the subtree rooted at n, in pre-order, and returns the position of n. */
+        private int write(PRQuadNode n) {
+            if (n instanceof PRQuadGrayNode) {
+                PRQuadGrayNode gray = (PRQuadGrayNode) n;
+                int children = gray.getChildCount();
+                int at = reserve(1 + 2 * children);
+                nodes[at] = -children;
+                for (int i = 0; i < children; i++) {
+                    nodes[at + 1 + 2 * i] = gray.getChildSlot(i);
+                    int child = write(gray.getChild(i)); // May grow nodes.
+                    nodes[at + 2 + 2 * i] = child;
+                }
+                return at;
+            }
+            Collection<KDPoint> pts = ((PRQuadBlackNode) n).getPoints();
+            int at = reserve(2);
+            nodes[at] = pts.size();
+            nodes[at + 1] = points;
+            for (KDPoint p : pts) {
+                for (int d = 0; d < dims; d++)
+                    coords[points * dims + d] = p.coords[d].doubleValue();
+                points++;
+            }
+            return at;
+        }
+    }
+
+    /* ************************************************************************** */
+    /* ********************************* QUERIES ******************************** */
+    /* ************************************************************************** */
+
+    private double[] toArray(KDPoint p) {
+        if (p.coords.length != dims)
+            throw new RuntimeException("Cannot query a " + dims + "-D tree with a " + p.coords.length + "-D KDPoint.");
+        double[] a = new double[dims];
+        for (int d = 0; d < dims; d++)
+            a[d] = p.coords[d].doubleValue();
+        return a;
+    }
+
+    private double distanceSquared(int point, double[] a) {
+        double sum = 0;
+        for (int d = 0; d < dims; d++) {
+            double diff = coords.get(point * dims + d) - a[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private boolean sameCoords(int point, double[] a) {
+        for (int d = 0; d < dims; d++) {
+            if (coords.get(point * dims + d) != a[d])
+                return false;
+        }
+        return true;
+    }
+
+    private KDPoint pointAt(int point) {
+        double[] c = new double[dims];
+        coords.get(point * dims, c);
+        return new KDPoint(c);
+    }
+
+    /* Same child numbering as PRQuadGrayNode: bit 0 set on the East side, bit i > 0 set on the smaller side. */
+    private int childIndex(double[] centroid, double[] a) {
+        int index = a[0] >= centroid[0] ? 1 : 0;
+        for (int i = 1; i < dims; i++) {
+            if (a[i] < centroid[i])
+                index |= 1 << i;
+        }
+        return index;
+    }
+
+    /* The centroid of child slot of a node with the given centroid and side 2^k. */
+    private double[] childCentroid(double[] centroid, int k, int slot) {
+        double offset = Math.scalb(1.0, k - 2);
+        double[] c = centroid.clone();
+        c[0] += (slot & 1) != 0 ? offset : -offset;
+        for (int i = 1; i < dims; i++)
+            c[i] += (slot & (1 << i)) != 0 ? -offset : offset;
+        return c;
+    }
+
+    /* Squared distance between a and the closest point of child slot of a node with the given centroid and side 2^k. */
+    private double childMinDistanceSquared(double[] centroid, int k, int slot, double[] a) {
+        double half = Math.scalb(1.0, k - 2);
+        double sum = 0;
+        for (int i = 0; i < dims; i++) {
+            boolean greater = i == 0 ? (slot & 1) != 0 : (slot & (1 << i)) == 0;
+            double center = centroid[i] + (greater ? half : -half);
+            double diff = Math.abs(a[i] - center) - half;
+            if (diff > 0)
+                sum += diff * diff;
+        }
+        return sum;
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, BigDecimal range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (count > 0) {
+            double r = range.doubleValue();
+            double rangeSq = r * r;
+            range(0, new double[dims], k, p, toArray(p), range, rangeSq, rangeSq * (1 + RangeCheck.TOLERANCE), pts);
+        }
+        return pts;
+    }
+
+    private void range(int node, double[] centroid, int k, KDPoint anchor, double[] a, BigDecimal range,
+                       double rangeSq, double slack, Collection<KDPoint> results) {
+        int header = nodes.get(node);
+        if (header > 0) {
+            for (int i = nodes.get(node + 1), end = i + header; i < end; i++) {
+                double distSq = distanceSquared(i, a);
+                if (distSq > slack || sameCoords(i, a)) // The anchor itself is never part of the result.
+                    continue;
+                KDPoint p = pointAt(i);
+                if (RangeCheck.withinRange(distSq, p, anchor, range, rangeSq))
+                    results.add(p);
+            }
+            return;
+        }
+        for (int i = 0; i < -header; i++) {
+            int slot = nodes.get(node + 1 + 2 * i);
+            if (childMinDistanceSquared(centroid, k, slot, a) <= slack)
+                range(nodes.get(node + 2 + 2 * i), childCentroid(centroid, k, slot), k - 1, anchor, a, range,
+                        rangeSq, slack, results);
+        }
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        return kNearestNeighbors(1, p).first();
+    }
+
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
+        if (count > 0)
+            search(0, new double[dims], this.k, toArray(p), queue);
+        return queue;
+    }
+
+    @Override
+    public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors) {
+        return KNNBatch.run(k, anchors, (p, queue) -> {
+            if (count > 0)
+                search(0, new double[dims], this.k, toArray(p), queue);
+        });
+    }
+
+    /* Same branch-and-bound as PRQuadGrayNode: the child containing the anchor first, then any other that may help. */
+    private void search(int node, double[] centroid, int k, double[] a, BoundedPriorityQueue<KDPoint> queue) {
+        int header = nodes.get(node);
+        if (header > 0) {
+            for (int i = nodes.get(node + 1), end = i + header; i < end; i++) {
+                double distSq = distanceSquared(i, a);
+                if (distSq < queue.threshold() && !sameCoords(i, a)) // The anchor itself is never reported.
+                    queue.enqueue(pointAt(i), distSq);
+            }
+            return;
+        }
+        int firstSlot = childIndex(centroid, a), first = -1;
+        for (int i = 0; i < -header; i++) {
+            if (nodes.get(node + 1 + 2 * i) == firstSlot) {
+                first = i;
+                search(nodes.get(node + 2 + 2 * i), childCentroid(centroid, k, firstSlot), k - 1, a, queue);
+                break;
+            }
+        }
+        for (int i = 0; i < -header; i++) {
+            int slot = nodes.get(node + 1 + 2 * i);
+            if (i != first && childMinDistanceSquared(centroid, k, slot, a) < queue.threshold())
+                search(nodes.get(node + 2 + 2 * i), childCentroid(centroid, k, slot), k - 1, a, queue);
+        }
+    }
+
+    /* ************************************************************************** */
+    /* ********************************* ACCESSORS ****************************** */
+    /* ************************************************************************** */
+
+    /**
+     * Returns the number of {@link KDPoint}s in the file.
+     * @return The number of {@link KDPoint}s held by this.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the height that the saved tree had, in constant time.
+     * @return The height of this, or -1 if it is empty.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * A simple accessor for the parameter k of the saved tree.
+     * @return The exponent of 2 that defines the side of the space spanned by this.
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * A simple accessor for the dimensionality of the saved tree.
+     * @return The dimensionality of the space indexed by this.
+     */
+    public int getDims() {
+        return dims;
+    }
+
+    /**
+     * A simple accessor for the bucket size of the saved tree.
+     * @return The bucketing parameter of this.
+     */
+    public int getBucketSize() {
+        return bucketingParam;
+    }
+}
@@ -3,14 +3,21 @@ package projects.spatial.trees;
 import projects.spatial.kdpoint.KDPoint;
 import projects.spatial.knnutils.BoundedPriorityQueue;
 import projects.spatial.knnutils.NNData;
+import projects.spatial.knnutils.QueryMetrics;
+import projects.spatial.knnutils.QueryStats;
 import projects.spatial.nodes.PRQuadBlackNode;
 import projects.spatial.nodes.PRQuadGrayNode;
 import projects.spatial.nodes.PRQuadNode;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>PRQuadTree implements Point-Region (P-R) QuadTrees. Those are trie-based
@@ -26,6 +33,11 @@ import java.util.LinkedList;
  * subtrees per nodes. The course staff has come around some papers with applications of oct-trees, which are extensions of PR-QuadTrees) in 3 *
  * dimensions. Beyond 3, it seems that the idea of such exponential fanout trie-based quadtrees fades.</p>
  *
+ * <p>This implementation is nevertheless generic in the dimensionality d of the space, through
+ * {@link #PRQuadTree(int, int, int)}: a gray node splits its hypercube into 2^d children, which gives an oct-tree for
+ * d = 3. Gray nodes only allocate room for their non-empty children, so the fan-out only costs as much as the data
+ * actually populates.</p>
+ *
  * <p><b>YOU SHOULD ***NOT*** EDIT THIS CLASS!</b> If you do, you risk <b>not passing our tests!</b> All the functionality
  * of the P-R QuadTree will be implemented by the various {@link PRQuadNode}s.</p>
  *
@@ -64,6 +76,16 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      */
     private int count;
 
+    /**
+     * The dimensionality of the space considered. Every gray node has up to 2^dims children.
+     */
+    private int dims;
+
+    /**
+     * Where the counters of every query are aggregated, if {@link QueryMetrics#ENABLED}; {@code null} for none.
+     */
+    private QueryMetrics metrics;
+
     /**
      * Constructor for PRQuadTree objects.
      * @param k The exponent of 2 that defines the area assumed to be spanned by the <b>entire QuadTree</b> (i.e by its
@@ -82,19 +104,38 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      * @see #bucketingParam
      */
     public PRQuadTree(int k, int bucketingParam){
+        this(k, bucketingParam, 2);
+    }
+
+    /**
+     * Constructor for PR-Trees of any dimensionality: a quadtree for dims = 2, an oct-tree for dims = 3 and so on.
+     * The root spans the hypercube of side 2^k centered at the origin; everything else works exactly like in
+     * {@link #PRQuadTree(int, int)}, including the meaning of the bucketing parameter.
+     * @param k The exponent of 2 that defines the side of the hypercube spanned by the <b>entire</b> tree.
+     * @param bucketingParam The "bucketing" parameter, which controls how many {@link KDPoint}s a {@link PRQuadBlackNode}
+     *                       of this tree can hold before having to split.
+     * @param dims The dimensionality of the space. Every gray node has up to 2^dims children.
+     * @throws RuntimeException if bucketingParam &lt; 1, or if dims is not between 1 and 30.
+     */
+    public PRQuadTree(int k, int bucketingParam, int dims){
         if(bucketingParam < 1)
             throw new RuntimeException("Bucketing parameter needs to be at least 1!");
+        if(dims < 1 || dims > 30)
+            throw new RuntimeException("The value of dims provided, " + dims + ", is invalid: Please provide an integer between 1 and 30.");
         this.k = k;
         this.bucketingParam = bucketingParam;
+        this.dims = dims;
         count = 0;
     }
 
 
     @Override
     public void insert(KDPoint p) {
+        if(p.coords.length != dims)
+            throw new RuntimeException("Cannot insert a " + p.coords.length + "-D KDPoint into a " + dims + "-D tree.");
         if(root == null) {  // white nodes, first point stored
             // Notice that we are calling the second constructor of PRQuadBlackNode here!
-            root = new PRQuadBlackNode(new KDPoint(0, 0), k, bucketingParam, p); // Initial centroid assumed at (0, 0).
+            root = new PRQuadBlackNode(new KDPoint(new double[dims]), k, bucketingParam, p); // Initial centroid assumed at the origin.
             count++;
         } else {// black or gray nodes
             if(!root.search(p)) {
@@ -145,6 +186,15 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         return k;
     }
 
+    /**
+     * A simple accessor for the dimensionality of the current {@link PRQuadTree}.
+     * @return The dimensionality of the space indexed by this.
+     * @see PRQuadTree#PRQuadTree(int, int, int)
+     */
+    public int getDims(){
+        return dims;
+    }
+
     /**
      * A simple accessor for the bucket size of the current {@link PRQuadTree}.
      * @return The bucket size of the current {@link PRQuadTree}.
@@ -153,35 +203,188 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         return bucketingParam;
     }
 
+    /**
+     * Makes every subsequent nearest neighbor, k-NN and range query of this tree record its {@link QueryStats} into
+     * metrics. This only has an effect if {@link QueryMetrics#ENABLED}; otherwise, queries are not instrumented at all.
+     * Batch k-NN queries are not recorded.
+     * @param metrics The histograms to record queries into, or {@code null} to stop recording them.
+     */
+    public void setMetrics(QueryMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the {@link QueryMetrics} that queries are recorded into.
+     * @return The {@link QueryMetrics} given to {@link #setMetrics(QueryMetrics)}, or {@code null} if there is none.
+     */
+    public QueryMetrics getMetrics(){
+        return metrics;
+    }
+
 
     @Override
     public Collection<KDPoint> range(KDPoint p, BigDecimal range) {
+        if(QueryMetrics.ENABLED && metrics != null){
+            QueryStats stats = new QueryStats();
+            Collection<KDPoint> pts = range(p, range, stats);
+            metrics.record(QueryMetrics.Query.RANGE, stats);
+            return pts;
+        }
+        return range(p, range, null);
+    }
+
+    /**
+     * Performs a range query exactly like {@link #range(KDPoint, BigDecimal)}, additionally reporting the work it did.
+     * @param p The query {@link KDPoint}.
+     * @param range The <b>INCLUSIVE</b> range from p.
+     * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+     * @return A {@link Collection} over all {@link KDPoint}s within range of p, other than p itself.
+     */
+    public Collection<KDPoint> range(KDPoint p, BigDecimal range, QueryStats stats) {
+        long start = (stats == null) ? 0 : System.nanoTime();
         LinkedList<KDPoint> pts = new LinkedList<KDPoint>();
-        if(root == null)
-            return pts; // empty
-        else
-            root.range(p, pts, range);
+        if(root != null)
+            root.range(p, pts, range, stats);
+        if(stats != null)
+            stats.elapsedNanos += System.nanoTime() - start;
         return pts;
     }
 
+    /**
+     * {@inheritDoc} Every gray node knows how many points lie under it, so quadrants that lie entirely within range
+     * are counted in constant time.
+     */
+    @Override
+    public int rangeCount(KDPoint p, BigDecimal range) {
+        return (root == null) ? 0 : root.rangeCount(p, range);
+    }
+
+    /**
+     * Performs an axis-aligned box query: returns all the {@link KDPoint}s whose coordinates all lie between those of
+     * lower and upper, <b>INCLUSIVE</b>. Quadrants that do not intersect the box are pruned.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates. If some coordinate of upper is smaller than
+     *              that of lower, the box is empty.
+     * @return A {@link Collection} over all {@link KDPoint}s in the box, which is empty if there are none.
+     * @throws RuntimeException if the corners do not have the dimensionality of this.
+     */
+    public Collection<KDPoint> box(KDPoint lower, KDPoint upper) {
+        checkCorners(lower, upper);
+        LinkedList<KDPoint> pts = new LinkedList<KDPoint>();
+        if(root != null)
+            root.box(lower, upper, pts);
+        return pts;
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #box(KDPoint, KDPoint)} would return, without collecting them. The
+     * points of quadrants that lie entirely inside the box are counted without being examined one by one.
+     * @param lower The corner of the box with the smallest coordinates.
+     * @param upper The corner of the box with the largest coordinates.
+     * @return The number of {@link KDPoint}s in the box.
+     * @throws RuntimeException if the corners do not have the dimensionality of this.
+     */
+    public int boxCount(KDPoint lower, KDPoint upper) {
+        checkCorners(lower, upper);
+        return (root == null) ? 0 : root.boxCount(lower, upper);
+    }
+
+    private void checkCorners(KDPoint lower, KDPoint upper) {
+        if(lower.coords.length != dims || upper.coords.length != dims)
+            throw new RuntimeException("Cannot query a " + dims + "-D tree with the corners of a " + lower.coords.length + "-D box.");
+    }
+
+    /**
+     * {@inheritDoc} The quadrants are walked lazily, with an explicit stack, and those that do not intersect the
+     * range of p are pruned.
+     */
+    @Override
+    public Stream<KDPoint> rangeStream(KDPoint p, BigDecimal range) {
+        if(root == null)
+            return Stream.empty();
+        return StreamSupport.stream(root.rangeSpliterator(p, range), false);
+    }
+
     @Override
     public KDPoint nearestNeighbor(KDPoint p) {
+        if(QueryMetrics.ENABLED && metrics != null){
+            QueryStats stats = new QueryStats();
+            KDPoint nn = nearestNeighbor(p, stats);
+            metrics.record(QueryMetrics.Query.NEAREST_NEIGHBOR, stats);
+            return nn;
+        }
+        return nearestNeighbor(p, null);
+    }
+
+    /**
+     * Performs a nearest neighbor query exactly like {@link #nearestNeighbor(KDPoint)}, additionally reporting the
+     * work it did.
+     * @param p The query {@link KDPoint}.
+     * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+     * @return The solution to the nearest neighbor query, or null if there are no points other than p in the tree.
+     */
+    public KDPoint nearestNeighbor(KDPoint p, QueryStats stats) {
+        long start = (stats == null) ? 0 : System.nanoTime();
         NNData<KDPoint> n = new NNData<KDPoint>(null, INFTY);
         if(root != null)
-            n = root.nearestNeighbor(p, n);
+            n = root.nearestNeighbor(p, n, stats);
+        if(stats != null)
+            stats.elapsedNanos += System.nanoTime() - start;
         return n.bestGuess;
     }
 
     @Override
     public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if(QueryMetrics.ENABLED && metrics != null){
+            QueryStats stats = new QueryStats();
+            BoundedPriorityQueue<KDPoint> queue = kNearestNeighbors(k, p, stats);
+            metrics.record(QueryMetrics.Query.K_NEAREST_NEIGHBORS, stats);
+            return queue;
+        }
+        return kNearestNeighbors(k, p, null);
+    }
+
+    /**
+     * Performs a k-nearest neighbors query exactly like {@link #kNearestNeighbors(int, KDPoint)}, additionally
+     * reporting the work it did.
+     * @param k A positive integer denoting the amount of neighbors to return.
+     * @param p The query point.
+     * @param stats A {@link QueryStats} instance whose counters the query will add to. May be {@code null}.
+     * @return A {@link BoundedPriorityQueue} containing the k-nearest neighbors of p.
+     * @throws RuntimeException If k&lt;=0.
+     */
+    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, QueryStats stats) {
         if(k <= 0)
             throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        long start = (stats == null) ? 0 : System.nanoTime();
         BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<KDPoint>(k);
         if(root != null)
-            root.kNearestNeighbors(k, p, queue);
+            root.kNearestNeighbors(k, p, queue, stats);
+        if(stats != null)
+            stats.elapsedNanos += System.nanoTime() - start;
         return queue; // Might be empty; that's not a problem.
     }
 
+    @Override
+    public List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors) {
+        return KNNBatch.run(k, anchors, (p, queue) -> {
+            if(root != null)
+                root.kNearestNeighbors(k, p, queue);
+        });
+    }
+
+    /**
+     * Persists this to file, in a compact binary format of primitive arrays that {@link MappedPRQuadTree#open(Path)}
+     * can query straight from the file, without rebuilding anything. The shape of the tree is preserved; coordinates
+     * are stored in {@code double} precision.
+     * @param file The file to write. Any existing file is replaced.
+     * @throws IOException if the file cannot be written.
+     * @see MappedPRQuadTree
+     */
+    public void save(Path file) throws IOException {
+        MappedPRQuadTree.write(root, this, file);
+    }
+
     /**
      * A simple tree description generator for VizTree/CompactVizTree. It returns a string representation for the QuadTree
      * This tree representation follows jimblackler style(http://jimblackler.net/treefun/index.html).
@@ -4,6 +4,11 @@ import projects.spatial.knnutils.BoundedPriorityQueue;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * <p>{@link SpatialQuerySolver} is an interface that declares methods for range and k-NN queries over {@link KDPoint}s.</p>
@@ -34,6 +39,61 @@ public interface SpatialQuerySolver {
      */
     Collection<KDPoint> range(KDPoint p, BigDecimal range);
 
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, BigDecimal)} would return. Trees that keep the sizes of
+     * their subtrees override this, so that subtrees lying entirely within range are counted without being visited,
+     * and no {@link KDPoint} is ever collected. The default implementation counts the result of
+     * {@link #range(KDPoint, BigDecimal)}.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return The number of {@link KDPoint}s, other than p, within range of p.
+     */
+    default int rangeCount(KDPoint p, BigDecimal range) {
+        return range(p, range).size();
+    }
+
+    /**
+     * Performs the same range query as {@link #range(KDPoint, BigDecimal)}, as a {@link Stream}. Trees that can walk
+     * their nodes lazily override this, so that the points are only found as the stream consumes them: a
+     * {@link Stream#limit(long) limited} or {@link Stream#findAny() short-circuiting} stream stops walking the tree
+     * as soon as it has its answer, and a {@link Stream#parallel() parallel} one walks disjoint subtrees on different
+     * threads. The default implementation simply streams over the result of {@link #range(KDPoint, BigDecimal)}.
+     * The tree must not be modified before the stream is consumed.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p that we allow a {@link KDPoint} to have if it should be part of the
+     *              solution, <b>INCLUSIVE</b>.
+     * @return A {@link Stream} over all {@link KDPoint}s which satisfy our query, in no particular order.
+     */
+    default Stream<KDPoint> rangeStream(KDPoint p, BigDecimal range) {
+        return range(p, range).stream();
+    }
+
+    /**
+     * Performs the same range query as {@link #range(KDPoint, BigDecimal)}, through an {@link Iterator} that is as
+     * lazy as {@link #rangeStream(KDPoint, BigDecimal)}. The tree must not be modified while iterating.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return An {@link Iterator} over all {@link KDPoint}s which satisfy our query, in no particular order.
+     */
+    default Iterator<KDPoint> rangeIterator(KDPoint p, BigDecimal range) {
+        return rangeStream(p, range).iterator();
+    }
+
+    /**
+     * Performs a range query that stops as soon as it has found limit {@link KDPoint}s. Which ones are returned,
+     * among all those that satisfy the query, is unspecified.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @param limit The maximum number of {@link KDPoint}s to return.
+     * @return A {@link Collection} over at most limit {@link KDPoint}s which satisfy our query.
+     * @throws RuntimeException If limit&lt;0.
+     */
+    default Collection<KDPoint> range(KDPoint p, BigDecimal range, int limit) {
+        if (limit < 0)
+            throw new RuntimeException("The value of limit provided, " + limit + ", is invalid: Please provide a non-negative integer.");
+        return rangeStream(p, range).limit(limit).collect(Collectors.toCollection(LinkedList::new));
+    }
+
     /** Performs a nearest neighbor query. Returns the {@link KDPoint} which is closest to
      * p, as dictated by {@link KDPoint#distanceSquared(KDPoint) distanceSquared(KDPoint p)}.
      * @param p The query {@link KDPoint}.
@@ -57,4 +117,17 @@ public interface SpatialQuerySolver {
      * @see BoundedPriorityQueue
      */
     BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p);
+
+    /**
+     * Performs a whole batch of k-nearest neighbors queries, one per anchor, in parallel. Every result is the same as
+     * what {@link #kNearestNeighbors(int, KDPoint)} would return for that anchor, drained in ascending order of
+     * distance. The tree must not be modified while the batch runs.
+     * @param k A positive integer denoting the amount of neighbors to return per anchor.
+     * @param anchors The query points.
+     * @return A {@link List} with the neighbors of anchors.get(i) at index i. Lists are empty for anchors that are the
+     * only point in the tree.
+     * @throws RuntimeException If k&lt;=0.
+     * @see #kNearestNeighbors(int, KDPoint)
+     */
+    List<List<KDPoint>> kNearestNeighbors(int k, List<KDPoint> anchors);
 }